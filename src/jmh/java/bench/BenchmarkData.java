@@ -0,0 +1,111 @@
+package bench;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Generates the data files of the benchmarks.
+ *
+ * The key of record i is derived from i, so a benchmark can rebuild any key without
+ * keeping the keys in memory, and key(i) for i >= n is absent from a file of n records.
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Returns the key of record i: i in 8 bytes, followed by pseudo-random bytes.
+     *
+     * @param i
+     *        The index of the record
+     * @param keySize
+     *        The size of the key, at least 8
+     *
+     * @return The key
+     */
+    static byte[] key(long i, int keySize) {
+        byte[] key = new byte[keySize];
+        ByteBuffer buf = ByteBuffer.wrap(key);
+        buf.putLong(i);
+        long x = i;
+        while (buf.remaining() >= 8) {
+            x = mix(x);
+            buf.putLong(x);
+        }
+        x = mix(x);
+        while (buf.hasRemaining()) {
+            buf.put((byte) x);
+            x >>>= 8;
+        }
+        return key;
+    }
+
+    /**
+     * Writes a data file of n records.
+     *
+     * @param file
+     *        The data file, replaced if it exists
+     * @param n
+     *        The number of records
+     * @param keySize
+     *        The size of every key, at least 8
+     * @param valueSize
+     *        The size of every value
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    static void write(File file, long n, int keySize, int valueSize) throws IOException {
+        Random random = new Random(n);
+        byte[] value = new byte[valueSize];
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 20))) {
+            for (long i = 0; i < n; i++) {
+                random.nextBytes(value);
+                out.writeShort(keySize);
+                out.write(key(i, keySize));
+                out.writeShort(valueSize);
+                out.write(value);
+            }
+        }
+    }
+
+    /**
+     * Creates a temporary directory for the data file and the index.
+     */
+    static File createDirectory() throws IOException {
+        return Files.createTempDirectory("kvindex-bench").toFile();
+    }
+
+    /**
+     * Deletes a directory created by createDirectory() and its content.
+     */
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * The finalizer of MurmurHash3.
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,63 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time of KVIndex.initialize() versus N and the index layout.
+ *
+ * Every iteration builds the index once from the same data file, which the warmup
+ * brings into the page cache, so the time is that of the build rather than of the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class BuildBenchmark {
+
+    @Param({"100000", "1000000", "10000000"})
+    long n;
+
+    @Param({"CHAINED", "PAGE_BUCKETS", "PERFECT_HASH"})
+    String layout;
+
+    private File directory;
+    private File dataFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = BenchmarkData.createDirectory();
+        dataFile = new File(directory, "data");
+        BenchmarkData.write(dataFile, n, 16, 100);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkData.delete(directory);
+    }
+
+    @Benchmark
+    public void initialize() throws Exception {
+        try (AutoCloseable index = Internals.newIndex(new File(directory, "index").getPath(),
+                                                      layout)) {
+            Internals.initialize(index, dataFile.getPath());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput and the latency distribution of KVIndex.get(),
+ * for hit and miss mixes, uniform and Zipfian keys, and 1, 4 and 16 threads.
+ *
+ * The index is built once per trial. Every thread draws its keys before the measurement,
+ * so the time is that of the queries, not of the random generators.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetBenchmark {
+
+    static final int KEY_SIZE = 16;
+    static final int VALUE_SIZE = 100;
+
+    public enum KeyDistribution {
+        UNIFORM, ZIPFIAN
+    }
+
+    @Param({"1000000"})
+    long n;
+
+    @Param({"CHAINED", "PAGE_BUCKETS"})
+    String layout;
+
+    // the fraction of queries of present keys
+    @Param({"1.0", "0.5", "0.0"})
+    double hitRatio;
+
+    @Param({"UNIFORM", "ZIPFIAN"})
+    KeyDistribution distribution;
+
+    private File directory;
+    private AutoCloseable index;
+
+    /**
+     * The keys queried by a thread, cycled.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+        private static final int SIZE = 1 << 16;
+
+        private byte[][] keys;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setup(GetBenchmark benchmark, ThreadParams threads) {
+            Random random = new Random(threads.getThreadIndex());
+            ZipfianGenerator zipfian = benchmark.distribution == KeyDistribution.ZIPFIAN
+                                       ? new ZipfianGenerator(benchmark.n,
+                                                              ZipfianGenerator.DEFAULT_THETA,
+                                                              random)
+                                       : null;
+            keys = new byte[SIZE][];
+            for (int i = 0; i < SIZE; i++) {
+                long item = zipfian != null ? zipfian.next()
+                                            : (long) (random.nextDouble() * benchmark.n);
+                // the key of a record after the last one is absent
+                if (random.nextDouble() >= benchmark.hitRatio)
+                    item += benchmark.n;
+                keys[i] = BenchmarkData.key(item, KEY_SIZE);
+            }
+        }
+
+        byte[] next() {
+            return keys[next++ & (SIZE - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = BenchmarkData.createDirectory();
+        File dataFile = new File(directory, "data");
+        BenchmarkData.write(dataFile, n, KEY_SIZE, VALUE_SIZE);
+        index = Internals.newIndex(new File(directory, "index").getPath(), layout);
+        Internals.initialize(index, dataFile.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        index.close();
+        BenchmarkData.delete(directory);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] get1Thread(Keys keys) {
+        return Internals.get(index, keys.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] get4Threads(Keys keys) {
+        return Internals.get(index, keys.next());
+    }
+
+    @Benchmark
+    @Threads(16)
+    public byte[] get16Threads(Keys keys) {
+        return Internals.get(index, keys.next());
+    }
+}
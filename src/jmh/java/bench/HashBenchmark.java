@@ -0,0 +1,57 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures HashFunc.hash() across key sizes and hash algorithms.
+ *
+ * The keys are cycled through a small set, so they stay in the CPU cache,
+ * and the time is that of hashing, not of loading the keys.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+    private static final int KEYS = 64;
+
+    @Param({"8", "16", "64", "256", "1024", "4096"})
+    int keySize;
+
+    @Param({"DJB", "XXH64"})
+    String algorithm;
+
+    private Object hashFunc;
+    private byte[][] keys;
+    private int next;
+
+    @Setup
+    public void setup() {
+        hashFunc = Internals.newHashFunc(1 << 20, algorithm);
+        keys = new byte[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = BenchmarkData.key(i, keySize);
+        }
+    }
+
+    @Benchmark
+    public long hash() {
+        byte[] key = keys[next++ & (KEYS - 1)];
+        return Internals.hash(hashFunc, key);
+    }
+}
@@ -0,0 +1,204 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the classes of KVIndex from the benchmarks.
+ *
+ * KVIndex lives in the unnamed package, which JMH does not accept for benchmark classes,
+ * and which classes of a named package cannot refer to. So the benchmarks reach KVIndex,
+ * HashFunc and RecordReader through method handles. The handles are static finals, which
+ * the JIT inlines like direct calls, so they do not show up in the measurements.
+ *
+ * The types of the unnamed package are erased to Object in the handles.
+ */
+final class Internals {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodHandle NEW_KV_INDEX = constructor("KVIndex");
+    private static final MethodHandle SET_INDEX_PATH =
+            method("KVIndex", "setIndexPath", String.class);
+    private static final MethodHandle SET_INDEX_LAYOUT =
+            method("KVIndex", "setIndexLayout", load("IndexLayout"));
+    private static final MethodHandle INITIALIZE = method("KVIndex", "initialize", String.class);
+    private static final MethodHandle GET = method("KVIndex", "get", byte[].class);
+
+    private static final MethodHandle NEW_HASH_FUNC =
+            constructor("HashFunc", long.class, long.class, load("HashAlgorithm"), long.class);
+    private static final MethodHandle HASH = method("HashFunc", "hash", byte[].class);
+
+    private static final MethodHandle NEW_RECORD_READER =
+            constructor("RecordReader", String.class);
+    private static final MethodHandle NEXT = method("RecordReader", "next");
+    private static final MethodHandle KEY_SIZE = method("RecordReader", "keySize");
+    private static final MethodHandle VALUE_SIZE = method("RecordReader", "valueSize");
+
+    private Internals() {
+    }
+
+    /**
+     * Creates a KVIndex, which is Closeable.
+     *
+     * @param indexPath
+     *        The directory of the index
+     * @param layout
+     *        The name of an IndexLayout
+     *
+     * @return The KVIndex
+     */
+    static AutoCloseable newIndex(String indexPath, String layout) {
+        try {
+            Object index = (Object) NEW_KV_INDEX.invokeExact();
+            SET_INDEX_PATH.invokeExact(index, indexPath);
+            SET_INDEX_LAYOUT.invokeExact(index, enumConstant("IndexLayout", layout));
+            return (AutoCloseable) index;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void initialize(Object index, String filename) {
+        try {
+            INITIALIZE.invokeExact(index, filename);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static byte[] get(Object index, byte[] key) {
+        try {
+            return (byte[]) GET.invokeExact(index, key);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Creates a HashFunc for N keys.
+     *
+     * @param N
+     *        The number of keys
+     * @param algorithm
+     *        The name of a HashAlgorithm
+     *
+     * @return The HashFunc
+     */
+    static Object newHashFunc(long N, String algorithm) {
+        try {
+            return (Object) NEW_HASH_FUNC.invokeExact(N, 1L,
+                                                      enumConstant("HashAlgorithm", algorithm),
+                                                      0L);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static long hash(Object hashFunc, byte[] key) {
+        try {
+            return (long) HASH.invokeExact(hashFunc, key);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Opens a RecordReader, which is Closeable.
+     */
+    static AutoCloseable newRecordReader(String filename) {
+        try {
+            Object reader = (Object) NEW_RECORD_READER.invokeExact(filename);
+            return (AutoCloseable) reader;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean next(Object reader) {
+        try {
+            return (boolean) NEXT.invokeExact(reader);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static short keySize(Object reader) {
+        try {
+            return (short) KEY_SIZE.invokeExact(reader);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static short valueSize(Object reader) {
+        try {
+            return (short) VALUE_SIZE.invokeExact(reader);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object enumConstant(String className, String name) {
+        return Enum.valueOf(load(className).asSubclass(Enum.class), name);
+    }
+
+    private static Class<?> load(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = load(className).getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return erase(LOOKUP.unreflectConstructor(constructor));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle method(String className, String name,
+                                       Class<?>... parameterTypes) {
+        try {
+            Method method = load(className).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return erase(LOOKUP.unreflect(method));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Replaces the types of the unnamed package in the type of the handle with Object.
+     */
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (inUnnamedPackage(type.parameterType(i)))
+                type = type.changeParameterType(i, Object.class);
+        }
+        if (inUnnamedPackage(type.returnType()))
+            type = type.changeReturnType(Object.class);
+        return handle.asType(type);
+    }
+
+    private static boolean inUnnamedPackage(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && type.getName().indexOf('.') < 0;
+    }
+
+    /**
+     * Throws any throwable unchecked, e.g. the IOException of a handle.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> RuntimeException rethrow(Throwable t) throws T {
+        throw (T) t;
+    }
+}
@@ -0,0 +1,88 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of a sequential scan of the data file by RecordReader,
+ * in scans, records and bytes per second.
+ *
+ * The data file is written once per trial, so it is usually read from the page cache,
+ * and the scan is bound by parsing and copying rather than by the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordReaderBenchmark {
+
+    @Param({"1000000"})
+    long n;
+
+    @Param({"16", "100", "1000"})
+    int valueSize;
+
+    private File directory;
+    private File dataFile;
+
+    /**
+     * The records and bytes scanned, reported as rates.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long records;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            records = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = BenchmarkData.createDirectory();
+        dataFile = new File(directory, "data");
+        BenchmarkData.write(dataFile, n, 16, valueSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkData.delete(directory);
+    }
+
+    @Benchmark
+    public long scan(Counters counters) throws Exception {
+        long records = 0;
+        long bytes = 0;
+        try (AutoCloseable reader = Internals.newRecordReader(dataFile.getPath())) {
+            while (Internals.next(reader)) {
+                records++;
+                bytes += 4 + Internals.keySize(reader) + Internals.valueSize(reader);
+            }
+        }
+        counters.records += records;
+        counters.bytes += bytes;
+        return bytes;
+    }
+}
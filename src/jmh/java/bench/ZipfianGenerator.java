@@ -0,0 +1,72 @@
+package bench;
+
+import java.util.Random;
+
+/**
+ * Generates ranks in [0, n) following a Zipfian distribution, where rank 0 is the most
+ * popular, with the algorithm of Gray et al., "Quickly Generating Billion-Record Synthetic
+ * Databases", as used by YCSB.
+ *
+ * The ranks are scrambled by a hash, so the popular records are spread over the data file
+ * instead of being its first records.
+ */
+final class ZipfianGenerator {
+
+    static final double DEFAULT_THETA = 0.99;
+
+    private final long n;
+    private final double theta;
+    private final double alpha;
+    private final double zetaN;
+    private final double eta;
+    private final Random random;
+
+    /**
+     * Constructs the generator. Takes O(n) time to compute zeta(n).
+     *
+     * @param n
+     *        The number of items
+     * @param theta
+     *        The skew, in (0, 1)
+     * @param random
+     *        The source of randomness
+     */
+    ZipfianGenerator(long n, double theta, Random random) {
+        if (n <= 0 || theta <= 0 || theta >= 1)
+            throw new IllegalArgumentException("n = " + n + ", theta = " + theta);
+        this.n = n;
+        this.theta = theta;
+        this.random = random;
+        alpha = 1 / (1 - theta);
+        zetaN = zeta(n, theta);
+        eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the next rank, unscrambled.
+     */
+    long nextRank() {
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1)
+            return 0;
+        if (uz < 1 + Math.pow(0.5, theta))
+            return 1;
+        return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    /**
+     * Returns the next item, i.e. the next rank scrambled over [0, n).
+     */
+    long next() {
+        return Math.floorMod(BenchmarkData.mix(nextRank()), n);
+    }
+}
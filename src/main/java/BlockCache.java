@@ -0,0 +1,237 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A userspace page cache of fixed-size aligned blocks of files, with a memory budget.
+ *
+ * A block is identified by (file id, block number), where the file ids are chosen by the caller.
+ * Reads of cached blocks are lock-free copies from memory.
+ *
+ * Loading is single-flight: concurrent misses of a block wait for one read of it.
+ * A wait for a block being loaded is counted as a miss, as it waits for the read.
+ *
+ * Loaded blocks are kept in a ring of budget / blockSize frames and evicted with CLOCK:
+ * a hit sets the referenced bit of the block, and the clock hand clears the bits
+ * and evicts the first block whose bit is already clear. The hand is an atomic counter,
+ * and a frame is replaced by a CAS, so concurrent misses do not serialize on a lock.
+ */
+class BlockCache {
+
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final int BLOCK_NUMBER_BITS = 36;
+
+    private final int blockSize;
+    private final ConcurrentHashMap<Long, Block> blocks = new ConcurrentHashMap<>();
+
+    // frames of the clock, and the number of frames the hand has passed
+    private final AtomicReferenceArray<Block> ring;
+    private final AtomicLong hand = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructs an empty cache with blocks of DEFAULT_BLOCK_SIZE bytes.
+     *
+     * @param maxBytes
+     *        The memory budget of the blocks in bytes
+     */
+    BlockCache(long maxBytes) {
+        this(maxBytes, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param maxBytes
+     *        The memory budget of the blocks in bytes
+     * @param blockSize
+     *        The size of a block in bytes
+     */
+    BlockCache(long maxBytes, int blockSize) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive");
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("blockSize must be positive");
+        this.blockSize = blockSize;
+        this.ring = new AtomicReferenceArray<>((int) Math.max(1, Math.min(Integer.MAX_VALUE - 8,
+                                                                          maxBytes / blockSize)));
+    }
+
+    /**
+     * Reads bytes of the file at the given position until dst is full, through the cache.
+     * Thread-safe, does not modify the position of the channel.
+     *
+     * @param fileId
+     *        The id of the file in the cache, less than 2^27
+     * @param channel
+     *        The opened file
+     * @param dst
+     *        The destination buffer
+     * @param position
+     *        The file position where the read begins
+     *
+     * @throws IOException
+     *         If I/O errors occur, or the end of file is reached before dst is full.
+     */
+    void read(int fileId, FileChannel channel, ByteBuffer dst, long position)
+            throws IOException {
+        while (dst.hasRemaining()) {
+            long blockNumber = position / blockSize;
+            Block block = getBlock(fileId, channel, blockNumber);
+            int offset = (int) (position - blockNumber * blockSize);
+            int length = Math.min(dst.remaining(), block.length - offset);
+            if (length <= 0)
+                throw new EOFException("End of file: no enough data to read at " + position);
+            dst.put(block.data, offset, length);
+            position += length;
+        }
+    }
+
+    /**
+     * Returns the loaded block, loading it if it is not cached.
+     */
+    private Block getBlock(int fileId, FileChannel channel, long blockNumber)
+            throws IOException {
+        Long key = ((long) fileId << BLOCK_NUMBER_BITS) | blockNumber;
+        Block block = blocks.get(key);
+        if (block != null) {
+            // a block still being loaded by another thread waits for the read
+            if (block.loaded.getCount() != 0)
+                misses.increment();
+            else
+                hits.increment();
+            block.await();
+            block.referenced = true;
+            return block;
+        }
+
+        Block newBlock = new Block(key);
+        block = blocks.putIfAbsent(key, newBlock);
+        if (block != null) {
+            // another thread is loading it, or has just loaded it
+            misses.increment();
+            block.await();
+            block.referenced = true;
+            return block;
+        }
+
+        misses.increment();
+        loads.increment();
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(blockSize);
+            long start = blockNumber * blockSize;
+            while (buf.hasRemaining()) {
+                int read = channel.read(buf, start + buf.position());
+                if (read < 0)
+                    break;
+            }
+            newBlock.data = buf.array();
+            newBlock.length = buf.position();
+        } catch (IOException | RuntimeException e) {
+            blocks.remove(key, newBlock);
+            newBlock.fail(e instanceof IOException ? (IOException) e : new IOException(e));
+            throw e;
+        }
+        newBlock.loaded.countDown();
+        admit(newBlock);
+        return newBlock;
+    }
+
+    /**
+     * Puts a loaded block into the clock, evicting a block if the clock is full.
+     * Lock-free: the frames are claimed by advancing the hand, and replaced by a CAS,
+     * which fails if another thread has replaced the frame meanwhile.
+     */
+    private void admit(Block block) {
+        int frames = ring.length();
+        while (true) {
+            int frame = (int) (hand.getAndIncrement() % frames);
+            Block victim = ring.get(frame);
+            if (victim != null && victim.referenced) {
+                // second chance
+                victim.referenced = false;
+                continue;
+            }
+            if (ring.compareAndSet(frame, victim, block)) {
+                if (victim != null) {
+                    blocks.remove(victim.key, victim);
+                    evictions.increment();
+                }
+                return;
+            }
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of blocks read from the files, i.e. the misses that did not wait
+     * for another read of the block.
+     */
+    long loads() {
+        return loads.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the memory used by the cached blocks.
+     *
+     * @return The size in bytes
+     */
+    long bytes() {
+        return (long) blocks.size() * blockSize;
+    }
+
+    /**
+     * A block of a file, which is being loaded until the latch is released.
+     */
+    private static class Block {
+        final Long key;
+        final CountDownLatch loaded = new CountDownLatch(1);
+        byte[] data;            // visible to the readers after the latch is released
+        int length;             // shorter than the block size at the end of file
+        IOException failure;    // set if loading failed
+        volatile boolean referenced = false;
+
+        Block(Long key) {
+            this.key = key;
+        }
+
+        void fail(IOException failure) {
+            this.failure = failure;
+            loaded.countDown();
+        }
+
+        void await() throws IOException {
+            try {
+                loaded.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while loading a block");
+            }
+            if (failure != null)
+                throw new IOException("Failed to load block", failure);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A blocked Bloom filter over a static set of 64-bit hashes, which answers whether a hash
+ * may be in the set. A hash in the set is always reported, a hash not in the set is reported
+ * with a small probability, the false positive rate.
+ *
+ * The bits are split into blocks of 512 bits, i.e. a cache line. A hash selects one block,
+ * and sets or checks k bits in it, so a lookup touches one cache line
+ * instead of k random ones. It costs a slightly higher false positive rate than
+ * a standard Bloom filter of the same size, e.g. about 1% instead of 0.8% at 10 bits per hash.
+ *
+ * The hashes are remixed first, since the low bits of the hashes of the keys of an index file
+ * are its file id, and the high bits are the fingerprints.
+ *
+ * Thread-safe after construction.
+ */
+class BloomFilter {
+
+    static final int MAX_BITS_PER_HASH = 32;
+    static final int MAX_PROBES = 16;
+
+    private static final int WORDS_PER_BLOCK = 8;   // 512 bits
+
+    private final long[] words;
+    private final int blocks;
+    private final int probes;   // k, the number of bits per hash
+
+    private BloomFilter(long[] words, int probes) {
+        this.words = words;
+        this.blocks = words.length / WORDS_PER_BLOCK;
+        this.probes = probes;
+    }
+
+    /**
+     * Builds the filter over the hashes.
+     *
+     * @param hashes
+     *        The hashes, the first size of which are used
+     * @param size
+     *        The number of hashes
+     * @param bitsPerHash
+     *        The number of bits of the filter per hash, 1 to 32
+     *
+     * @return The filter
+     */
+    static BloomFilter build(long[] hashes, int size, int bitsPerHash) {
+        if (bitsPerHash <= 0 || bitsPerHash > MAX_BITS_PER_HASH)
+            throw new IllegalArgumentException("bitsPerHash must be in [1, "
+                                               + MAX_BITS_PER_HASH + "]");
+        // ln(2) * bits per hash minimizes the false positive rate
+        int probes = (int) Math.max(1, Math.min(MAX_PROBES, Math.round(bitsPerHash * Math.log(2))));
+        long blocks = ((long) size * bitsPerHash + 511) / 512;
+        if (blocks * WORDS_PER_BLOCK > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Too many hashes: " + size);
+        BloomFilter filter = new BloomFilter(new long[(int) blocks * WORDS_PER_BLOCK], probes);
+        for (int i = 0; i < size; i++) {
+            filter.add(hashes[i]);
+        }
+        return filter;
+    }
+
+    private void add(long hash) {
+        long h = mix(hash);
+        int base = block(h) * WORDS_PER_BLOCK;
+        long g = h * 0x9e3779b97f4a7c15L;
+        int x = (int) g;
+        int y = (int) (g >>> 32) | 1;
+        for (int i = 0; i < probes; i++) {
+            int bit = x >>> 23;
+            words[base + (bit >>> 6)] |= 1L << bit;
+            x += y;
+        }
+    }
+
+    /**
+     * Checks whether the hash may be in the set.
+     *
+     * @param hash
+     *        The hash
+     *
+     * @return false if the hash is not in the set, true if it may be
+     */
+    boolean mightContain(long hash) {
+        if (blocks == 0)
+            return false;
+        long h = mix(hash);
+        int base = block(h) * WORDS_PER_BLOCK;
+        long g = h * 0x9e3779b97f4a7c15L;
+        int x = (int) g;
+        int y = (int) (g >>> 32) | 1;
+        for (int i = 0; i < probes; i++) {
+            int bit = x >>> 23;
+            if ((words[base + (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+            x += y;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the block of a remixed hash, in [0, blocks).
+     */
+    private int block(long h) {
+        return (int) (((h >>> 32) * blocks) >>> 32);
+    }
+
+    /**
+     * The finalizer of MurmurHash3.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Returns the probability that a hash not in the set is reported,
+     * computed from the bits set in every block.
+     *
+     * @return The false positive rate, 0 if the filter is empty
+     */
+    double falsePositiveRate() {
+        if (blocks == 0)
+            return 0;
+        double sum = 0;
+        for (int block = 0; block < blocks; block++) {
+            int setBits = 0;
+            for (int i = 0; i < WORDS_PER_BLOCK; i++) {
+                setBits += Long.bitCount(words[block * WORDS_PER_BLOCK + i]);
+            }
+            sum += Math.pow(setBits / 512.0, probes);
+        }
+        return sum / blocks;
+    }
+
+    /**
+     * Returns the size of the filter in memory.
+     *
+     * @return The size in bytes
+     */
+    long memoryBytes() {
+        return (long) words.length * 8;
+    }
+
+    /**
+     * Writes the filter to the output, see read().
+     *
+     * @param out
+     *        The output
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(probes);
+        out.writeInt(blocks);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads a filter written by write().
+     *
+     * @param in
+     *        The input
+     *
+     * @return The filter
+     *
+     * @throws IOException
+     *         If I/O errors occur, or the input is not a valid filter.
+     */
+    static BloomFilter read(DataInput in) throws IOException {
+        int probes = in.readInt();
+        int blocks = in.readInt();
+        if (probes <= 0 || probes > MAX_PROBES || blocks < 0
+            || (long) blocks * WORDS_PER_BLOCK > Integer.MAX_VALUE - 8)
+            throw new IOException("Invalid filter: probes = " + probes + ", blocks = " + blocks);
+        long[] words = new long[blocks * WORDS_PER_BLOCK];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        return new BloomFilter(words, probes);
+    }
+}
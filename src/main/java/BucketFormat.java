@@ -0,0 +1,100 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The format of the buckets in bucketed index files.
+ *
+ * Bucket structure:
+ *  | header | slot 0 | slot 1 | ... | slot (slotsPerBucket - 1) | padding |
+ *  |  1, 2  |              slotsPerBucket * slotSize             |         |
+ *
+ * The header holds the number of used slots, which are the first ones of the bucket,
+ * and an overflow flag in its highest bit. The slots are not linked.
+ *
+ * The bucket of a record is (in-file index / slotsPerBucket). A full bucket overflows
+ * to the next one, and the overflow flag is set when a record whose bucket is this one
+ * or a preceding one is placed after it. So a lookup stops at the first bucket
+ * without the flag. The last bucket never overflows, since buckets are appended
+ * to the end of the index file for the records that do not fit.
+ */
+class BucketFormat {
+
+    final int bucketSize;           // size of a bucket in bytes
+    final SlotFormat slotFormat;    // format of the slots in a bucket
+    final int headerLength;         // size of the header in bytes
+    final int slotsPerBucket;       // number of slots in a bucket
+
+    private final int overflowFlag;
+
+    /**
+     * Constructs the format.
+     *
+     * @param bucketSize
+     *        The size of a bucket in bytes
+     * @param slotFormat
+     *        The format of the slots, which must not be linked
+     */
+    BucketFormat(int bucketSize, SlotFormat slotFormat) {
+        if (slotFormat.linked)
+            throw new IllegalArgumentException("Slots in buckets must not be linked");
+        int slotsPerBucket = (bucketSize - 1) / slotFormat.slotSize;
+        int headerLength = 1;
+        if (slotsPerBucket > 0x7f) {
+            headerLength = 2;
+            slotsPerBucket = (bucketSize - 2) / slotFormat.slotSize;
+        }
+        if (slotsPerBucket <= 0 || slotsPerBucket > 0x7fff)
+            throw new IllegalArgumentException("Invalid bucket size: " + bucketSize);
+        this.bucketSize = bucketSize;
+        this.slotFormat = slotFormat;
+        this.headerLength = headerLength;
+        this.slotsPerBucket = slotsPerBucket;
+        this.overflowFlag = 1 << ((headerLength << 3) - 1);
+    }
+
+    /**
+     * Encodes the header of a bucket into the array.
+     *
+     * @param arr
+     *        The destination array
+     * @param offset
+     *        The offset of the bucket in arr
+     * @param count
+     *        The number of used slots
+     * @param overflowed
+     *        Whether records of this or preceding buckets are placed after the bucket
+     */
+    void encodeHeader(byte[] arr, int offset, int count, boolean overflowed) {
+        int header = count | (overflowed ? overflowFlag : 0);
+        for (int i = headerLength - 1; i >= 0; i--) {
+            arr[offset++] = (byte) (header >>> (i << 3));
+        }
+    }
+
+    /**
+     * Returns the offset of a slot in the bucket.
+     *
+     * @param i
+     *        The index of the slot
+     *
+     * @return The offset in bytes
+     */
+    int slotOffset(int i) {
+        return headerLength + i * slotFormat.slotSize;
+    }
+
+    int count(ByteBuffer bucket) {
+        return header(bucket) & (overflowFlag - 1);
+    }
+
+    boolean overflowed(ByteBuffer bucket) {
+        return (header(bucket) & overflowFlag) != 0;
+    }
+
+    private int header(ByteBuffer bucket) {
+        int header = 0;
+        for (int i = 0; i < headerLength; i++) {
+            header = (header << 8) | (bucket.get(i) & 0xff);
+        }
+        return header;
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * A snapshot of the counters of the value cache of a KVIndex.
+ */
+public class CacheStats {
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long bytes;
+
+    CacheStats(long hitCount, long missCount, long evictionCount, long bytes) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Returns the number of queries answered by the cache.
+     */
+    public long hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of queries not answered by the cache.
+     */
+    public long missCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of entries evicted from the cache.
+     */
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the estimated total bytes of the cached entries.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the ratio of hits to queries, 0 if there is no query.
+     */
+    public double hitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hitCount + ", misses=" + missCount
+               + ", evictions=" + evictionCount + ", bytes=" + bytes + "}";
+    }
+}
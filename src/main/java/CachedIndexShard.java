@@ -0,0 +1,50 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An index shard read through a BlockCache, so that a read of a cached block is a memory copy
+ * instead of a syscall.
+ */
+class CachedIndexShard implements IndexShard {
+
+    private final FileChannel channel;
+    private final BlockCache cache;
+    private final int fileId;
+    private final long size;
+
+    /**
+     * Constructs the shard on an opened channel. The channel is closed with the shard.
+     *
+     * @param channel
+     *        The opened index file
+     * @param cache
+     *        The block cache
+     * @param fileId
+     *        The id of the index file in the cache
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    CachedIndexShard(FileChannel channel, BlockCache cache, int fileId) throws IOException {
+        this.channel = channel;
+        this.cache = cache;
+        this.fileId = fileId;
+        this.size = channel.size();
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        cache.read(fileId, channel, dst, position);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
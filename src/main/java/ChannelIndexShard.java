@@ -0,0 +1,41 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An index shard read with positional reads on a FileChannel, i.e. one syscall per read.
+ */
+class ChannelIndexShard implements IndexShard {
+
+    private final FileChannel channel;
+    private final long size;
+
+    /**
+     * Constructs the shard on an opened channel. The channel is closed with the shard.
+     *
+     * @param channel
+     *        The opened index file
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    ChannelIndexShard(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        KVIndex.readFully(channel, dst, position);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
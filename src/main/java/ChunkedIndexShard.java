@@ -0,0 +1,109 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An index shard held in buffers in memory, so that reading a slot is a memory load
+ * instead of a syscall.
+ *
+ * A ByteBuffer can hold at most 2 GB, so a larger shard is split into
+ * several buffers (chunks) of chunkSize bytes. A read crossing the boundary of two
+ * chunks is served from both of them.
+ *
+ * The buffers are released by GC after the shard is closed.
+ */
+abstract class ChunkedIndexShard implements IndexShard {
+
+    static final int DEFAULT_CHUNK_SIZE = 1 << 30;   // 1 GB
+
+    private final long size;
+    private final int chunkSize;
+    private ByteBuffer[] chunks;
+
+    /**
+     * Constructs the shard.
+     *
+     * @param size
+     *        The size of the shard in bytes
+     * @param chunkSize
+     *        The maximum size of a single chunk
+     */
+    ChunkedIndexShard(long size, int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize must be positive");
+        this.size = size;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Sets the chunks, which are filled with the content of the shard by the subclass.
+     *
+     * @param chunks
+     *        The chunks of chunkSize bytes, except the last one
+     */
+    void setChunks(ByteBuffer[] chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Returns the number of chunks of the shard.
+     *
+     * @return The number of chunks
+     */
+    int chunkCount() {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Returns the size of the i-th chunk.
+     *
+     * @param i
+     *        The index of the chunk
+     *
+     * @return The size in bytes
+     */
+    int chunkSize(int i) {
+        return (int) Math.min(chunkSize, size - (long) i * chunkSize);
+    }
+
+    /**
+     * Returns the position of the i-th chunk in the shard.
+     *
+     * @param i
+     *        The index of the chunk
+     *
+     * @return The position in bytes
+     */
+    long chunkStart(int i) {
+        return (long) i * chunkSize;
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        ByteBuffer[] chunks = this.chunks;
+        if (chunks == null)
+            throw new IOException("Index shard has been closed");
+        if (position < 0 || position + dst.remaining() > size)
+            throw new EOFException("End of shard: no enough data to read at " + position);
+
+        while (dst.hasRemaining()) {
+            // duplicate() so that concurrent reads do not share the buffer position
+            ByteBuffer chunk = chunks[(int) (position / chunkSize)].duplicate();
+            int offset = (int) (position % chunkSize);
+            int length = Math.min(dst.remaining(), chunk.capacity() - offset);
+            chunk.position(offset).limit(offset + length);
+            dst.put(chunk);
+            position += length;
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        chunks = null;
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Rewrites the data file of an initialized KVIndex with the records in index order,
+ * and the addresses in the slots rewritten to match, see KVIndex.clusterData().
+ *
+ * The records are written index file by index file, and in an index file:
+ *  - chained layout: chain by chain, in the order of the table slots
+ *  - bucketed layouts: bucket by bucket, overflow buckets included
+ *  - perfect hash: slot by slot
+ * So the records compared by a query, i.e. those of a chain or a bucket, are adjacent in
+ * the new data file and usually share a page, instead of being scattered over the file.
+ *
+ * The addresses are patched in a copy of the index file, which replaces the index file by
+ * an atomic move once the new data file and the copy are forced. So a failed rewrite leaves
+ * the index file and the opened KVIndex on the original data. The header of the index is
+ * deleted just before the move, and written again for the new data file after it, so
+ * an interruption in between leaves an index that is rebuilt by the next open().
+ */
+class DataClusterer {
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private final KVIndex index;
+    private final SlotFormat slotFormat;
+
+    private FileChannel out;
+    private ByteBuffer outBuf;
+    private long position;      // address of the next record in the new data file
+    private boolean patch;      // whether the addresses are rewritten
+
+    DataClusterer(KVIndex index) {
+        this.index = index;
+        this.slotFormat = index.slotFormat;
+    }
+
+    /**
+     * Writes the records to the new data file, and patches the index files if the new
+     * addresses fit in the slots.
+     *
+     * @param clusteredFile
+     *        The new data file, replaced if it exists
+     *
+     * @return true if the index files are patched and a header is written for the new data
+     *         file, false if the index has to be rebuilt from it
+     *
+     * @throws IOException
+     *         If I/O errors occur, the index file is unchanged if they occur before the move.
+     */
+    boolean cluster(File clusteredFile) throws IOException {
+        patch = true;
+        position = 0;
+        outBuf = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        File indexFile = index.getIndexFile();
+        File patchedFile = getPatchedIndexFile();
+
+        try {
+            Files.copy(indexFile.toPath(), patchedFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+            writeClustered(clusteredFile, patchedFile);
+            if (!patch)
+                return false;
+            index.getHeaderFile().delete();
+            Files.move(patchedFile.toPath(), indexFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            patchedFile.delete();
+        }
+        index.header.withDataFile(clusteredFile).write(index.getHeaderFile());
+        return true;
+    }
+
+    /**
+     * Returns the copy of the index file whose addresses are patched.
+     */
+    File getPatchedIndexFile() {
+        File indexFile = index.getIndexFile();
+        return new File(indexFile.getParentFile(), indexFile.getName() + ".clustering");
+    }
+
+    /**
+     * Writes the records to the new data file, and the patched regions to the copy of
+     * the index file while the new addresses fit in the slots, then forces both.
+     */
+    private void writeClustered(File clusteredFile, File patchedFile) throws IOException {
+        try (FileChannel out = FileChannel.open(clusteredFile.toPath(), StandardOpenOption.WRITE,
+                                                StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel indexChannel = FileChannel.open(patchedFile.toPath(),
+                                                         StandardOpenOption.WRITE)) {
+            this.out = out;
+            long[] regions = IndexFile.readDirectory(index.indexFile, index.f);
+            for (int fileId = 0; fileId < index.shards.length; fileId++) {
+                IndexShard shard = index.shards[fileId];
+                if (shard.size() > Integer.MAX_VALUE - 8)
+                    throw new IOException("Index file " + fileId + " is too large to cluster: "
+                                          + shard.size() + " bytes");
+                ByteBuffer region = ByteBuffer.allocate((int) shard.size());
+                shard.read(region, 0);
+                region.clear();
+                clusterRegion(region);
+                if (patch) {
+                    region.clear();
+                    long offset = regions[2 * fileId];
+                    while (region.hasRemaining()) {
+                        offset += indexChannel.write(region, offset);
+                    }
+                }
+            }
+            flush();
+            out.force(false);
+            indexChannel.force(false);
+        } finally {
+            this.out = null;
+            outBuf = null;
+        }
+    }
+
+    /**
+     * Writes the records of an index file in index order, and rewrites their addresses.
+     */
+    private void clusterRegion(ByteBuffer region) throws IOException {
+        int slotSize = slotFormat.slotSize;
+        if (index.perfectHashes != null) {
+            for (int offset = 0; offset + slotSize <= region.capacity(); offset += slotSize) {
+                copyRecord(region, offset);
+            }
+        } else if (index.bucketFormat != null) {
+            BucketFormat bucketFormat = index.bucketFormat;
+            int bucketSize = bucketFormat.bucketSize;
+            for (int bucket = 0; bucket + bucketSize <= region.capacity(); bucket += bucketSize) {
+                region.limit(bucket + bucketSize).position(bucket);
+                int count = bucketFormat.count(region.slice());
+                region.clear();
+                for (int i = 0; i < count; i++) {
+                    copyRecord(region, bucket + bucketFormat.slotOffset(i));
+                }
+            }
+        } else {
+            // the appended slots are reached from the table slots through the chains
+            long tableSlots = Math.min(index.slotsPerFile(), region.capacity() / slotSize);
+            for (int slot = 0; slot < tableSlots; slot++) {
+                int offset = slot * slotSize;
+                if (isEmpty(region, offset, slotSize))
+                    continue;
+                while (true) {
+                    copyRecord(region, offset);
+                    int next = slotFormat.nextSlotId(region, offset);
+                    if (next == 0)
+                        break;
+                    offset = next * slotSize;
+                }
+            }
+        }
+    }
+
+    private static boolean isEmpty(ByteBuffer region, int offset, int slotSize) {
+        for (int i = 0; i < slotSize; i++) {
+            if (region.get(offset + i) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the record of the slot at offset to the new data file, and rewrites its address.
+     */
+    private void copyRecord(ByteBuffer region, int offset) throws IOException {
+        int keySize = slotFormat.keySize(region, offset) & 0xffff;
+        int valueSize = slotFormat.valueSize(region, offset) & 0xffff;
+        long address = slotFormat.address(region, offset);
+        int recordSize = Record.keySizeLength + keySize + Record.valueSizeLength + valueSize;
+        if (outBuf.remaining() < recordSize)
+            flush();
+        outBuf.limit(outBuf.position() + recordSize);
+        KVIndex.readFully(index.dataChannel, outBuf, address);
+        outBuf.limit(outBuf.capacity());
+        // the address field is sized to the largest old address, which a new address may
+        // exceed, e.g. if records are not in hash order; the index is rebuilt then
+        if (patch && SlotFormat.bitsOf(position) > slotFormat.addressBits)
+            patch = false;
+        if (patch)
+            slotFormat.setAddress(region.array(), offset, position);
+        position += recordSize;
+    }
+
+    private void flush() throws IOException {
+        outBuf.flip();
+        while (outBuf.hasRemaining()) {
+            out.write(outBuf);
+        }
+        outBuf.clear();
+    }
+}
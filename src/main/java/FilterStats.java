@@ -0,0 +1,63 @@
+/**
+ * A snapshot of the counters of the filters of a KVIndex.
+ */
+public class FilterStats {
+    private final long negativeCount;
+    private final long falsePositiveCount;
+    private final double expectedFalsePositiveRate;
+    private final long bytes;
+
+    FilterStats(long negativeCount, long falsePositiveCount, double expectedFalsePositiveRate,
+                long bytes) {
+        this.negativeCount = negativeCount;
+        this.falsePositiveCount = falsePositiveCount;
+        this.expectedFalsePositiveRate = expectedFalsePositiveRate;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Returns the number of queries of absent keys answered by the filters,
+     * without reading the index files.
+     */
+    public long negativeCount() {
+        return negativeCount;
+    }
+
+    /**
+     * Returns the number of queries of absent keys passed by the filters,
+     * which read the index files and found no record of the key.
+     */
+    public long falsePositiveCount() {
+        return falsePositiveCount;
+    }
+
+    /**
+     * Returns the ratio of false positives to queries of absent keys so far,
+     * 0 if there is no such query.
+     */
+    public double falsePositiveRate() {
+        long total = negativeCount + falsePositiveCount;
+        return total == 0 ? 0 : (double) falsePositiveCount / total;
+    }
+
+    /**
+     * Returns the false positive rate expected from the bits set in the filters.
+     */
+    public double expectedFalsePositiveRate() {
+        return expectedFalsePositiveRate;
+    }
+
+    /**
+     * Returns the total size of the filters in memory.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "FilterStats{negatives=" + negativeCount + ", falsePositives=" + falsePositiveCount
+               + ", expectedFalsePositiveRate=" + expectedFalsePositiveRate
+               + ", bytes=" + bytes + "}";
+    }
+}
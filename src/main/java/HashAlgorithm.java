@@ -0,0 +1,261 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The 64-bit hash algorithms that HashFunc can use.
+ *
+ * Every algorithm can hash a key from a byte array or from a region of a ByteBuffer,
+ * giving the same result, and does not allocate memory.
+ * The id of an algorithm is persisted with the index, so it must never change.
+ */
+public enum HashAlgorithm {
+
+    /**
+     * The DJB hash used by the first versions of KVIndex.
+     * The key is viewed as big-endian longs, left-padded with zeros to a multiple of 8 bytes,
+     * and mixed with hash * 33 + l. Fast, but its low bits are poorly distributed.
+     *
+     * The sum is linear in its start value, so a seed added to it would shift the hashes of
+     * all keys of a length alike and keep their collisions. A nonzero seed is mixed in by the
+     * avalanche of xxHash64 instead, and seed 0 gives the hash of the first versions.
+     */
+    DJB(0) {
+        @Override
+        long hash64(byte[] key, long seed) {
+            long hash = 5381;
+            long l = 0;
+            int length = key.length;
+            for (int i = 0; i < length; i++) {
+                l = (l << 8) | (key[i] & 0xff);
+                // a long ends when the number of remaining bytes is a multiple of 8
+                if (((length - i - 1) & 7) == 0) {
+                    hash = (hash << 5) + hash + l;
+                    l = 0;
+                }
+            }
+            return seed == 0 ? hash : XXHash64.avalanche(hash ^ seed);
+        }
+
+        @Override
+        long hash64(ByteBuffer buf, int offset, int length, long seed) {
+            long hash = 5381;
+            long l = 0;
+            for (int i = 0; i < length; i++) {
+                l = (l << 8) | (buf.get(offset + i) & 0xff);
+                if (((length - i - 1) & 7) == 0) {
+                    hash = (hash << 5) + hash + l;
+                    l = 0;
+                }
+            }
+            return seed == 0 ? hash : XXHash64.avalanche(hash ^ seed);
+        }
+    },
+
+    /**
+     * xxHash64 (https://github.com/Cyan4973/xxHash), reading little-endian longs
+     * straight from the key. High quality in all bits.
+     */
+    XXH64(1) {
+        @Override
+        long hash64(byte[] key, long seed) {
+            return XXHash64.hash(key, seed);
+        }
+
+        @Override
+        long hash64(ByteBuffer buf, int offset, int length, long seed) {
+            return XXHash64.hash(buf, offset, length, seed);
+        }
+    };
+
+    final int id;
+
+    HashAlgorithm(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Hashes the key.
+     *
+     * @param key
+     *        Key of hash function
+     * @param seed
+     *        The seed of the hash
+     * @return The 64-bit hash of key
+     */
+    abstract long hash64(byte[] key, long seed);
+
+    /**
+     * Hashes the key in a region of the buffer with absolute gets.
+     * Thread-safe if the buffer is not modified concurrently.
+     *
+     * @param buf
+     *        The buffer holding the key
+     * @param offset
+     *        The offset of the key in buf
+     * @param length
+     *        The length of the key
+     * @param seed
+     *        The seed of the hash
+     * @return The 64-bit hash of key
+     */
+    abstract long hash64(ByteBuffer buf, int offset, int length, long seed);
+
+    /**
+     * Returns the algorithm of the given id.
+     *
+     * @param id
+     *        The persisted id
+     * @return The algorithm
+     *
+     * @throws IllegalArgumentException
+     *         If there is no algorithm of the id.
+     */
+    static HashAlgorithm of(int id) {
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.id == id)
+                return algorithm;
+        }
+        throw new IllegalArgumentException("Unknown hash algorithm id: " + id);
+    }
+
+    /**
+     * The xxHash64 algorithm.
+     */
+    private static class XXHash64 {
+        private static final long PRIME1 = 0x9E3779B185EBCA87L;
+        private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long PRIME3 = 0x165667B19E3779F9L;
+        private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+        private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+        static long hash(byte[] key, long seed) {
+            int length = key.length;
+            int i = 0;
+            long h;
+            if (length >= 32) {
+                long v1 = seed + PRIME1 + PRIME2;
+                long v2 = seed + PRIME2;
+                long v3 = seed;
+                long v4 = seed - PRIME1;
+                for (int limit = length - 32; i <= limit; i += 32) {
+                    v1 = round(v1, getLongLE(key, i));
+                    v2 = round(v2, getLongLE(key, i + 8));
+                    v3 = round(v3, getLongLE(key, i + 16));
+                    v4 = round(v4, getLongLE(key, i + 24));
+                }
+                h = merge(v1, v2, v3, v4);
+            } else {
+                h = seed + PRIME5;
+            }
+            h += length;
+
+            for (; i + 8 <= length; i += 8) {
+                h = mixLong(h, getLongLE(key, i));
+            }
+            if (i + 4 <= length) {
+                h = mixInt(h, getIntLE(key, i));
+                i += 4;
+            }
+            for (; i < length; i++) {
+                h = mixByte(h, key[i]);
+            }
+            return avalanche(h);
+        }
+
+        static long hash(ByteBuffer buf, int offset, int length, long seed) {
+            boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+            int i = offset;
+            int end = offset + length;
+            long h;
+            if (length >= 32) {
+                long v1 = seed + PRIME1 + PRIME2;
+                long v2 = seed + PRIME2;
+                long v3 = seed;
+                long v4 = seed - PRIME1;
+                for (int limit = end - 32; i <= limit; i += 32) {
+                    v1 = round(v1, getLongLE(buf, i, bigEndian));
+                    v2 = round(v2, getLongLE(buf, i + 8, bigEndian));
+                    v3 = round(v3, getLongLE(buf, i + 16, bigEndian));
+                    v4 = round(v4, getLongLE(buf, i + 24, bigEndian));
+                }
+                h = merge(v1, v2, v3, v4);
+            } else {
+                h = seed + PRIME5;
+            }
+            h += length;
+
+            for (; i + 8 <= end; i += 8) {
+                h = mixLong(h, getLongLE(buf, i, bigEndian));
+            }
+            if (i + 4 <= end) {
+                int k = buf.getInt(i);
+                h = mixInt(h, bigEndian ? Integer.reverseBytes(k) : k);
+                i += 4;
+            }
+            for (; i < end; i++) {
+                h = mixByte(h, buf.get(i));
+            }
+            return avalanche(h);
+        }
+
+        private static long round(long acc, long input) {
+            return Long.rotateLeft(acc + input * PRIME2, 31) * PRIME1;
+        }
+
+        private static long mergeRound(long acc, long v) {
+            return (acc ^ round(0, v)) * PRIME1 + PRIME4;
+        }
+
+        private static long merge(long v1, long v2, long v3, long v4) {
+            long h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                     + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            return mergeRound(h, v4);
+        }
+
+        private static long mixLong(long h, long k) {
+            return Long.rotateLeft(h ^ round(0, k), 27) * PRIME1 + PRIME4;
+        }
+
+        private static long mixInt(long h, int k) {
+            return Long.rotateLeft(h ^ ((k & 0xffffffffL) * PRIME1), 23) * PRIME2 + PRIME3;
+        }
+
+        private static long mixByte(long h, byte b) {
+            return Long.rotateLeft(h ^ ((b & 0xff) * PRIME5), 11) * PRIME1;
+        }
+
+        private static long avalanche(long h) {
+            h ^= h >>> 33;
+            h *= PRIME2;
+            h ^= h >>> 29;
+            h *= PRIME3;
+            return h ^ (h >>> 32);
+        }
+
+        private static long getLongLE(byte[] arr, int i) {
+            return (arr[i] & 0xffL)
+                   | (arr[i + 1] & 0xffL) << 8
+                   | (arr[i + 2] & 0xffL) << 16
+                   | (arr[i + 3] & 0xffL) << 24
+                   | (arr[i + 4] & 0xffL) << 32
+                   | (arr[i + 5] & 0xffL) << 40
+                   | (arr[i + 6] & 0xffL) << 48
+                   | (arr[i + 7] & 0xffL) << 56;
+        }
+
+        private static int getIntLE(byte[] arr, int i) {
+            return (arr[i] & 0xff)
+                   | (arr[i + 1] & 0xff) << 8
+                   | (arr[i + 2] & 0xff) << 16
+                   | (arr[i + 3] & 0xff) << 24;
+        }
+
+        private static long getLongLE(ByteBuffer buf, int i, boolean bigEndian) {
+            long l = buf.getLong(i);
+            return bigEndian ? Long.reverseBytes(l) : l;
+        }
+    }
+}
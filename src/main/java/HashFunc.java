@@ -1,16 +1,26 @@
 import java.nio.ByteBuffer;
 
 /**
- * A DJB hash function that maps key(bytes[], <= 4096 bytes) to an address(long).
+ * A hash function that maps key(bytes[], <= 4096 bytes) to an address(long).
  *
- * The capacity is set to the nearest upper 2^k to (N / preferred_load_factor).
+ * The 64-bit hash is computed by a pluggable HashAlgorithm with a seed,
+ * by default xxHash64 with seed 0.
+ *
+ * The capacity is set to the nearest upper 2^k to (N / preferred_load_factor),
+ * the load factor is 0.5 by default.
+ *
+ * The unmasked hash of a key does not depend on the capacity, so keys can be hashed
+ * with hash64() before N is known, and mapped to slots with mask() afterwards.
  */
 class HashFunc {
     long N;                 // size of the set of keys
     long capacity;          // capacity of slots
-    int loadFactorInv = 2;  // the reciprocal of preferred load factor
+    final double loadFactor;        // preferred load factor, the max of N / capacity
+    final HashAlgorithm algorithm;  // algorithm of the 64-bit hash
+    final long seed;                // seed of the 64-bit hash
 
     static final long MAX_CAPACITY = 0x8000000000L; // 2^40
+    static final double DEFAULT_LOAD_FACTOR = 0.5;
 
 
     /**
@@ -19,22 +29,77 @@ class HashFunc {
      * @param N The size of the set of keys
      */
     HashFunc(long N) {
+        this(N, 1);
+    }
+
+    /**
+     * In the constructor, calculate the capacity, which is at least minCapacity.
+     *
+     * @param N
+     *        The size of the set of keys
+     * @param minCapacity
+     *        The minimum capacity, must be a power of 2
+     */
+    HashFunc(long N, long minCapacity) {
+        this(N, minCapacity, HashAlgorithm.XXH64, 0);
+    }
+
+    /**
+     * In the constructor, calculate the capacity, which is at least minCapacity.
+     *
+     * @param N
+     *        The size of the set of keys
+     * @param minCapacity
+     *        The minimum capacity, must be a power of 2
+     * @param algorithm
+     *        The algorithm of the 64-bit hash
+     * @param seed
+     *        The seed of the 64-bit hash
+     */
+    HashFunc(long N, long minCapacity, HashAlgorithm algorithm, long seed) {
+        this(N, minCapacity, algorithm, seed, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * In the constructor, calculate the capacity, which is at least minCapacity.
+     *
+     * @param N
+     *        The size of the set of keys
+     * @param minCapacity
+     *        The minimum capacity, must be a power of 2
+     * @param algorithm
+     *        The algorithm of the 64-bit hash
+     * @param seed
+     *        The seed of the 64-bit hash
+     * @param loadFactor
+     *        The preferred load factor, in (0, 1]
+     */
+    HashFunc(long N, long minCapacity, HashAlgorithm algorithm, long seed, double loadFactor) {
+        if (Long.bitCount(minCapacity) != 1)
+            throw new IllegalArgumentException("minCapacity must be a power of 2");
+        if (!(loadFactor > 0 && loadFactor <= 1))
+            throw new IllegalArgumentException("loadFactor must be in (0, 1]");
         this.N = N;
+        this.algorithm = algorithm;
+        this.seed = seed;
+        this.loadFactor = loadFactor;
+        double slots = Math.max(1, N) / loadFactor;
         capacity = 1;
-        while (capacity <= MAX_CAPACITY && capacity < N)
+        while (capacity <= MAX_CAPACITY && capacity < slots)
             capacity <<= 1;
 
-        capacity *= loadFactorInv;
+        capacity = Math.max(capacity, minCapacity);
         if (capacity > MAX_CAPACITY || capacity < 0) {
             capacity = MAX_CAPACITY;
             Log.logw("Hash function use MAX_CAPACITY");
         }
 
-        Log.logi("Hash capacity = " + capacity);
+        Log.logi("Hash algorithm = " + algorithm + ", seed = " + seed
+                 + ", capacity = " + capacity);
     }
 
     /**
-     * DJB hash function.
+     * Hash function.
      * Thread-safe.
      *
      * @param key
@@ -42,23 +107,46 @@ class HashFunc {
      * @return The hashcode of key
      */
     long hash(byte[] key) {
-        long hash = 5381;
-
-        // convert byte[] to long[]
-        long[] longArr = new long[(key.length + 7) >> 3];
-        int padding = (longArr.length << 3) - key.length;
-        ByteBuffer buf = ByteBuffer.allocate(padding + key.length)
-                                   .put(new byte[padding])
-                                   .put(key);
-        buf.flip();
-        buf.asLongBuffer().get(longArr);
-
-        // calculate hash code
-        for (long l : longArr) {
-            hash = (hash << 5) + hash + l;
-        }
+        return mask(hash64(key));
+    }
 
+    /**
+     * Maps an unmasked hash to the hashcode.
+     *
+     * @param hash
+     *        The unmasked hash returned by hash64()
+     * @return The hashcode
+     */
+    long mask(long hash) {
         // return the lowest k bits as hash code
         return hash & (capacity - 1);
     }
+
+    /**
+     * Hash function without masking by capacity.
+     * Thread-safe.
+     *
+     * @param key
+     *        Key of hash function
+     * @return The unmasked hash of key
+     */
+    long hash64(byte[] key) {
+        return algorithm.hash64(key, seed);
+    }
+
+    /**
+     * Hash function without masking by capacity, reading the key from a buffer.
+     * Thread-safe if the buffer is not modified concurrently.
+     *
+     * @param buf
+     *        The buffer holding the key
+     * @param offset
+     *        The offset of the key in buf
+     * @param length
+     *        The length of the key
+     * @return The unmasked hash of key
+     */
+    long hash64(ByteBuffer buf, int offset, int length) {
+        return algorithm.hash64(buf, offset, length, seed);
+    }
 }
@@ -0,0 +1,1039 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds the index files of a KVIndex from the data file.
+ *
+ * The index file of a record is fixed by (hashcode & fileIdMask), so the 2^f index files
+ * are independent of each other. The builder first scans the data file once and partitions
+ * the records by index file, then builds the index files in parallel on a ForkJoinPool.
+ *
+ * The data file is read once per build. The records are partitioned by their unmasked hashes,
+ * which do not depend on the capacity, and N is counted during the scan.
+ * The hash function is sized after the scan, its capacity is at least 2^f so that
+ * the file id of a record does not change.
+ *
+ * The chain lengths and the sizes of the index files are collected while the index files
+ * are written, see IndexStats. If the 99th percentile of the chain lengths exceeds its limit,
+ * the index is rebuilt with a doubled capacity from the partitions of the last scan, since
+ * the hashes do not depend on the capacity. If the longest chain exceeds its limit, or the
+ * capacity cannot grow, the index is rebuilt with another seed, which rehashes every key and
+ * so rescans the data file. Chains that are long for a single seed are rare, so a rebuild is
+ * rarely needed more than once.
+ *
+ * Partitioned records are buffered in memory up to the memory budget.
+ * When the budget runs out, all partitions are spilled to temporary files.
+ * While a rebuild may reuse them, the partitions are kept until the next scan or the end
+ * of the build, so their buffered records take their memory through the whole build.
+ *
+ * An index file is built from all of its records in memory, so the budget also bounds
+ * the index files built at the same time: an index file is built only while its records,
+ * their sort arrays, the index files being built and the records still buffered fit in it.
+ * An index file that does not fit alone is built when no other one is, so the peak memory
+ * is the larger of the budget and the largest index file. The write buffers take at most
+ * budget / threads each on top of it.
+ *
+ * An index file is built in memory: the records are sorted by in-file index,
+ * so the slots can be generated in file order, i.e. the slots addressed by hashcode
+ * followed by the slots appended for collisions. The size of the file is known before
+ * it is written, so a region of that size is allocated in the single index file (see IndexFile),
+ * and written sequentially with large writes, in a single write if it fits in the write buffer.
+ * Collisions are chained in data file order.
+ *
+ * In a bucketed layout, the buckets are generated in file order in the same way.
+ * Records are placed in the order of their buckets, so a record that does not fit
+ * in its bucket goes to the first following bucket with a free slot, and the buckets
+ * in between are marked overflowed. Buckets are appended for the records that do not fit
+ * in the last bucket addressed by hashcode.
+ *
+ * With perfect hashing, a minimal perfect hash function is built over the unmasked hashes
+ * of an index file, and the records are sorted by their slot ids to write the dense slots.
+ */
+class IndexBuilder {
+
+    private static final int MIN_WRITE_BUFFER = 1 << 16;    // 64 KB
+    private static final int MAX_WRITE_BUFFER = 1 << 30;    // 1 GB
+
+    // bytes of the sort keys, in-file indexes and bucket ids of a record being built
+    private static final int SORT_BYTES_PER_RECORD = 8 + 8 + 8;
+
+    // distance between the seeds of successive rebuilds, the golden ratio of 2^64
+    private static final long SEED_INCREMENT = 0x9e3779b97f4a7c15L;
+
+    private final KVIndex index;
+    private final int threads;
+    private final long memoryBudget;
+
+    // records of each index file, indexed by file id
+    private ShardPartition[] partitions;
+
+    // bytes of the buffered records
+    private long bufferedBytes;
+
+    // directory of the spilled partitions
+    private File spillDir;
+
+    // maximums of the records, to size the fields of the slots
+    private long maxKeySize;
+    private long maxAddress;
+    private long maxValueSize;
+    private long[] partitionSizes;  // including the spilled records
+    private long[] partitionBytes;  // bytes of the records in memory, including the spilled ones
+
+    // whether the partitions are kept after the index files are built, for a rebuild
+    // with a larger capacity
+    private boolean keepPartitions;
+
+    // estimated bytes of the shards being built and the records still buffered,
+    // and the number of shards being built, guarded by this
+    private long memoryInUse;
+    private int shardsBuilding;
+
+    // chain lengths of the records of the built index files, see IndexStats
+    private long[] chainLengthCounts;
+    private int maxChainLength;
+
+    // seed of the hash function of the build
+    private long seed;
+
+    // the index file being written
+    private IndexFile.Writer indexFile;
+
+    /**
+     * Constructs a builder for the index.
+     *
+     * @param index
+     *        The index to be built, its N, hasher, masks and formats are set by the builder
+     * @param threads
+     *        The number of threads used to build index files
+     * @param memoryBudget
+     *        The memory used to buffer records, in bytes
+     */
+    IndexBuilder(KVIndex index, int threads, long memoryBudget) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads must be positive");
+        if (memoryBudget <= 0)
+            throw new IllegalArgumentException("memoryBudget must be positive");
+        this.index = index;
+        this.threads = threads;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Creates the index files and index for every record in the data file.
+     *
+     * @param filename
+     *        The filename of data.
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     * @throws InvalidDataFormatException
+     *         If the data file has invalid format.
+     */
+    void build(String filename) throws IOException, InvalidDataFormatException {
+        Log.logi("Begin creating index with " + threads + " threads.");
+        long startTime = System.currentTimeMillis();
+        spillDir = new File(index.indexPath, "spill");
+        // the times of the phases add up over the rebuilds
+        index.metrics.scanMillis = 0;
+        index.metrics.indexWriteMillis = 0;
+
+        // rebuild with a doubled capacity while the tail of the chain lengths is too long,
+        // and with another seed while the chains are too long
+        seed = 0;
+        long minCapacity = 1L << index.f;
+        boolean scan = true;
+        try {
+            for (int rebuilds = 0; ; rebuilds++) {
+                // a perfect hash has no chains to shorten
+                keepPartitions = index.perfectHashes == null && index.p99ChainLength > 0
+                                 && rebuilds < index.maxRebuilds;
+                IndexStats stats = buildIndex(filename, minCapacity, rebuilds, scan);
+                index.indexStats = stats;
+                Log.logi("Index built, " + stats + ".");
+
+                int maxLength = stats.maxChainLength();
+                int p99Length = stats.chainLengthPercentile(99);
+                boolean maxExceeded = index.maxChainLength > 0
+                                      && maxLength > index.maxChainLength;
+                boolean p99Exceeded = index.p99ChainLength > 0
+                                      && p99Length > index.p99ChainLength;
+                if (!maxExceeded && !p99Exceeded)
+                    break;
+                if (rebuilds >= index.maxRebuilds) {
+                    Log.logw("Chain lengths exceed the limits after " + rebuilds
+                             + " rebuilds, max = " + maxLength + ", p99 = " + p99Length
+                             + ", keeping the index.");
+                    break;
+                }
+                boolean grow = p99Exceeded && index.hasher.capacity < HashFunc.MAX_CAPACITY;
+                if (grow)
+                    minCapacity = index.hasher.capacity << 1;
+                scan = maxExceeded || !grow;
+                if (scan)
+                    seed = SEED_INCREMENT * (rebuilds + 1);
+                Log.logw("Chain lengths exceed the limits, max = " + maxLength + ", p99 = "
+                         + p99Length + ", rebuilding index with seed = " + seed
+                         + ", min capacity = " + minCapacity
+                         + (scan ? "." : ", from the partitioned records."));
+            }
+        } finally {
+            partitions = null;
+            partitionSizes = null;
+            partitionBytes = null;
+            deleteSpillFiles();
+        }
+
+        if (index.perfectHashes != null) {
+            long bytes = 0;
+            for (PerfectHash perfectHash : index.perfectHashes) {
+                bytes += perfectHash.memoryBytes();
+            }
+            Log.logi("Perfect hash functions use " + bytes + " bytes, "
+                     + (index.N == 0 ? 0 : (double) bytes * 8 / index.N) + " bits per key.");
+        }
+        if (index.filters != null) {
+            long bytes = 0;
+            for (BloomFilter filter : index.filters) {
+                bytes += filter.memoryBytes();
+            }
+            Log.logi("Filters use " + bytes + " bytes, false positive rate = "
+                     + KVIndex.expectedFalsePositiveRate(index.filters) + ".");
+        }
+        Log.logi("Index created, used " + (System.currentTimeMillis() - startTime) + "ms.");
+    }
+
+    /**
+     * Builds the index files with the current seed, from a new scan of the data file or
+     * from the partitions kept by the last build.
+     *
+     * @param filename
+     *        The filename of data.
+     * @param minCapacity
+     *        The min capacity of the hash function
+     * @param rebuilds
+     *        The number of builds before this one
+     * @param scan
+     *        Whether the data file is scanned, false to reuse the partitions of the last build,
+     *        which must have been kept and hashed with the same seed
+     *
+     * @return The statistics of the built index
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     * @throws InvalidDataFormatException
+     *         If the data file has invalid format.
+     */
+    private IndexStats buildIndex(String filename, long minCapacity, int rebuilds, boolean scan)
+            throws IOException, InvalidDataFormatException {
+        long startTime = System.currentTimeMillis();
+        try {
+            if (scan) {
+                index.N = partition(filename);
+                long scanMillis = System.currentTimeMillis() - startTime;
+                index.metrics.scanMillis += scanMillis;
+                Log.logi("N = " + index.N + ", records partitioned, used " + scanMillis + "ms.");
+            }
+
+            index.hasher = new HashFunc(index.N, minCapacity, index.hashAlgorithm, seed,
+                                        index.loadFactor);
+            index.calculateMask();
+            long[] shardSizes = partitionSizes.clone();
+            chainLengthCounts = new long[IndexStats.MAX_COUNTED_LENGTH + 1];
+            maxChainLength = 0;
+
+            long maxPartitionSize = 0;
+            for (long size : partitionSizes) {
+                maxPartitionSize = Math.max(maxPartitionSize, size);
+            }
+            // slot ids of a chained index file are less than the table slots plus the collisions
+            long maxSlotId = Math.min(index.slotsPerFile() + maxPartitionSize, Integer.MAX_VALUE);
+            index.sizeSlots(maxKeySize, maxAddress, maxValueSize, maxSlotId);
+            Log.logi("Slot size = " + index.slotSize + " bytes.");
+
+            startBuildingShards();
+            long writeStartTime = System.currentTimeMillis();
+            try (IndexFile.Writer indexFile = index.createIndexFile()) {
+                this.indexFile = indexFile;
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    pool.invoke(new BuildTask(0, partitions.length));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                } finally {
+                    pool.shutdown();
+                }
+                indexFile.finish();
+            }
+            index.metrics.indexWriteMillis += System.currentTimeMillis() - writeStartTime;
+            return new IndexStats(chainLengthCounts, maxChainLength, shardSizes,
+                                  index.hasher.capacity, seed, index.loadFactor, rebuilds);
+        } finally {
+            indexFile = null;
+            chainLengthCounts = null;
+        }
+    }
+
+    /**
+     * Scans the data file, partitions the records by index file,
+     * and finds the maximums of the records to size the slots.
+     *
+     * @param filename
+     *        The filename of data.
+     *
+     * @return The number of records
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     * @throws InvalidDataFormatException
+     *         If the data file has invalid format.
+     */
+    private long partition(String filename) throws IOException, InvalidDataFormatException {
+        // the files spilled by the last scan are appended to otherwise
+        deleteSpillFiles();
+        long fileIdMask = (1 << index.f) - 1;
+        long count = 0;
+        int inlineThreshold = index.inlineThreshold;
+        partitions = new ShardPartition[1 << index.f];
+        partitionSizes = new long[partitions.length];
+        partitionBytes = new long[partitions.length];
+        bufferedBytes = 0;
+        maxKeySize = maxAddress = maxValueSize = 0;
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new ShardPartition(inlineThreshold);
+        }
+
+        try (RecordReader reader = new RecordReader(filename)) {
+            // records are hashed in the read buffer, without copying the keys
+            ByteBuffer buf = reader.buffer();
+            HashAlgorithm algorithm = index.hashAlgorithm;
+            while (reader.next()) {
+                long hash = algorithm.hash64(buf, reader.keyOffset(), reader.keySize(), seed);
+                int fileId = (int) (hash & fileIdMask);
+                ShardPartition partition = partitions[fileId];
+                int inlineBytes = partition.inlineSize;
+                partition.add(hash, reader.address(), reader.keySize(), reader.valueSize(),
+                              buf, reader.keyOffset(), reader.valueOffset());
+                partitionSizes[fileId]++;
+                partitionBytes[fileId] += ShardPartition.ENTRY_BYTES
+                                          + partition.inlineSize - inlineBytes;
+                bufferedBytes += partition.inlineSize - inlineBytes;
+                maxKeySize = Math.max(maxKeySize, reader.keySize() & 0xffff);
+                maxAddress = Math.max(maxAddress, reader.address());
+                maxValueSize = Math.max(maxValueSize, reader.valueSize() & 0xffff);
+                count++;
+                bufferedBytes += ShardPartition.ENTRY_BYTES;
+                if (bufferedBytes > memoryBudget)
+                    spill();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Appends the buffered records of all partitions to their spill files,
+     * and releases the buffers.
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    private void spill() throws IOException {
+        Log.logi("Memory budget used up, spilled " + bufferedBytes + " bytes.");
+        spillDir.mkdirs();
+        bufferedBytes = 0;
+        for (int i = 0; i < partitions.length; i++) {
+            ShardPartition partition = partitions[i];
+            if (partition.size > 0) {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(getSpillFile(i), true), 1 << 16))) {
+                    partition.writeTo(out);
+                }
+                partitions[i] = new ShardPartition(partition.inlineThreshold);
+            }
+        }
+    }
+
+    /**
+     * Builds the index file of the given id from its partition.
+     *
+     * @param fileId
+     *        The id of the index file
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    private void buildShard(int fileId) throws IOException {
+        ShardPartition partition = loadPartition(fileId);
+        if (!keepPartitions)
+            partitions[fileId] = null;
+        if (index.filters != null)
+            index.filters[fileId] = BloomFilter.build(partition.hashes, partition.size,
+                                                      index.filterBitsPerKey);
+        if (index.perfectHashes != null) {
+            buildPerfectShard(fileId, partition);
+            return;
+        }
+
+        // slot ids of a chained index file are ints, and the in-file indexes of a bucketed one
+        // must fit in the sort keys
+        long tableSlots = index.slotsPerFile();
+        long maxTableSlots = index.bucketFormat != null ? 1L << 32 : Integer.MAX_VALUE;
+        if (tableSlots > maxTableSlots)
+            throw new IOException("Too many slots in index file " + fileId + ": " + tableSlots
+                                  + ", use more shard bits or a higher load factor");
+
+        // sort by in-file index, then by position in the data file
+        // infileIndex < tableSlots <= 2^32 and size < 2^31, so the key fits in a long
+        long[] infileIndexes = new long[partition.size];
+        long[] order = new long[partition.size];
+        for (int i = 0; i < partition.size; i++) {
+            infileIndexes[i] = index.hasher.mask(partition.hashes[i]) >>> index.f;
+            order[i] = (infileIndexes[i] << 31) | i;
+        }
+        Arrays.sort(order);
+
+        if (index.bucketFormat != null) {
+            buildBucketedShard(fileId, partition, infileIndexes, order);
+            return;
+        }
+
+        int slotSize = index.slotSize;
+        long totalSlots = tableSlots + countCollisions(infileIndexes, order);
+        if (totalSlots > Integer.MAX_VALUE)
+            throw new IOException("Too many slots in index file " + fileId + ": " + totalSlots);
+
+        long fileSize = totalSlots * slotSize;
+        int bufferSize = (int) Math.min(fileSize, Math.min(MAX_WRITE_BUFFER,
+                Math.max(MIN_WRITE_BUFFER, memoryBudget / threads)));
+        bufferSize -= bufferSize % slotSize;
+
+        FileChannel channel = indexFile.channel();
+        long position = indexFile.allocate(fileId, fileSize);
+        SlotWriter writer = new SlotWriter(channel, position, bufferSize, index.slotFormat);
+
+        // slots addressed by hashcode, heads of the chains
+        int overflowId = (int) tableSlots;
+        int i = 0;
+        for (long slot = 0; slot < tableSlots; slot++) {
+            if (i < order.length && infileIndexes[recordAt(order, i)] == slot) {
+                int end = groupEnd(infileIndexes, order, i);
+                int next = end - i > 1 ? overflowId : 0;
+                writer.write(partition, recordAt(order, i), next);
+                overflowId += end - i - 1;
+                i = end;
+            } else {
+                writer.writeEmpty();
+            }
+        }
+
+        // slots appended for collisions, rests of the chains
+        long[] lengthCounts = new long[IndexStats.MAX_COUNTED_LENGTH + 1];
+        int maxLength = 0;
+        overflowId = (int) tableSlots;
+        for (i = 0; i < order.length; ) {
+            int end = groupEnd(infileIndexes, order, i);
+            for (int j = i + 1; j < end; j++) {
+                overflowId++;
+                writer.write(partition, recordAt(order, j), j + 1 < end ? overflowId : 0);
+            }
+            for (int length = 1; length <= end - i; length++) {
+                countChainLength(lengthCounts, length);
+            }
+            maxLength = Math.max(maxLength, end - i);
+            i = end;
+        }
+        writer.flush();
+        addChainLengths(lengthCounts, maxLength);
+    }
+
+    /**
+     * Builds the perfect hash function and the dense index file from the partition.
+     *
+     * @param fileId
+     *        The id of the index file
+     * @param partition
+     *        The records of the index file
+     *
+     * @throws IOException
+     *         If I/O errors occur, or the records of the index file do not have distinct hashes.
+     */
+    private void buildPerfectShard(int fileId, ShardPartition partition) throws IOException {
+        PerfectHash perfectHash;
+        try {
+            perfectHash = PerfectHash.build(partition.hashes, partition.size);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Failed to build perfect hash of index file " + fileId
+                                  + ", use another hash algorithm or layout: " + e.getMessage());
+        }
+        index.perfectHashes[fileId] = perfectHash;
+
+        // sort by slot id, slot id < 2^31 and size < 2^31, so the key fits in a long
+        long[] order = new long[partition.size];
+        for (int i = 0; i < partition.size; i++) {
+            order[i] = (perfectHash.lookup(partition.hashes[i]) << 31) | i;
+        }
+        Arrays.sort(order);
+        long[] lengthCounts = new long[IndexStats.MAX_COUNTED_LENGTH + 1];
+        lengthCounts[1] = partition.size;
+        addChainLengths(lengthCounts, partition.size > 0 ? 1 : 0);
+
+        int slotSize = index.slotSize;
+        long fileSize = (long) partition.size * slotSize;
+        int bufferSize = (int) Math.min(fileSize, Math.min(MAX_WRITE_BUFFER,
+                Math.max(MIN_WRITE_BUFFER, memoryBudget / threads)));
+        bufferSize -= bufferSize % slotSize;
+
+        FileChannel channel = indexFile.channel();
+        long position = indexFile.allocate(fileId, fileSize);
+        SlotWriter writer = new SlotWriter(channel, position, Math.max(bufferSize, slotSize),
+                                           index.slotFormat);
+        for (int i = 0; i < order.length; i++) {
+            writer.write(partition, recordAt(order, i), 0);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Builds a bucketed index file from its partition, whose records are sorted.
+     *
+     * @param fileId
+     *        The id of the index file
+     * @param partition
+     *        The records of the index file
+     * @param infileIndexes
+     *        The in-file indexes of the records
+     * @param order
+     *        The sorted keys of the records
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    private void buildBucketedShard(int fileId, ShardPartition partition,
+                                    long[] infileIndexes, long[] order) throws IOException {
+        BucketFormat bucketFormat = index.bucketFormat;
+        int slotsPerBucket = bucketFormat.slotsPerBucket;
+        long[] bucketIds = new long[order.length];
+        for (int i = 0; i < order.length; i++) {
+            bucketIds[i] = infileIndexes[recordAt(order, i)] / slotsPerBucket;
+        }
+
+        long tableBuckets = index.bucketsPerFile();
+        long fileSize = countBuckets(bucketIds, tableBuckets, slotsPerBucket)
+                        * bucketFormat.bucketSize;
+        int bufferSize = (int) Math.min(fileSize, Math.min(MAX_WRITE_BUFFER,
+                Math.max(MIN_WRITE_BUFFER, memoryBudget / threads)));
+        bufferSize -= bufferSize % bucketFormat.bucketSize;
+
+        FileChannel channel = indexFile.channel();
+        long position = indexFile.allocate(fileId, fileSize);
+        SlotWriter writer = new SlotWriter(channel, position, bufferSize, bucketFormat.slotFormat);
+
+        // records in [i, end) are waiting for a slot in the current bucket or later
+        long[] lengthCounts = new long[IndexStats.MAX_COUNTED_LENGTH + 1];
+        long maxLength = 0;
+        int i = 0, end = 0;
+        for (long bucket = 0; bucket < tableBuckets || i < order.length; bucket++) {
+            while (end < order.length && bucketIds[end] <= bucket)
+                end++;
+            int count = Math.min(slotsPerBucket, end - i);
+            writer.writeBucket(bucketFormat, partition, order, i, count,
+                               end - i > slotsPerBucket);
+            // the buckets probed from the home bucket of each record
+            for (int j = i; j < i + count; j++) {
+                long length = bucket - bucketIds[j] + 1;
+                countChainLength(lengthCounts, length);
+                maxLength = Math.max(maxLength, length);
+            }
+            i += count;
+        }
+        writer.flush();
+        addChainLengths(lengthCounts, (int) Math.min(maxLength, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Counts a record of the given chain length, the lengths over MAX_COUNTED_LENGTH
+     * are counted together.
+     */
+    private static void countChainLength(long[] lengthCounts, long length) {
+        lengthCounts[(int) Math.min(length, IndexStats.MAX_COUNTED_LENGTH)]++;
+    }
+
+    /**
+     * Adds the chain lengths of an index file to the statistics of the build.
+     *
+     * @param lengthCounts
+     *        The number of records of each chain length in the index file
+     * @param maxLength
+     *        The max chain length in the index file
+     */
+    private synchronized void addChainLengths(long[] lengthCounts, int maxLength) {
+        for (int length = 0; length < lengthCounts.length; length++) {
+            chainLengthCounts[length] += lengthCounts[length];
+        }
+        maxChainLength = Math.max(maxChainLength, maxLength);
+    }
+
+    /**
+     * Counts the buckets of a bucketed index file, including the buckets appended for overflows.
+     *
+     * @param bucketIds
+     *        The sorted bucket ids of the records
+     * @param tableBuckets
+     *        The number of buckets addressed by hashcode
+     * @param slotsPerBucket
+     *        The number of slots in a bucket
+     *
+     * @return The number of buckets
+     */
+    private static long countBuckets(long[] bucketIds, long tableBuckets, int slotsPerBucket) {
+        long bucket = 0;
+        int i = 0, end = 0;
+        for (; bucket < tableBuckets || i < bucketIds.length; bucket++) {
+            while (end < bucketIds.length && bucketIds[end] <= bucket)
+                end++;
+            i += Math.min(slotsPerBucket, end - i);
+        }
+        return bucket;
+    }
+
+    /**
+     * Counts the records that do not fit in the slots addressed by hashcode.
+     *
+     * @param infileIndexes
+     *        The in-file indexes of the records
+     * @param order
+     *        The sorted keys of the records
+     *
+     * @return The number of slots appended for collisions
+     */
+    private static long countCollisions(long[] infileIndexes, long[] order) {
+        long count = 0;
+        for (int i = 0; i < order.length; ) {
+            int end = groupEnd(infileIndexes, order, i);
+            count += end - i - 1;
+            i = end;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the end of the group of records with the same in-file index beginning at i.
+     */
+    private static int groupEnd(long[] infileIndexes, long[] order, int i) {
+        long infileIndex = infileIndexes[recordAt(order, i)];
+        int end = i + 1;
+        while (end < order.length && infileIndexes[recordAt(order, end)] == infileIndex)
+            end++;
+        return end;
+    }
+
+    /**
+     * Returns the position in partition of the i-th record in order.
+     */
+    private static int recordAt(long[] order, int i) {
+        return (int) (order[i] & 0x7fffffffL);
+    }
+
+    /**
+     * Returns the partition of the index file, with its spilled records read back.
+     * The spill file is deleted unless the partitions are kept.
+     *
+     * @param fileId
+     *        The id of the index file
+     *
+     * @return The partition
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    private ShardPartition loadPartition(int fileId) throws IOException {
+        File spillFile = getSpillFile(fileId);
+        if (!spillFile.exists())
+            return partitions[fileId];
+
+        // spilled records precede the buffered ones in data file order
+        ShardPartition buffered = partitions[fileId];
+        ShardPartition partition = new ShardPartition(buffered.inlineThreshold);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(spillFile), 1 << 16))) {
+            partition.readFrom(in, partitionSizes[fileId] - buffered.size);
+        }
+        partition.addAll(buffered);
+        if (!keepPartitions)
+            spillFile.delete();
+        return partition;
+    }
+
+    /**
+     * Returns the estimated memory of building the index file of the given id:
+     * its records loaded in memory and the arrays to sort them.
+     */
+    private long shardMemory(int fileId) {
+        return partitionBytes[fileId] + partitionSizes[fileId] * SORT_BYTES_PER_RECORD;
+    }
+
+    /**
+     * Returns the memory of the records of the index file of the given id buffered by the scan.
+     */
+    private long bufferedMemory(int fileId) {
+        ShardPartition partition = partitions[fileId];
+        return (long) partition.size * ShardPartition.ENTRY_BYTES + partition.inlineSize;
+    }
+
+    /**
+     * Counts the buffered records as the memory in use before the index files are built,
+     * and warns of the index files that do not fit in the memory budget.
+     */
+    private void startBuildingShards() {
+        memoryInUse = 0;
+        shardsBuilding = 0;
+        long maxShardMemory = 0;
+        for (int i = 0; i < partitions.length; i++) {
+            memoryInUse += bufferedMemory(i);
+            maxShardMemory = Math.max(maxShardMemory, shardMemory(i));
+        }
+        if (maxShardMemory > memoryBudget)
+            Log.logw("The largest index file takes about " + maxShardMemory + " bytes to build, "
+                     + "more than the memory budget, so it is built alone. "
+                     + "Use more shard bits to build within the budget.");
+    }
+
+    /**
+     * Waits until the index file of the given id can be built within the memory budget,
+     * along with the index files being built and the records still buffered.
+     * An index file larger than the budget waits until no other index file is being built.
+     *
+     * @param fileId
+     *        The id of the index file
+     *
+     * @return The memory to be released by releaseShardMemory() once the index file is built,
+     *         which excludes its buffered records if the partitions are kept
+     *
+     * @throws InterruptedIOException
+     *         If the thread is interrupted while waiting.
+     */
+    private synchronized long acquireShardMemory(int fileId) throws InterruptedIOException {
+        long bytes = shardMemory(fileId);
+        // the buffered records of the index file are counted already
+        long added = bytes - bufferedMemory(fileId);
+        while (shardsBuilding > 0 && memoryInUse + added > memoryBudget) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while building index file "
+                                                 + fileId);
+            }
+        }
+        memoryInUse += added;
+        shardsBuilding++;
+        return keepPartitions ? added : bytes;
+    }
+
+    private synchronized void releaseShardMemory(long bytes) {
+        memoryInUse -= bytes;
+        shardsBuilding--;
+        notifyAll();
+    }
+
+    private File getSpillFile(int fileId) {
+        return new File(spillDir, "spill" + fileId);
+    }
+
+    /**
+     * Deletes the spill directory and the remaining files in it.
+     */
+    private void deleteSpillFiles() {
+        File[] files = spillDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spillDir.delete();
+    }
+
+    /**
+     * A task that builds the index files in [lo, hi), forking until there is one file left.
+     */
+    private class BuildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int lo, hi;
+
+        BuildTask(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                try {
+                    long bytes = acquireShardMemory(lo);
+                    try {
+                        buildShard(lo);
+                    } finally {
+                        releaseShardMemory(bytes);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new BuildTask(lo, mid), new BuildTask(mid, hi));
+            }
+        }
+    }
+
+    /**
+     * Writes slots or buckets sequentially to the region of an index file through a buffer.
+     */
+    private static class SlotWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final SlotFormat format;
+        private long position;
+
+        SlotWriter(FileChannel channel, long position, int bufferSize, SlotFormat format) {
+            this.channel = channel;
+            this.position = position;
+            this.buffer = ByteBuffer.allocate(bufferSize);
+            this.format = format;
+        }
+
+        void write(ShardPartition partition, int i, int nextSlotId) throws IOException {
+            if (Log.isDebugEnabled()) {
+                Log.logd("--------writeslot--------");
+                Log.logd("addr = " + partition.addresses[i]);
+                Log.logd("value size = " + partition.valueSizes[i]);
+                Log.logd("next = " + nextSlotId);
+            }
+
+            ensureSpace(format.slotSize);
+            encode(buffer.position(), partition, i, nextSlotId);
+            buffer.position(buffer.position() + format.slotSize);
+        }
+
+        void writeEmpty() throws IOException {
+            ensureSpace(format.slotSize);
+            // the buffer is zeroed when it is flushed
+            buffer.position(buffer.position() + format.slotSize);
+        }
+
+        /**
+         * Writes a bucket holding the records of partition at [from, from + count) in order.
+         */
+        void writeBucket(BucketFormat bucketFormat, ShardPartition partition, long[] order,
+                         int from, int count, boolean overflowed) throws IOException {
+            ensureSpace(bucketFormat.bucketSize);
+            int offset = buffer.position();
+            bucketFormat.encodeHeader(buffer.array(), offset, count, overflowed);
+            for (int j = 0; j < count; j++) {
+                encode(offset + bucketFormat.slotOffset(j), partition, recordAt(order, from + j),
+                       0);
+            }
+            buffer.position(offset + bucketFormat.bucketSize);
+        }
+
+        /**
+         * Encodes the slot of the i-th record of partition at offset in the buffer,
+         * with its key and value if it is inline.
+         */
+        private void encode(int offset, ShardPartition partition, int i, int nextSlotId) {
+            format.encode(buffer.array(), offset, partition.keySizes[i], partition.addresses[i],
+                          partition.valueSizes[i], nextSlotId,
+                          format.fingerprint(partition.hashes[i]));
+            if (format.isInline(partition.keySizes[i], partition.valueSizes[i]))
+                partition.getInline(i, buffer.array(), offset + format.inlineOffset);
+        }
+
+        private void ensureSpace(int length) throws IOException {
+            if (buffer.remaining() < length)
+                flush();
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            Arrays.fill(buffer.array(), (byte) 0);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * The records of one index file, stored in parallel arrays.
+     * The keys and values of the records small enough to be inline are stored
+     * in data order in a byte array.
+     */
+    static class ShardPartition {
+        // bytes of a record in memory and in spill files, excluding its key and value
+        static final int ENTRY_BYTES = 8 + 8 + 2 + 2;
+
+        private static final int INITIAL_CAPACITY = 16;
+
+        // max total size of the key and value of a record to be kept, 0 for none
+        final int inlineThreshold;
+
+        int size = 0;
+        long[] hashes = new long[INITIAL_CAPACITY];     // unmasked hashes
+        long[] addresses = new long[INITIAL_CAPACITY];
+        short[] keySizes = new short[INITIAL_CAPACITY];
+        short[] valueSizes = new short[INITIAL_CAPACITY];
+        int[] inlineOffsets;                            // offsets in inlineData, -1 if not kept
+
+        byte[] inlineData;
+        int inlineSize = 0;
+
+        ShardPartition() {
+            this(0);
+        }
+
+        ShardPartition(int inlineThreshold) {
+            this.inlineThreshold = inlineThreshold;
+            if (inlineThreshold > 0) {
+                inlineOffsets = new int[INITIAL_CAPACITY];
+                inlineData = new byte[INITIAL_CAPACITY * inlineThreshold];
+            }
+        }
+
+        void add(long hash, long address, short keySize, short valueSize) {
+            if (size == hashes.length)
+                grow(size << 1);
+            hashes[size] = hash;
+            addresses[size] = address;
+            keySizes[size] = keySize;
+            valueSizes[size] = valueSize;
+            if (inlineOffsets != null)
+                inlineOffsets[size] = -1;
+            size++;
+        }
+
+        /**
+         * Adds a record, and keeps its key and value if they fit in the inline threshold.
+         *
+         * @param buf
+         *        The buffer holding the key and the value
+         * @param keyOffset
+         *        The offset of the key in buf
+         * @param valueOffset
+         *        The offset of the value in buf
+         *
+         * @throws IOException
+         *         If the kept keys and values of the partition exceed 2 GB.
+         */
+        void add(long hash, long address, short keySize, short valueSize,
+                 ByteBuffer buf, int keyOffset, int valueOffset) throws IOException {
+            add(hash, address, keySize, valueSize);
+            if (isKept(keySize, valueSize)) {
+                inlineOffsets[size - 1] = inlineSize;
+                int length = keySize + valueSize;
+                growInline(length);
+                for (int i = 0; i < keySize; i++) {
+                    inlineData[inlineSize++] = buf.get(keyOffset + i);
+                }
+                for (int i = 0; i < valueSize; i++) {
+                    inlineData[inlineSize++] = buf.get(valueOffset + i);
+                }
+            }
+        }
+
+        private boolean isKept(short keySize, short valueSize) {
+            return inlineThreshold > 0 && keySize + valueSize <= inlineThreshold;
+        }
+
+        /**
+         * Copies the key and the value of the i-th record, which must be kept.
+         */
+        void getInline(int i, byte[] dst, int offset) {
+            System.arraycopy(inlineData, inlineOffsets[i], dst, offset,
+                             keySizes[i] + valueSizes[i]);
+        }
+
+        void addAll(ShardPartition other) throws IOException {
+            grow(size + other.size);
+            System.arraycopy(other.hashes, 0, hashes, size, other.size);
+            System.arraycopy(other.addresses, 0, addresses, size, other.size);
+            System.arraycopy(other.keySizes, 0, keySizes, size, other.size);
+            System.arraycopy(other.valueSizes, 0, valueSizes, size, other.size);
+            if (inlineOffsets != null) {
+                growInline(other.inlineSize);
+                for (int i = 0; i < other.size; i++) {
+                    int offset = other.inlineOffsets[i];
+                    inlineOffsets[size + i] = offset < 0 ? -1 : inlineSize + offset;
+                }
+                System.arraycopy(other.inlineData, 0, inlineData, inlineSize, other.inlineSize);
+                inlineSize += other.inlineSize;
+            }
+            size += other.size;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            for (int i = 0; i < size; i++) {
+                out.writeLong(hashes[i]);
+                out.writeLong(addresses[i]);
+                out.writeShort(keySizes[i]);
+                out.writeShort(valueSizes[i]);
+                if (isKept(keySizes[i], valueSizes[i]))
+                    out.write(inlineData, inlineOffsets[i], keySizes[i] + valueSizes[i]);
+            }
+        }
+
+        void readFrom(DataInputStream in, long count) throws IOException {
+            if (size + count > Integer.MAX_VALUE - 8)
+                throw new IOException("Too many records in a partition: " + (size + count));
+            grow((int) (size + count));
+            for (long i = 0; i < count; i++) {
+                long hash = in.readLong();
+                long address = in.readLong();
+                short keySize = in.readShort();
+                short valueSize = in.readShort();
+                add(hash, address, keySize, valueSize);
+                if (isKept(keySize, valueSize)) {
+                    int length = keySize + valueSize;
+                    growInline(length);
+                    inlineOffsets[size - 1] = inlineSize;
+                    in.readFully(inlineData, inlineSize, length);
+                    inlineSize += length;
+                }
+            }
+        }
+
+        private void grow(int capacity) {
+            if (capacity <= hashes.length)
+                return;
+            hashes = Arrays.copyOf(hashes, capacity);
+            addresses = Arrays.copyOf(addresses, capacity);
+            keySizes = Arrays.copyOf(keySizes, capacity);
+            valueSizes = Arrays.copyOf(valueSizes, capacity);
+            if (inlineOffsets != null)
+                inlineOffsets = Arrays.copyOf(inlineOffsets, capacity);
+        }
+
+        private void growInline(int length) throws IOException {
+            long required = (long) inlineSize + length;
+            if (required <= inlineData.length)
+                return;
+            if (required > Integer.MAX_VALUE - 8)
+                throw new IOException("Too many inline bytes in a partition: " + required);
+            inlineData = Arrays.copyOf(inlineData,
+                                       (int) Math.min(Integer.MAX_VALUE - 8,
+                                                      Math.max(required, 2L * inlineData.length)));
+        }
+    }
+}
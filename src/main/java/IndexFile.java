@@ -0,0 +1,190 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The single file holding all the index shards of a KVIndex.
+ *
+ * Format:
+ *  | directory | region of shard a | region of shard b | ...
+ *
+ *  The directory is padded to a page:
+ *  | magic | version | shard bits | (offset, length) of every shard |
+ *  |   4   |    4    |     4      |             16 * 2^f            |
+ *
+ *  Every region begins at a page boundary, and the gaps are holes of the file.
+ *  The regions are in the order they are built, which is not the order of the shards.
+ *
+ * As the regions are page-aligned, the whole file can be memory-mapped, loaded into memory,
+ * or cached in blocks as one unit, and every shard is a view of it, see RegionIndexShard.
+ */
+class IndexFile {
+
+    static final int PAGE_SIZE = 4096;
+    static final int MAGIC = 0x4b565346;    // "KVSF"
+    static final int VERSION = 1;
+
+    static final int MAX_SHARD_BITS = 16;
+
+    private static final int DIRECTORY_HEADER_LENGTH = 12;
+    private static final int ENTRY_LENGTH = 16;
+
+    /**
+     * Returns the size of the directory, i.e. the position of the first region.
+     *
+     * @param shardBits
+     *        The number of shard bits f
+     *
+     * @return The size in bytes, a multiple of PAGE_SIZE
+     */
+    static long directorySize(int shardBits) {
+        return align(DIRECTORY_HEADER_LENGTH + ((long) ENTRY_LENGTH << shardBits));
+    }
+
+    /**
+     * Reads the directory of the index file.
+     *
+     * @param file
+     *        The opened index file
+     * @param shardBits
+     *        The number of shard bits f
+     *
+     * @return The offsets and lengths of the regions of the shards,
+     *         i.e. {offset 0, length 0, offset 1, length 1, ...}
+     *
+     * @throws IOException
+     *         If I/O errors occur, or the file is not a valid index file of the shard bits.
+     */
+    static long[] readDirectory(IndexShard file, int shardBits) throws IOException {
+        int shardCount = 1 << shardBits;
+        if (file.size() < directorySize(shardBits))
+            throw new IOException("Index file is truncated: " + file.size() + " bytes");
+        ByteBuffer buf = ByteBuffer.allocate(DIRECTORY_HEADER_LENGTH + shardCount * ENTRY_LENGTH);
+        file.read(buf, 0);
+        buf.flip();
+        if (buf.getInt() != MAGIC)
+            throw new IOException("Not an index file");
+        int version = buf.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported index file version: " + version);
+        int bits = buf.getInt();
+        if (bits != shardBits)
+            throw new IOException("Index file has " + bits + " shard bits instead of "
+                                  + shardBits);
+
+        long[] regions = new long[shardCount * 2];
+        for (int i = 0; i < shardCount; i++) {
+            long offset = buf.getLong();
+            long length = buf.getLong();
+            if (offset < directorySize(shardBits) || offset % PAGE_SIZE != 0 || length < 0
+                || offset + length > file.size())
+                throw new IOException("Invalid region of shard " + i + ": offset = " + offset
+                                      + ", length = " + length);
+            regions[2 * i] = offset;
+            regions[2 * i + 1] = length;
+        }
+        return regions;
+    }
+
+    /**
+     * Rounds up to a multiple of PAGE_SIZE.
+     */
+    static long align(long position) {
+        return (position + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    /**
+     * Writes an index file. The regions are allocated and written concurrently,
+     * and the directory is written when all of them are done.
+     */
+    static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final int shardBits;
+        private final long[] regions;
+        private long end;   // end of the last region allocated, guarded by this
+
+        /**
+         * Creates an empty index file, replacing the file if it exists.
+         *
+         * @param file
+         *        The index file
+         * @param shardBits
+         *        The number of shard bits f
+         *
+         * @throws IOException
+         *         If I/O errors occur.
+         */
+        Writer(File file, int shardBits) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                            StandardOpenOption.WRITE, StandardOpenOption.READ,
+                                            StandardOpenOption.TRUNCATE_EXISTING);
+            this.shardBits = shardBits;
+            this.regions = new long[2 << shardBits];
+            this.end = directorySize(shardBits);
+            for (int i = 0; i < regions.length; i += 2) {
+                regions[i] = end;
+            }
+        }
+
+        /**
+         * Allocates the region of a shard at the next page boundary. Thread-safe.
+         *
+         * @param shard
+         *        The id of the shard
+         * @param length
+         *        The size of the shard in bytes
+         *
+         * @return The offset of the region in the file
+         */
+        synchronized long allocate(int shard, long length) {
+            long offset = align(end);
+            regions[2 * shard] = offset;
+            regions[2 * shard + 1] = length;
+            end = offset + length;
+            return offset;
+        }
+
+        /**
+         * Returns the channel of the file, for positional writes to the allocated regions.
+         *
+         * @return The channel
+         */
+        FileChannel channel() {
+            return channel;
+        }
+
+        /**
+         * Writes the directory and forces the file to the storage.
+         * Called after all the regions are written.
+         *
+         * @throws IOException
+         *         If I/O errors occur.
+         */
+        synchronized void finish() throws IOException {
+            long size = directorySize(shardBits);
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            buf.putInt(MAGIC);
+            buf.putInt(VERSION);
+            buf.putInt(shardBits);
+            for (long value : regions) {
+                buf.putLong(value);
+            }
+            buf.clear();
+            while (buf.hasRemaining()) {
+                channel.write(buf, buf.position());
+            }
+            // extend the file to the end of the last region, which may be empty
+            if (channel.size() < end)
+                channel.write(ByteBuffer.allocate(1), end - 1);
+            channel.force(true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
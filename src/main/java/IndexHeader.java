@@ -0,0 +1,310 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The header of the index files, which describes how they were built, so that
+ * an index can be reopened without rebuilding. See KVIndex.open().
+ *
+ * The header is written to the header file of the index directory after the index files
+ * are built, and deleted before they are rebuilt, so a valid header always describes
+ * complete index files.
+ *
+ * Format of the header file (big-endian):
+ *  | magic | version | hash algorithm | seed | capacity | f | N | layout |
+ *  |   4   |    4    |       4        |  8   |    8     | 4 | 8 |   4    |
+ *
+ *  | bits of key_size | address | value_size | next_slot_id | fingerprint |
+ *  |        1         |    1    |     1      |      1       |      1      |
+ *
+ *  | inline bytes | filter bits per key |
+ *  |      2       |          1          |
+ *
+ *  | data size | data modified time | data checksum |
+ *  |     8     |         8          |       8       |
+ *
+ *  followed by the perfect hash functions of the index files if the layout is PERFECT_HASH,
+ *  the filters of the index files if there are filters,
+ *  and a CRC32 of all the bytes before it (8).
+ *
+ * The data file is identified by its size, its modified time, and a checksum of
+ * SAMPLE_COUNT blocks spread over it, so that it is checked without reading all of it.
+ */
+class IndexHeader {
+
+    static final String FILENAME = "header";
+    static final int MAGIC = 0x4b564958;    // "KVIX"
+    static final int VERSION = 4;
+
+    static final int SAMPLE_COUNT = 16;
+    static final int SAMPLE_SIZE = 4096;
+
+    final HashAlgorithm hashAlgorithm;
+    final long seed;
+    final long capacity;
+    final int f;
+    final long N;
+    final IndexLayout layout;
+    final SlotFormat slotFormat;
+    final long dataSize;
+    final long dataModifiedTime;
+    final long dataChecksum;
+    final PerfectHash[] perfectHashes;  // null unless the layout is PERFECT_HASH
+    final int filterBitsPerKey;         // 0 if there are no filters
+    final BloomFilter[] filters;        // null if there are no filters
+
+    /**
+     * Constructs a header.
+     *
+     * @param hashAlgorithm
+     *        The algorithm of the hash function
+     * @param seed
+     *        The seed of the hash function
+     * @param capacity
+     *        The capacity of the hash function
+     * @param f
+     *        The number of bits of file id
+     * @param N
+     *        The number of records
+     * @param layout
+     *        The layout of the index files
+     * @param slotFormat
+     *        The format of the slots, whose field widths are sized to the data
+     * @param dataSize
+     *        The size of the data file
+     * @param dataModifiedTime
+     *        The modified time of the data file
+     * @param dataChecksum
+     *        The checksum of the data file, see checksum()
+     * @param perfectHashes
+     *        The perfect hash functions of the index files, null unless the layout is
+     *        PERFECT_HASH
+     * @param filterBitsPerKey
+     *        The number of bits per key of the filters, 0 if there are no filters
+     * @param filters
+     *        The filters of the index files, null if there are no filters
+     */
+    IndexHeader(HashAlgorithm hashAlgorithm, long seed, long capacity, int f, long N,
+                IndexLayout layout, SlotFormat slotFormat,
+                long dataSize, long dataModifiedTime, long dataChecksum,
+                PerfectHash[] perfectHashes, int filterBitsPerKey, BloomFilter[] filters) {
+        if ((layout == IndexLayout.PERFECT_HASH) != (perfectHashes != null))
+            throw new IllegalArgumentException("perfectHashes must be given iff PERFECT_HASH");
+        if ((filterBitsPerKey > 0) != (filters != null))
+            throw new IllegalArgumentException("filters must be given iff filterBitsPerKey > 0");
+        this.hashAlgorithm = hashAlgorithm;
+        this.seed = seed;
+        this.capacity = capacity;
+        this.f = f;
+        this.N = N;
+        this.layout = layout;
+        this.slotFormat = slotFormat;
+        this.dataSize = dataSize;
+        this.dataModifiedTime = dataModifiedTime;
+        this.dataChecksum = dataChecksum;
+        this.perfectHashes = perfectHashes;
+        this.filterBitsPerKey = filterBitsPerKey;
+        this.filters = filters;
+    }
+
+    /**
+     * Checks whether the header was built from the data file in its current state.
+     *
+     * @param dataFile
+     *        The data file
+     *
+     * @return Whether the size, the modified time and the checksum of the file match
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    boolean matches(File dataFile) throws IOException {
+        return dataFile.length() == dataSize
+               && dataFile.lastModified() == dataModifiedTime
+               && checksum(dataFile) == dataChecksum;
+    }
+
+    /**
+     * Returns a copy of the header describing the same index files built from another
+     * data file in its current state, e.g. the data file rewritten by DataClusterer.
+     *
+     * @param dataFile
+     *        The data file
+     *
+     * @return The header
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    IndexHeader withDataFile(File dataFile) throws IOException {
+        return new IndexHeader(hashAlgorithm, seed, capacity, f, N, layout, slotFormat,
+                               dataFile.length(), dataFile.lastModified(), checksum(dataFile),
+                               perfectHashes, filterBitsPerKey, filters);
+    }
+
+    /**
+     * Writes the header to the file atomically, replacing the file if it exists.
+     *
+     * @param file
+     *        The header file
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    void write(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(hashAlgorithm.id);
+        out.writeLong(seed);
+        out.writeLong(capacity);
+        out.writeInt(f);
+        out.writeLong(N);
+        out.writeInt(layout.id);
+        out.writeByte(slotFormat.keySizeBits);
+        out.writeByte(slotFormat.addressBits);
+        out.writeByte(slotFormat.valueSizeBits);
+        out.writeByte(slotFormat.nextSlotIdBits);
+        out.writeByte(slotFormat.fingerprintBits);
+        out.writeShort(slotFormat.inlineBytes);
+        out.writeByte(filterBitsPerKey);
+        out.writeLong(dataSize);
+        out.writeLong(dataModifiedTime);
+        out.writeLong(dataChecksum);
+        if (perfectHashes != null) {
+            for (PerfectHash perfectHash : perfectHashes) {
+                perfectHash.write(out);
+            }
+        }
+        if (filters != null) {
+            for (BloomFilter filter : filters) {
+                filter.write(out);
+            }
+        }
+        out.writeLong(crc(bytes.toByteArray(), bytes.size()));
+        out.flush();
+
+        // write a temporary file, then rename it, so that a crash leaves no partial header
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a header written by write().
+     *
+     * @param file
+     *        The header file
+     *
+     * @return The header
+     *
+     * @throws IOException
+     *         If I/O errors occur, or the file is not a valid header of this version.
+     */
+    static IndexHeader read(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        if (bytes.length < 8)
+            throw new EOFException("Index header is truncated");
+        int length = bytes.length - 8;
+        if (ByteBuffer.wrap(bytes, length, 8).getLong() != crc(bytes, length))
+            throw new IOException("Index header checksum mismatch");
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not an index header");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported index header version: " + version);
+        try {
+            HashAlgorithm hashAlgorithm = HashAlgorithm.of(in.readInt());
+            long seed = in.readLong();
+            long capacity = in.readLong();
+            int f = in.readInt();
+            long N = in.readLong();
+            IndexLayout layout = IndexLayout.of(in.readInt());
+            SlotFormat slotFormat = new SlotFormat(in.readByte(), in.readByte(), in.readByte(),
+                                                   in.readByte(), in.readByte(),
+                                                   in.readUnsignedShort());
+            int filterBitsPerKey = in.readByte();
+            long dataSize = in.readLong();
+            long dataModifiedTime = in.readLong();
+            long dataChecksum = in.readLong();
+            if (f < 0 || f > IndexFile.MAX_SHARD_BITS)
+                throw new IOException("Invalid shard bits in index header: " + f);
+            PerfectHash[] perfectHashes = null;
+            if (layout == IndexLayout.PERFECT_HASH) {
+                perfectHashes = new PerfectHash[1 << f];
+                for (int i = 0; i < perfectHashes.length; i++) {
+                    perfectHashes[i] = PerfectHash.read(in);
+                }
+            }
+            BloomFilter[] filters = null;
+            if (filterBitsPerKey > 0) {
+                filters = new BloomFilter[1 << f];
+                for (int i = 0; i < filters.length; i++) {
+                    filters[i] = BloomFilter.read(in);
+                }
+            }
+            if (in.available() != 0)
+                throw new IOException("Index header has trailing bytes");
+            return new IndexHeader(hashAlgorithm, seed, capacity, f, N, layout,
+                                   slotFormat, dataSize, dataModifiedTime, dataChecksum,
+                                   perfectHashes, filterBitsPerKey, filters);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid index header: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Computes the checksum of the data file, i.e. the CRC32 of SAMPLE_COUNT blocks of
+     * SAMPLE_SIZE bytes spread evenly over the file, including the first and the last block.
+     *
+     * @param dataFile
+     *        The data file
+     *
+     * @return The checksum
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    static long checksum(File dataFile) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long last = Math.max(0, size - SAMPLE_SIZE);
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, size));
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                buf.clear();
+                KVIndex.readFully(channel, buf, last * i / (SAMPLE_COUNT - 1));
+                crc.update(buf.array(), 0, buf.position());
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static long crc(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * The layouts of the slots in index files.
+ * The id of a layout is persisted with the index, so it must never change.
+ */
+public enum IndexLayout {
+
+    /**
+     * The slot addressed by hashcode is the head of a linked list.
+     * Colliding records are appended to the end of the index file and linked by next_slot_id,
+     * so every hop on a chain is another random read.
+     */
+    CHAINED(0, 0),
+
+    /**
+     * Slots are grouped in 64-byte buckets, i.e. one cache line.
+     * A full bucket overflows to the next bucket (linear probing),
+     * so a lookup usually reads one cache line of the index file.
+     */
+    CACHE_LINE_BUCKETS(1, 64),
+
+    /**
+     * Slots are grouped in 4 KB buckets, i.e. one page.
+     * Buckets rarely overflow, so a lookup almost always reads one page of the index file.
+     */
+    PAGE_BUCKETS(2, 4096),
+
+    /**
+     * A minimal perfect hash function of the keys in each index file is built and kept
+     * in memory. It maps the keys to a dense array of slots without collisions,
+     * so a query reads exactly one slot of the index file.
+     * See PerfectHash.
+     */
+    PERFECT_HASH(3, 0);
+
+    final int id;
+    final int bucketSize;   // size of a bucket in bytes, 0 if the slots are chained
+
+    IndexLayout(int id, int bucketSize) {
+        this.id = id;
+        this.bucketSize = bucketSize;
+    }
+
+    /**
+     * Returns the layout of the given id.
+     *
+     * @param id
+     *        The persisted id
+     * @return The layout
+     *
+     * @throws IllegalArgumentException
+     *         If there is no layout of the id.
+     */
+    static IndexLayout of(int id) {
+        for (IndexLayout layout : values()) {
+            if (layout.id == id)
+                return layout;
+        }
+        throw new IllegalArgumentException("Unknown index layout id: " + id);
+    }
+}
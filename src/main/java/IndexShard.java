@@ -0,0 +1,31 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An opened index file (shard) that slots can be read from.
+ *
+ * Implementations must be thread-safe, i.e. support concurrent reads without locking.
+ */
+interface IndexShard extends Closeable {
+
+    /**
+     * Reads bytes of the shard at the given position until dst is full.
+     *
+     * @param dst
+     *        The destination buffer
+     * @param position
+     *        The position in the shard where the read begins
+     *
+     * @throws IOException
+     *         If I/O errors occur, or the end of shard is reached before dst is full.
+     */
+    void read(ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * Returns the size of the shard in bytes.
+     *
+     * @return The size of the shard
+     */
+    long size();
+}
@@ -0,0 +1,199 @@
+/**
+ * The quality statistics of the last build of a KVIndex: the distribution of the chain
+ * lengths, and the fill of the index files.
+ *
+ * The chain length of a record is the number of slots, or buckets in a bucketed layout,
+ * a query of its key reads: its position in the chain of its slot, or the number of buckets
+ * probed from its home bucket. It is 1 for every record with perfect hashing.
+ */
+public class IndexStats {
+
+    // chain lengths counted one by one, the longer ones are counted together
+    static final int MAX_COUNTED_LENGTH = 256;
+
+    private final long[] chainLengthCounts;
+    private final int maxChainLength;
+    private final long[] shardSizes;
+    private final long capacity;
+    private final long seed;
+    private final double loadFactor;
+    private final int rebuilds;
+
+    /**
+     * @param chainLengthCounts
+     *        The number of records of each chain length, indexed by length, of length
+     *        MAX_COUNTED_LENGTH + 1
+     * @param maxChainLength
+     *        The max chain length
+     * @param shardSizes
+     *        The number of records of each index file
+     * @param capacity
+     *        The capacity of the hash function
+     * @param seed
+     *        The seed of the hash function
+     * @param loadFactor
+     *        The preferred load factor of the hash function
+     * @param rebuilds
+     *        The number of rebuilds before the index was accepted
+     */
+    IndexStats(long[] chainLengthCounts, int maxChainLength, long[] shardSizes,
+               long capacity, long seed, double loadFactor, int rebuilds) {
+        this.chainLengthCounts = chainLengthCounts;
+        this.maxChainLength = maxChainLength;
+        this.shardSizes = shardSizes;
+        this.capacity = capacity;
+        this.seed = seed;
+        this.loadFactor = loadFactor;
+        this.rebuilds = rebuilds;
+    }
+
+    /**
+     * Returns the histogram of the chain lengths: element i is the number of records of
+     * chain length i, for i in [1, 256), and the last element counts the records of
+     * chain length 256 or more.
+     */
+    public long[] chainLengthCounts() {
+        return chainLengthCounts.clone();
+    }
+
+    /**
+     * Returns the number of records.
+     */
+    public long recordCount() {
+        long count = 0;
+        for (long c : chainLengthCounts) {
+            count += c;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the max chain length, 0 if there is no record.
+     */
+    public int maxChainLength() {
+        return maxChainLength;
+    }
+
+    /**
+     * Returns the mean chain length, 0 if there is no record. The lengths of 256 or more
+     * are counted as 256.
+     */
+    public double meanChainLength() {
+        long count = 0;
+        long sum = 0;
+        for (int length = 1; length < chainLengthCounts.length; length++) {
+            count += chainLengthCounts[length];
+            sum += chainLengthCounts[length] * length;
+        }
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the chain length that the given percentage of the records do not exceed,
+     * at most 256 unless it is the max.
+     *
+     * @param percentile
+     *        The percentile, in [0, 100]
+     *
+     * @return The chain length, 0 if there is no record
+     */
+    public int chainLengthPercentile(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100))
+            throw new IllegalArgumentException("percentile must be in [0, 100]");
+        long count = recordCount();
+        if (count == 0)
+            return 0;
+        if (percentile == 100)
+            return maxChainLength;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int length = 1; length < chainLengthCounts.length; length++) {
+            seen += chainLengthCounts[length];
+            if (seen >= rank)
+                return Math.min(length, maxChainLength);
+        }
+        return maxChainLength;
+    }
+
+    /**
+     * Returns the number of records of each index file, indexed by file id.
+     */
+    public long[] shardSizes() {
+        return shardSizes.clone();
+    }
+
+    public long minShardSize() {
+        long min = Long.MAX_VALUE;
+        for (long size : shardSizes) {
+            min = Math.min(min, size);
+        }
+        return min;
+    }
+
+    public long maxShardSize() {
+        long max = 0;
+        for (long size : shardSizes) {
+            max = Math.max(max, size);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the ratio of the largest index file to the mean, 1 for an even fill
+     * or no record.
+     */
+    public double shardSkew() {
+        long total = 0;
+        for (long size : shardSizes) {
+            total += size;
+        }
+        return total == 0 ? 1 : (double) maxShardSize() * shardSizes.length / total;
+    }
+
+    /**
+     * Returns the capacity of the hash function, i.e. the slots addressed by hashcode.
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the ratio of the records to the capacity.
+     */
+    public double load() {
+        return (double) recordCount() / capacity;
+    }
+
+    /**
+     * Returns the seed of the hash function.
+     */
+    public long seed() {
+        return seed;
+    }
+
+    /**
+     * Returns the preferred load factor the capacity was chosen by.
+     */
+    public double loadFactor() {
+        return loadFactor;
+    }
+
+    /**
+     * Returns the number of rebuilds for long chains before the index was accepted,
+     * see KVIndex.setChainLengthLimits().
+     */
+    public int rebuilds() {
+        return rebuilds;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexStats{records=" + recordCount() + ", capacity=" + capacity
+               + ", load=" + load() + ", seed=" + seed + ", rebuilds=" + rebuilds
+               + ", meanChainLength=" + meanChainLength()
+               + ", p99ChainLength=" + chainLengthPercentile(99)
+               + ", maxChainLength=" + maxChainLength
+               + ", minShardSize=" + minShardSize() + ", maxShardSize=" + maxShardSize()
+               + ", shardSkew=" + shardSkew() + "}";
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * The exception class for invalid data format.
+ *
+ * Examples:
+ *      Less data than required in the data file,
+ *      invalid key_size,
+ *      invalid value_size.
+ */
+class InvalidDataFormatException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    InvalidDataFormatException() {
+        super();
+    }
+
+    InvalidDataFormatException(String message) {
+        super(message);
+    }
+}
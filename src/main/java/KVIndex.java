@@ -1,9 +1,29 @@
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * The main class of KVIndex using hash indexing.
@@ -19,9 +39,11 @@ import java.util.Arrays;
  *  During initialization, create index files for all records.
  *  Each files consists of several slots.
  *
- *  Default slot structure:
+ *  Slot structure:
  *  | key_size | address | value_size | next_slot_id |
- *  |    2     |    5    |      2     |       4      |
+ *
+ *  The fields are bit-packed, and their widths are sized to the data file when the index
+ *  is built, e.g. address has just enough bits for the size of the data file. See SlotFormat.
  *
  *  address indicates the address of the original record in the data file.
  *
@@ -29,40 +51,183 @@ import java.util.Arrays;
  *
  *  key_size and value_size can be used to reduce unnecessary disk accesses.
  *
+ *  Optionally (setKeyFingerprintBits), a fingerprint of the key is appended to the slot,
+ *  so that most slots of other keys are rejected without reading the data file.
+ *  See SlotFormat.
+ *
  *  Use linked list to handle collisions.
  *  next_slot_id indicates the id of the next slot in the linked list,
- *  whose address = slot_size(11) * next_slot_id.
+ *  whose address = slot_size * next_slot_id.
+ *
+ *  Optionally (setIndexLayout), slots are grouped in buckets of a cache line or a page
+ *  instead, without next_slot_id, and collisions are handled with linear probing
+ *  over the buckets. A query then reads one bucket in most cases. See BucketFormat.
+ *
+ *  Or, a minimal perfect hash function of the keys of every index file is kept in memory,
+ *  and maps a key to the id of its slot in a dense array without next_slot_id.
+ *  A query then reads exactly one slot. See PerfectHash.
  *
  * Indexing:
  *  hash() : key -> hashCode
  *  hashCode: h bits
  *  First (h - f) bits are used for in-file index.
- *  Last f bits are used for file index, i.e. there are 2^f index files.
+ *  Last f bits are used for file index, i.e. there are 2^f index files (shards).
+ *  f is 8 by default, see setShardBits().
+ *
+ *  The index files are page-aligned regions of a single file with a directory of
+ *  the regions, see IndexFile.
  *
  *  Example:
  *  h = 24, f = 8
  *  fileIdMask:      0x000000ff
  *  infileIndexMask: 0x00ffff00
+ *
+ * Reopening:
+ *  After the index files are built, a header describing them and the data file is written,
+ *  see IndexHeader. open() reuses the index files if the header matches the data file and
+ *  the settings, so a restart does not rebuild the index.
+ *
+ * Querying:
+ *  After initialization, the index files and the data file are kept open as FileChannels.
+ *  Queries only use positional reads on them, which do not modify the channel position,
+ *  so get() needs no lock and can be called by any number of threads.
+ *
+ *  Optionally (setMmapIndex), the index file is memory-mapped once during initialization,
+ *  and slots are read from the mapping instead of with syscalls.
+ *
+ *  Optionally (setIndexMemoryLimit), if the index files fit in the limit, they are loaded into
+ *  off-heap memory during initialization, and a query only reads the data file.
+ *
+ *  The key and the value of a record are read from the data file with a single read.
+ *
+ *  Optionally (setInlineThreshold), the keys and values of small records are stored in
+ *  their slots, so that a query of them reads the index file only. See SlotFormat.
+ *
+ *  Optionally (setFilterBitsPerKey), a blocked Bloom filter of the keys of every index file
+ *  is kept in memory, so that most queries of absent keys return without any read.
+ *  See BloomFilter.
+ *
+ *  Optionally (setBlockCacheBytes), the index files and the data file are read through
+ *  a userspace cache of 4 KB blocks, see BlockCache. The index files are not, if they are
+ *  memory-mapped or loaded into memory.
+ *
+ *  Optionally (setValueCacheBytes), the values of recently queried keys are cached in memory,
+ *  see ValueCache.
+ *
+ *  getAsync() runs the read of the index files and the read of the data file of a query
+ *  as two chained stages on a pool of I/O threads, so that the caller is not blocked,
+ *  and at most maxInFlightReads reads are in flight. The other stages wait in a queue.
  */
-public class KVIndex {
-    final int f = 8;        // # of bits used for file id
+public class KVIndex implements Closeable {
+    int f = 8;              // # of bits used for file id
     long fileIdMask;        // bitwise mask for file id
     long infileIndexMask;   // bitwise mask for in-file index
 
-    // constants used to specify the format of index slots
-    private static final int addrLength = 5;
-    private static final int infilePointerLength = 4;
-    static int slotSize = Record.keySizeLength + addrLength
-                          + Record.valueSizeLength + infilePointerLength;
+    // format of index slots
+    SlotFormat slotFormat = new SlotFormat(0);
+    int slotSize = slotFormat.slotSize;
+
+    // format of buckets, null if the slots are chained
+    BucketFormat bucketFormat = null;
+
+    // minimal perfect hash functions of the index files, null if they are not used
+    PerfectHash[] perfectHashes = null;
+
+    // filters of the keys of the index files, null if there are no filters
+    BloomFilter[] filters = null;
+
+    // header of the index files, null before the index is created or loaded
+    IndexHeader header = null;
+
+    // bits per key of the filters for the next initialization, 0 for no filters
+    int filterBitsPerKey = 0;
+
+    // queries of absent keys answered by the filters, and passed by them
+    private LongAdder filterNegatives = new LongAdder();
+    private LongAdder filterFalsePositives = new LongAdder();
+
+    // metrics of the queries and the builds
+    final Metrics metrics = new Metrics();
+
+    // metrics the queries are recorded to, null if they are not recorded
+    private Metrics queryMetrics = null;
+
+    // whether to record the query metrics for the next initialization
+    private boolean metricsEnabled = true;
+
+    // name of the MBean of the metrics for the next initialization, null for no MBean
+    private String mBeanName = null;
+    private ObjectName registeredMBean = null;
+
+    // # of bits used for file id for the next initialization
+    private int shardBits = 8;
+
+    // bits of key fingerprints in slots for the next initialization, 0 for no fingerprints
+    private int keyFingerprintBits = 0;
+
+    // layout of index files for the next initialization
+    private IndexLayout indexLayout = IndexLayout.CHAINED;
+
+    // max total size of the key and value of an inline record for the next initialization,
+    // 0 for no inline records
+    int inlineThreshold = 0;
 
 
     // index file info
     String indexPath = "data" + File.separator + "index";
-    final String indexFilenamePrefix = "index";
-    final String indexFilenamePostfix = "";
+    final String indexFilename = "index";
+
+    // whether to memory-map the index files for queries
+    private boolean mmapIndex = false;
+
+    // max total size of the index files loaded into memory, 0 for never loading them
+    private long indexMemoryLimit = 0;
+
+    // max total size of the value cache for the next initialization, 0 for no cache
+    private long valueCacheBytes = 0;
+
+    // cache of the values of recently queried keys, null if there is no cache
+    ValueCache valueCache;
+
+    // memory budget of the block cache for the next initialization, 0 for no cache
+    private long blockCacheBytes = 0;
+
+    // cache of the blocks of the index files and the data file, null if there is no cache
+    BlockCache blockCache;
+
+    // max number of reads of asynchronous queries in flight for the next initialization
+    private int maxInFlightReads = 64;
+
+    // threads doing the reads of asynchronous queries
+    ExecutorService ioExecutor;
+
+    // per-thread buffer of the records read by getInto() and transferValueTo()
+    private static final ThreadLocal<ByteBuffer> recordBuffer = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocate(Record.MAX_KEY_SIZE + Record.valueSizeLength
+                                      + Record.MAX_VALUE_SIZE));
+
+    // returned by the visitors of getInto() and transferValueTo() to stop at the record found
+    private static final byte[] FOUND = new byte[0];
+
+    // ids of the index file and the data file in the block cache
+    private static final int INDEX_FILE_ID = 0;
+    private static final int DATA_FILE_ID = 1;
+
+    // number of threads used to build the index files
+    private int buildThreads = Runtime.getRuntime().availableProcessors();
+
+    // memory used to buffer records while building, in bytes
+    private long buildMemoryBudget = 256L << 20;
+
+    // opened index file holding all the shards
+    IndexShard indexFile;
+
+    // regions of the index file, indexed by file id
+    IndexShard[] shards;
 
     // original data file
-    RandomAccessFile dataFile;
+    FileChannel dataChannel;
+    private File dataFile;
 
     // number of key-value pairs
     long N;
@@ -70,296 +235,1772 @@ public class KVIndex {
     // hash function
     HashFunc hasher;
 
+    // algorithm of the hash function for the next initialization
+    HashAlgorithm hashAlgorithm = HashAlgorithm.XXH64;
+
+    // preferred load factor of the hash function for the next initialization
+    double loadFactor = HashFunc.DEFAULT_LOAD_FACTOR;
+
+    // limits of the chain lengths of a build, over which the index is rebuilt, 0 for no limit
+    int maxChainLength = 32;
+    int p99ChainLength = 8;
+    int maxRebuilds = 2;
+
+    // statistics of the last build, null if the index is loaded or not initialized
+    volatile IndexStats indexStats = null;
+
     KVIndex() {
-        System.out.println("Hello PingCAP");
+        Log.logi("Hello PingCAP");
     }
 
     /**
-     * Creates index to get ready for queries.
+     * Sets whether to memory-map the index files. Takes effect on the next initialization.
      *
-     * @param filename
-     *        The filename of data.
+     * @param mmapIndex
+     *        true to read slots from memory-mapped index files,
+     *        false to read slots with positional reads
+     */
+    public void setMmapIndex(boolean mmapIndex) {
+        this.mmapIndex = mmapIndex;
+    }
+
+    /**
+     * Sets the maximum total size of the index files to be loaded into off-heap memory.
+     * Takes effect on the next initialization. By default, it is 0.
      *
-     * @throws IOException
-     *         If I/O errors occur.
-     * @throws InvalidDataFormatException
-     *         If the data file has invalid format.
+     * If the index files fit in the limit, they are loaded into direct buffers,
+     * otherwise they are read from disk as usual, see setMmapIndex().
+     *
+     * @param bytes
+     *        The limit in bytes, 0 for never loading the index files into memory
      */
-    public void initialize(String filename)
-            throws IOException, InvalidDataFormatException {
-        N = countEntry(filename);
-        Log.logi("N = " + N);
-        hasher = new HashFunc(N);
-        calculateMask();
-        createIndexFile();
-        createIndex(filename);
-        dataFile = new RandomAccessFile(filename, "r");
+    public void setIndexMemoryLimit(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("bytes must not be negative");
+        this.indexMemoryLimit = bytes;
     }
 
     /**
-     * Thread-safe query function that returns the value corresponding to the given key.
+     * Sets the maximum total bytes of the keys and values in the value cache.
+     * Takes effect on the next initialization. By default, there is no cache.
      *
-     * @param key
-     *        Key of the query.
+     * The cache is worth it if some keys are queried much more often than others.
+     * Keys queried once, e.g. by a scan, hardly evict the keys queried repeatedly.
+     * Every record fits in a cache of at least 64 * 8.3 KB, about 530 KB, which is striped
+     * 64 ways. A smaller cache is striped fewer ways, and does not cache the records larger
+     * than it, i.e. a key, a value and about 96 bytes of overhead.
      *
-     * @return The value.
+     * @param bytes
+     *        The maximum size of the cache in bytes, 0 for no cache
+     */
+    public void setValueCacheBytes(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("bytes must not be negative");
+        this.valueCacheBytes = bytes;
+    }
+
+    /**
+     * Returns a snapshot of the counters of the value cache.
      *
-     * @throws UninitializedException
-     *         If the KVIndex object has not been initialized.
+     * @return The statistics, or null if there is no cache
      */
-    synchronized public byte[] get(byte[] key) throws UninitializedException {
-        if (hasher == null)
-            throw new UninitializedException("KVIndex has not been initialized");
+    public CacheStats getCacheStats() {
+        ValueCache valueCache = this.valueCache;
+        if (valueCache == null)
+            return null;
+        return new CacheStats(valueCache.hits(), valueCache.misses(), valueCache.evictions(),
+                              valueCache.bytes());
+    }
 
-        // hash
-        long hashCode = hasher.hash(key);
-        int fileId = (int) (hashCode & fileIdMask);
-        long infileIndex = hashCode >>> f;
+    /**
+     * Sets the memory budget of the block cache. Takes effect on the next initialization.
+     * By default, there is no cache.
+     *
+     * The cache serves reads of the index files and the data file from memory
+     * without syscalls, for deployments where memory-mapping is not acceptable.
+     *
+     * @param bytes
+     *        The memory budget in bytes, 0 for no cache
+     */
+    public void setBlockCacheBytes(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("bytes must not be negative");
+        this.blockCacheBytes = bytes;
+    }
 
-        // hashcode => index => data
-        try {
-            try (RandomAccessFile indexFile =
-                         new RandomAccessFile(getIndexFilePath(fileId), "r")) {
-                byte[] slotArr = new byte[slotSize];
+    /**
+     * Returns a snapshot of the counters of the block cache. A read that waits for a block
+     * being loaded by another query counts as a miss.
+     *
+     * @return The statistics, or null if there is no cache
+     */
+    public CacheStats getBlockCacheStats() {
+        BlockCache blockCache = this.blockCache;
+        if (blockCache == null)
+            return null;
+        return new CacheStats(blockCache.hits(), blockCache.misses(), blockCache.evictions(),
+                              blockCache.bytes());
+    }
 
-                while (true) {
-                    if (slotSize * infileIndex < 0) {
-                        Log.logi("seek offset < 0");
-                        return null;
-                    }
-                    indexFile.seek(slotSize * infileIndex);
-                    indexFile.read(slotArr);
-                    ByteBuffer buf = ByteBuffer.wrap(slotArr);
-                    short keySize = buf.getShort(0);
-
-                    // check key size first
-                    // key1 == key2 => key1.length == key2.length
-                    if (keySize == key.length) {
-                        // retrieve key from data file and compare
-
-                        // read key from data file
-                        // address(5 bytes) = slotArr[keySizeLength, keySizeLength + addrLength]
-                        byte[] addrArr = new byte[8];
-                        System.arraycopy(slotArr, Record.keySizeLength,
-                                         addrArr, 8 - addrLength, addrLength);
-                        long address = ByteBuffer.wrap(addrArr).getLong();
-                        dataFile.seek(address + Record.keySizeLength);
-                        byte[] keyInData = new byte[keySize];
-                        dataFile.read(keyInData);
-
-                        // compare key
-                        if (Arrays.equals(key, keyInData)) {
-                            // find the key-value
-                            // retrieve and return value
-                            short valueSize = buf.getShort(Record.keySizeLength + addrLength);
-                            byte[] value = new byte[valueSize];
-                            dataFile.seek(address + Record.keySizeLength
-                                          + keySize + Record.valueSizeLength);
-                            dataFile.read(value);
-                            return value;
-                        }
-                    }
-
-                    // key does not match
-                    // go to next slot on the chain
-                    infileIndex = buf.getInt(Record.keySizeLength
-                                             + addrLength + Record.valueSizeLength);
-
-                    if (infileIndex <= 0) {
-                        return null;
-                    }
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Sets the number of bits per key of the filters. Takes effect on the next initialization.
+     * By default, there are no filters.
+     *
+     * With filters, a query of an absent key reads neither the index files nor the data file,
+     * unless the filter of its index file gives a false positive. About 10 bits per key
+     * give 1% false positives, and every 5 more bits divide them by about 10.
+     * The filters are kept in memory, and persisted in the index header.
+     *
+     * @param bits
+     *        The number of bits per key, in [0, 32], 0 for no filters
+     */
+    public void setFilterBitsPerKey(int bits) {
+        if (bits < 0 || bits > BloomFilter.MAX_BITS_PER_HASH)
+            throw new IllegalArgumentException("bits must be in [0, "
+                                               + BloomFilter.MAX_BITS_PER_HASH + "]");
+        this.filterBitsPerKey = bits;
+    }
+
+    /**
+     * Returns a snapshot of the counters of the filters since the last initialization.
+     *
+     * @return The statistics, or null if there are no filters
+     */
+    public FilterStats getFilterStats() {
+        BloomFilter[] filters = this.filters;
+        if (filters == null)
             return null;
+        long bytes = 0;
+        for (BloomFilter filter : filters) {
+            bytes += filter.memoryBytes();
         }
+        return new FilterStats(filterNegatives.sum(), filterFalsePositives.sum(),
+                               expectedFalsePositiveRate(filters), bytes);
     }
 
     /**
-     * Counts the total number of records.
+     * Sets whether to record the latencies, hits and misses, and reads of the queries.
+     * Takes effect on the next initialization. By default, they are recorded.
      *
-     * @param filename
-     *        The filename of data.
+     * Recording takes two clock reads and a few uncontended atomic increments per query.
      *
-     * @return The number of records in the data
+     * @param enabled
+     *        Whether to record the query metrics
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        this.metricsEnabled = enabled;
+    }
+
+    /**
+     * Returns a snapshot of the metrics: the query metrics since the last initialization,
+     * and the times of the phases of the last build.
      *
-     * @throws IOException
-     *         If I/O errors occur
-     * @throws InvalidDataFormatException
-     *         If the data file has invalid format.
+     * @return The metrics
      */
-    long countEntry(String filename) throws IOException, InvalidDataFormatException {
-        long rt = 0;
-        RecordReader reader = new RecordReader(filename);
-        while (reader.hasNextRecord()) {
-            Record record = reader.getNextRecord(false);
-            rt++;
-        }
-        return rt;
+    public MetricsSnapshot getMetrics() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * Sets the name of the MBean of the metrics, see KVIndexMXBean.
+     * Takes effect on the next initialization. By default, there is no MBean.
+     *
+     * The MBean is registered to the platform MBean server as
+     * "KVIndex:type=KVIndex,name=(name)" until close().
+     *
+     * @param name
+     *        The name, null for no MBean
+     */
+    public void setMBeanName(String name) {
+        this.mBeanName = name;
     }
 
     /**
-     * Creates empty index files.
+     * Registers the MBean of the metrics if it has a name. A failure is logged, as the
+     * index works without it.
      */
-    void createIndexFile() {
+    private void registerMBean() {
+        if (mBeanName == null)
+            return;
         try {
-            new File("data/index").mkdirs();
-            for (int i = 0; i < (1 << f); i++) {
-                try {
-                    File file = new File(getIndexFilePath(i));
-                    file.delete();
-                    file.createNewFile();
-                    FileOutputStream out = new FileOutputStream(file);
-                    byte[] emptyArr = new byte[slotSize];
-                    for (long j = 0; j < (hasher.capacity >>> f); j++) {
-                        out.write(emptyArr);
-                    }
-                    out.close();
-                } catch (IOException e) {
-                    Log.loge("Failed to create empty index file " + i + ": " + e.getMessage());
-                }
-            }
-        } catch (SecurityException e) {
-            Log.loge("Failed to create empty index file because of security exception: "
-                     + e.getMessage());
-            e.printStackTrace();
+            ObjectName name = new ObjectName("KVIndex:type=KVIndex,name="
+                                             + ObjectName.quote(mBeanName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            registeredMBean = name;
+        } catch (JMException e) {
+            Log.logw("Failed to register MBean " + mBeanName + ": " + e);
+        }
+    }
+
+    private void unregisterMBean() {
+        if (registeredMBean == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredMBean);
+        } catch (JMException e) {
+            Log.logw("Failed to unregister MBean " + registeredMBean + ": " + e);
+        }
+        registeredMBean = null;
+    }
+
+    /**
+     * Returns the false positive rate of the filters for a random absent key,
+     * which goes to every index file with the same probability.
+     */
+    static double expectedFalsePositiveRate(BloomFilter[] filters) {
+        double sum = 0;
+        for (BloomFilter filter : filters) {
+            sum += filter.falsePositiveRate();
         }
+        return sum / filters.length;
     }
 
     /**
-     * Creates index for every record.
+     * Sets the number of bits of the hashcode that choose the index file (shard),
+     * i.e. there are 2^bits shards. Takes effect on the next initialization.
+     * By default, it is 8.
+     *
+     * More shards build in parallel with less memory each, fewer shards waste less space
+     * on page alignment and directory entries in the index file. See IndexFile.
      *
-     * @param filename The filename of data
+     * @param bits
+     *        The number of shard bits, in [0, 16]
      */
-    private void createIndex(String filename) {
-        try {
-            Log.logi("Begin creating index.");
-            long startTime = System.currentTimeMillis();
-            RecordReader reader = new RecordReader(filename);
+    public void setShardBits(int bits) {
+        if (bits < 0 || bits > IndexFile.MAX_SHARD_BITS)
+            throw new IllegalArgumentException("bits must be in [0, "
+                                               + IndexFile.MAX_SHARD_BITS + "]");
+        this.shardBits = bits;
+    }
 
-            // open data file to check replicated key
+    /**
+     * Sets the directory of the index file and the index header.
+     * Takes effect on the next initialization. By default, it is data/index.
+     *
+     * @param indexPath
+     *        The directory, created when the index is built
+     */
+    public void setIndexPath(String indexPath) {
+        if (indexPath == null)
+            throw new NullPointerException("indexPath");
+        this.indexPath = indexPath;
+    }
 
-            while (reader.hasNextRecord()) {
-                // get a record
-                Record record = reader.getNextRecord(true);
-                long hashcode = hasher.hash(record.key);
-                int fileId = (int) (hashcode & fileIdMask);
-                long infileIndex = hashcode >>> f;
-
-                // read the slot from index
-                String indexFilename = getIndexFilePath(fileId);
-                RandomAccessFile indexFile = new RandomAccessFile(indexFilename, "rw");
-
-                // read key_size
-                byte[] keySizeArr = new byte[Record.keySizeLength];
-                indexFile.seek(slotSize * infileIndex);
-                int read = indexFile.read(keySizeArr);
-                short keySize = ByteBuffer.wrap(keySizeArr).getShort();
-                if (keySize == 0) {
-                    // empty slot, direct write to it
-                    indexFile.seek(slotSize * infileIndex);
-                    writeSlot(indexFile, record, new byte[infilePointerLength]);
-                } else {
-                    // hash collision, need to add new slot
-                    // temporarily store the address of next slot
-                    // skip the key_position and value_size field
-                    indexFile.skipBytes(addrLength + Record.valueSizeLength);
-                    byte[] nextPos = new byte[infilePointerLength];
-                    indexFile.read(nextPos);
-
-                    // set the pointer to the next slot to the end, where new record is written
-                    indexFile.seek(slotSize * infileIndex
-                                   + Record.keySizeLength + addrLength +
-                                   Record.valueSizeLength);
-                    indexFile.writeInt((int) (indexFile.length() / slotSize));
-
-                    // append the file
-                    indexFile.seek(indexFile.length());
-                    writeSlot(indexFile, record, nextPos);
-                }
-                indexFile.close();
-            }
-            Log.logi("Index created, used " + (System.currentTimeMillis() - startTime) + "ms.");
-        } catch (IOException | InvalidDataFormatException e) {
-            Log.loge("Failed to create index: " + e.getMessage());
-            e.printStackTrace();
-        }
+    /**
+     * Sets the max number of reads of getAsync() in flight, i.e. the number of I/O threads.
+     * Takes effect on the next initialization. By default, it is 64.
+     *
+     * A deep queue of reads keeps all the channels of an SSD busy, while a small one
+     * leaves more of the device to other work.
+     *
+     * @param maxInFlightReads
+     *        The max number of reads in flight
+     */
+    public void setMaxInFlightReads(int maxInFlightReads) {
+        if (maxInFlightReads <= 0)
+            throw new IllegalArgumentException("maxInFlightReads must be positive");
+        this.maxInFlightReads = maxInFlightReads;
     }
 
     /**
-     * Calculates the masks for file id and infile index.
+     * Sets the hash algorithm. Takes effect on the next initialization.
+     * By default, it is xxHash64.
+     *
+     * @param hashAlgorithm
+     *        The algorithm of the hash function
      */
-    void calculateMask() {
-        fileIdMask = (1 << f) - 1;
-        infileIndexMask = (hasher.capacity - 1) ^ fileIdMask;
+    public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+        if (hashAlgorithm == null)
+            throw new NullPointerException("hashAlgorithm");
+        this.hashAlgorithm = hashAlgorithm;
     }
 
     /**
-     * Returns the index file name
+     * Sets the preferred load factor of the hash function, i.e. the max ratio of the records
+     * to the slots addressed by hashcode. Takes effect on the next initialization.
+     * By default, it is 0.5.
      *
-     * @param fileId
-     *        The id of the index file
+     * The capacity is the smallest power of 2 not less than N / loadFactor, so the actual
+     * load is between half the load factor and the load factor. A lower load factor gives
+     * shorter chains with larger index files.
      *
-     * @return The filename
+     * @param loadFactor
+     *        The load factor, in (0, 1]
      */
-    private String getIndexFilePath(int fileId) {
-        return indexPath + File.separator + indexFilenamePrefix + fileId + indexFilenamePostfix;
+    public void setLoadFactor(double loadFactor) {
+        if (!(loadFactor > 0 && loadFactor <= 1))
+            throw new IllegalArgumentException("loadFactor must be in (0, 1]");
+        this.loadFactor = loadFactor;
     }
 
     /**
-     * Writes a record to the current position of indexFile.
+     * Sets the limits of the chain lengths of a build. Takes effect on the next initialization.
+     * By default, the max chain length is 32, the 99th percentile is 8, and the index is
+     * rebuilt at most twice.
      *
-     * @param indexFile
-     *        File with position
-     * @param record
-     *        The record to be written
-     * @param nextSlotId
-     *        The next slot id in the linked list
+     * If the 99th percentile exceeds its limit, the index is rebuilt with a doubled capacity
+     * from the records partitioned by the last scan. If the max chain length exceeds its limit,
+     * the index is rebuilt with another hash seed, which scans the data file again, so that
+     * a bad distribution of the keys does not leave long chains for the queries. The index
+     * is kept after the last rebuild, even if it exceeds the limits. See IndexStats for the
+     * chain lengths.
      *
-     * @throws IOException
-     *         If I/O errors occur.
+     * @param maxChainLength
+     *        The max chain length, 0 for no limit
+     * @param p99ChainLength
+     *        The max 99th percentile of the chain lengths, 0 for no limit
+     * @param maxRebuilds
+     *        The max number of rebuilds, 0 for never rebuilding
      */
-    private void writeSlot(RandomAccessFile indexFile, Record record, byte[] nextSlotId)
-            throws IOException {
-        if (nextSlotId.length != infilePointerLength)
-            throw new IllegalArgumentException("Length of nextSlotId must be 4");
+    public void setChainLengthLimits(int maxChainLength, int p99ChainLength, int maxRebuilds) {
+        if (maxChainLength < 0)
+            throw new IllegalArgumentException("maxChainLength must be non-negative");
+        if (p99ChainLength < 0)
+            throw new IllegalArgumentException("p99ChainLength must be non-negative");
+        if (maxRebuilds < 0)
+            throw new IllegalArgumentException("maxRebuilds must be non-negative");
+        this.maxChainLength = maxChainLength;
+        this.p99ChainLength = p99ChainLength;
+        this.maxRebuilds = maxRebuilds;
+    }
+
+    /**
+     * Returns the chain lengths and the sizes of the index files of the last build.
+     *
+     * @return The statistics, or null if the existing index was opened without a build
+     */
+    public IndexStats getIndexStats() {
+        return indexStats;
+    }
+
+    /**
+     * Sets the number of bits of the key fingerprints stored in slots.
+     * Takes effect on the next initialization. By default, there are no fingerprints.
+     *
+     * With fingerprints, a slot of another key with the same key size is rejected
+     * without reading the data file, unless the fingerprints collide,
+     * at the cost of 1 or 2 more bytes per slot.
+     *
+     * @param bits
+     *        0, 8 or 16
+     */
+    public void setKeyFingerprintBits(int bits) {
+        if (bits != 0 && bits != 8 && bits != 16)
+            throw new IllegalArgumentException("bits must be 0, 8 or 16");
+        this.keyFingerprintBits = bits;
+    }
 
-        Log.logd("--------writeslot--------");
-        Log.logd("key = " + Arrays.toString(record.key));
-        Log.logd("addr = " + record.address);
-        Log.logd("value size = " + record.valueSize);
-        Log.logd("value = " + Arrays.toString(record.value));
+    /**
+     * Sets the maximum total size of the key and the value of a record to be stored
+     * in its slot. Takes effect on the next initialization. By default, it is 0.
+     *
+     * Every slot gets an inline area of the threshold, and a record that fits in it is inline,
+     * so that a query of it reads its slot only, instead of its slot and the data file.
+     * The index files grow by the threshold per slot. In a bucketed layout, the threshold is
+     * lowered so that a bucket holds at least 2 slots.
+     *
+     * @param bytes
+     *        The threshold in bytes, in [0, 4096], 0 for no inline records
+     */
+    public void setInlineThreshold(int bytes) {
+        if (bytes < 0 || bytes > SlotFormat.MAX_INLINE_BYTES)
+            throw new IllegalArgumentException("bytes must be in [0, "
+                                               + SlotFormat.MAX_INLINE_BYTES + "]");
+        this.inlineThreshold = bytes;
+    }
 
+    /**
+     * Sets the layout of the index files. Takes effect on the next initialization.
+     * By default, the slots are chained.
+     *
+     * With buckets, a query reads one cache line or page of an index file in most cases,
+     * no matter how many collisions there are, instead of one slot per hop on a chain.
+     *
+     * @param indexLayout
+     *        The layout of the index files
+     */
+    public void setIndexLayout(IndexLayout indexLayout) {
+        if (indexLayout == null)
+            throw new NullPointerException("indexLayout");
+        this.indexLayout = indexLayout;
+    }
 
-        // key_size
-        indexFile.writeShort(record.keySize);
+    /**
+     * Sets the number of threads used to build the index files.
+     * By default, it is the number of available processors.
+     *
+     * @param buildThreads
+     *        The number of threads, 1 for single-threaded building
+     */
+    public void setBuildThreads(int buildThreads) {
+        if (buildThreads <= 0)
+            throw new IllegalArgumentException("buildThreads must be positive");
+        this.buildThreads = buildThreads;
+    }
 
-        // position of key in original data file
-        // 5 bytes, since the address space of the original data is 1 TB = 2^40 bytes
-        byte[] addrArr = Arrays.copyOfRange(ByteBuffer.allocate(8).putLong(record.address).array()
-                , 8 - addrLength, 8);
-        Log.logd("written address: " + Arrays.toString(addrArr));
-        indexFile.write(addrArr);
+    /**
+     * Sets the memory budget of building the index files.
+     * Records that do not fit in the budget are spilled to temporary files.
+     * By default, it is 256 MB.
+     *
+     * Every index file is built from all of its records in memory, about 44 bytes per record
+     * plus the kept inline records, and fewer index files are built in parallel when they do
+     * not fit in the budget together. An index file larger than the budget is built alone,
+     * so the peak memory is not bounded by the budget then. Use more shard bits to keep
+     * every index file within the budget, see setShardBits().
+     *
+     * @param bytes
+     *        The memory budget in bytes
+     */
+    public void setBuildMemoryBudget(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("bytes must be positive");
+        this.buildMemoryBudget = bytes;
+    }
 
-        // value_size
-        indexFile.writeShort(record.valueSize);
+    /**
+     * Creates index to get ready for queries.
+     *
+     * @param filename
+     *        The filename of data.
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     * @throws InvalidDataFormatException
+     *         If the data file has invalid format.
+     */
+    public void initialize(String filename)
+            throws IOException, InvalidDataFormatException {
+        close();
+        createIndex(filename);
+        openForQueries(filename);
+    }
 
-        // position of next slot if there is hash collision
-        indexFile.write(nextSlotId);
-        Log.logd("-------\\writeslot--------");
+    /**
+     * Opens the index built from the data file by a previous initialization, to get ready
+     * for queries without rebuilding it.
+     *
+     * The index is rebuilt like initialize() instead, if there is no index, its header is
+     * corrupted, the data file has changed since it was built (size, modified time or
+     * sampled checksum), or it was built with other settings: shard bits, layout,
+     * fingerprint bits, filter bits, inline threshold or hash algorithm. It is also rebuilt
+     * if its capacity is less than the load factor asks for, while a larger capacity, e.g.
+     * grown by a rebuild for long chains, is kept. See IndexHeader.
+     *
+     * @param filename
+     *        The filename of data.
+     *
+     * @return true if the existing index is opened, false if it is rebuilt
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     * @throws InvalidDataFormatException
+     *         If the data file has invalid format.
+     */
+    public boolean open(String filename) throws IOException, InvalidDataFormatException {
+        close();
+        long startTime = System.currentTimeMillis();
+        indexStats = null;
+        boolean opened = loadIndex(filename);
+        if (opened)
+            metrics.loadMillis = System.currentTimeMillis() - startTime;
+        else
+            createIndex(filename);
+        openForQueries(filename);
+        return opened;
     }
-}
 
-/**
- * The exception class for queries before initialization.
- */
-class UninitializedException extends Exception {
-    UninitializedException() {
-        super();
+    /**
+     * Opens the files and creates the caches for queries, after the index is created or loaded.
+     *
+     * @param filename
+     *        The filename of data.
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    private void openForQueries(String filename) throws IOException {
+        openChannels(filename);
+        valueCache = valueCacheBytes > 0 ? new ValueCache(valueCacheBytes) : null;
+        filterNegatives = new LongAdder();
+        filterFalsePositives = new LongAdder();
+        metrics.resetQueries();
+        queryMetrics = metricsEnabled ? metrics : null;
+        ioExecutor = newIoExecutor(maxInFlightReads);
+        registerMBean();
     }
 
-    UninitializedException(String msg) {
-        super(msg);
+    /**
+     * Loads the state of the index from the index header, if the header is valid
+     * and matches the data file and the current settings.
+     * Sets the slot and bucket formats, the perfect hash functions, the filters, N, the hasher
+     * and the masks.
+     *
+     * @param filename
+     *        The filename of data.
+     *
+     * @return Whether the index is loaded
+     */
+    private boolean loadIndex(String filename) {
+        File headerFile = getHeaderFile();
+        if (!headerFile.exists()) {
+            Log.logi("No index header, building index.");
+            return false;
+        }
+        IndexHeader header;
+        try {
+            header = IndexHeader.read(headerFile);
+            if (!header.matches(new File(filename))) {
+                Log.logi("Data file has changed, rebuilding index.");
+                return false;
+            }
+        } catch (IOException e) {
+            Log.logw("Failed to read index header, rebuilding index: " + e.getMessage());
+            return false;
+        }
+        if (header.f != shardBits || header.layout != indexLayout
+            || header.slotFormat.fingerprintBits != keyFingerprintBits
+            || header.filterBitsPerKey != filterBitsPerKey
+            || header.slotFormat.inlineBytes != inlineBytes(header.slotFormat)
+            || header.hashAlgorithm != hashAlgorithm) {
+            Log.logi("Index settings have changed, rebuilding index.");
+            return false;
+        }
+
+        if (header.slotFormat.linked != (header.layout == IndexLayout.CHAINED)) {
+            Log.logw("Index header has slots of another layout, rebuilding index.");
+            return false;
+        }
+
+        f = header.f;
+        setFormats(header.layout, header.slotFormat);
+        perfectHashes = header.perfectHashes;
+        filters = header.filters;
+        N = header.N;
+        // a build may have grown the capacity for long chains, but not shrunk it
+        if (Long.bitCount(header.capacity) != 1 || header.capacity > HashFunc.MAX_CAPACITY) {
+            Log.logw("Index header has invalid capacity " + header.capacity
+                     + ", rebuilding index.");
+            return false;
+        }
+        hasher = new HashFunc(N, Math.max(1L << f, header.capacity), header.hashAlgorithm,
+                              header.seed, loadFactor);
+        if (hasher.capacity != header.capacity) {
+            Log.logw("Index header has capacity " + header.capacity + " instead of "
+                     + hasher.capacity + ", rebuilding index.");
+            hasher = null;
+            return false;
+        }
+        calculateMask();
+
+        // the index file is complete if the header is written, check it anyway
+        long[] regions;
+        try (IndexShard file = new ChannelIndexShard(
+                FileChannel.open(getIndexFile().toPath(), StandardOpenOption.READ))) {
+            regions = IndexFile.readDirectory(file, f);
+        } catch (IOException e) {
+            Log.logw("Invalid index file, rebuilding index: " + e.getMessage());
+            hasher = null;
+            return false;
+        }
+        for (int i = 0; i < (1 << f); i++) {
+            long length = regions[2 * i + 1];
+            long expected = perfectHashes != null ? perfectHashes[i].size() * slotSize
+                                                  : tableBytesPerFile();
+            if (perfectHashes != null ? length != expected : length < expected) {
+                Log.logw("Index file " + i + " has " + length + " bytes, rebuilding index.");
+                hasher = null;
+                return false;
+            }
+        }
+        this.header = header;
+        Log.logi("Index opened, N = " + N + ".");
+        return true;
+    }
+
+    /**
+     * Creates the pool of I/O threads of getAsync(). The threads are daemons,
+     * and they exit after being idle for a while.
+     *
+     * @param threads
+     *        The number of threads
+     *
+     * @return The pool
+     */
+    private static ExecutorService newIoExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "kvindex-io-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Opens the index file and the data file for queries.
+     *
+     * @param filename
+     *        The filename of data.
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    private void openChannels(String filename) throws IOException {
+        BlockCache blockCache = blockCacheBytes > 0 ? new BlockCache(blockCacheBytes) : null;
+        File file = getIndexFile();
+        boolean inMemory = false;
+        if (indexMemoryLimit > 0) {
+            long indexBytes = file.length();
+            inMemory = indexBytes <= indexMemoryLimit;
+            Log.logi("Index file uses " + indexBytes + " bytes, "
+                     + (inMemory ? "loaded into memory." : "kept on disk."));
+        }
+
+        // the index file is opened as a unit, and the shards are views of its regions
+        IndexShard indexFile = null;
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            if (inMemory) {
+                try {
+                    indexFile = new MemoryIndexShard(channel);
+                } finally {
+                    channel.close();
+                }
+            } else if (mmapIndex) {
+                try {
+                    indexFile = new MappedIndexShard(channel);
+                } finally {
+                    // the mapping stays valid after the channel is closed
+                    channel.close();
+                }
+            } else if (blockCache != null) {
+                indexFile = new CachedIndexShard(channel, blockCache, INDEX_FILE_ID);
+            } else {
+                indexFile = new ChannelIndexShard(channel);
+            }
+
+            long[] regions = IndexFile.readDirectory(indexFile, f);
+            IndexShard[] shards = new IndexShard[1 << f];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new RegionIndexShard(indexFile, regions[2 * i], regions[2 * i + 1]);
+            }
+            dataChannel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            dataFile = new File(filename);
+            this.shards = shards;
+        } catch (IOException e) {
+            if (indexFile != null)
+                indexFile.close();
+            throw e;
+        }
+        this.indexFile = indexFile;
+        this.blockCache = blockCache;
+    }
+
+    /**
+     * Rewrites the data file with the records grouped by index file and by chain, bucket or
+     * slot, and reopens the index on the new data file. The records compared by a query are
+     * then adjacent, so that a query verifying several keys usually reads one page of data.
+     *
+     * The addresses in the index files are rewritten to match, or the index is rebuilt from
+     * the new data file if they do not fit in the slots. The original data file is kept.
+     * If the rewrite fails, the index is unchanged and still answers from the original data
+     * file. Not thread-safe: no query may run meanwhile.
+     *
+     * @param clusteredFilename
+     *        The filename of the new data file, which is replaced if it exists
+     *
+     * @throws UninitializedException
+     *         If the KVIndex object has not been initialized.
+     * @throws IllegalArgumentException
+     *         If the new data file is the data file.
+     * @throws IOException
+     *         If I/O errors occur.
+     * @throws InvalidDataFormatException
+     *         If the index is rebuilt and the new data file has invalid format.
+     */
+    public void clusterData(String clusteredFilename)
+            throws UninitializedException, IOException, InvalidDataFormatException {
+        if (hasher == null || shards == null || dataChannel == null || header == null)
+            throw new UninitializedException("KVIndex has not been initialized");
+        File clusteredFile = new File(clusteredFilename);
+        if (clusteredFile.exists() && Files.isSameFile(clusteredFile.toPath(), dataFile.toPath()))
+            throw new IllegalArgumentException("Cannot cluster the data file into itself");
+        long startTime = System.currentTimeMillis();
+        if (!new DataClusterer(this).cluster(clusteredFile))
+            Log.logi("Addresses of the clustered data do not fit in the slots, rebuilding index.");
+        open(clusteredFilename);
+        Log.logi("Data clustered, used " + (System.currentTimeMillis() - startTime) + "ms.");
+    }
+
+    /**
+     * Closes the opened index file and data file.
+     * The index has to be initialized again before further queries.
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    @Override
+    public void close() throws IOException {
+        unregisterMBean();
+        hasher = null;
+        valueCache = null;
+        blockCache = null;
+        if (ioExecutor != null) {
+            // the queued stages fail on the closed channels
+            ioExecutor.shutdown();
+            ioExecutor = null;
+        }
+        shards = null;
+        if (indexFile != null) {
+            indexFile.close();
+            indexFile = null;
+        }
+        if (dataChannel != null) {
+            dataChannel.close();
+            dataChannel = null;
+            dataFile = null;
+        }
+    }
+
+    /**
+     * Thread-safe query function that returns the value corresponding to the given key.
+     *
+     * Lock-free: only positional reads are performed on the shared channels.
+     * Note that interrupting a querying thread closes the channel it is reading from,
+     * see {@link java.nio.channels.InterruptibleChannel}.
+     *
+     * @param key
+     *        Key of the query.
+     *
+     * @return The value.
+     *
+     * @throws UninitializedException
+     *         If the KVIndex object has not been initialized.
+     */
+    public byte[] get(byte[] key) throws UninitializedException {
+        Metrics metrics = this.queryMetrics;
+        if (metrics == null)
+            return getValue(key);
+        long startTime = System.nanoTime();
+        byte[] value = getValue(key);
+        metrics.recordQuery(metrics.get, startTime, value != null);
+        return value;
+    }
+
+    /**
+     * Queries the value like get(), without recording the metrics.
+     */
+    private byte[] getValue(byte[] key) throws UninitializedException {
+        HashFunc hasher = this.hasher;
+        IndexShard[] shards = this.shards;
+        FileChannel dataChannel = this.dataChannel;
+        BlockCache blockCache = this.blockCache;
+        if (hasher == null || shards == null || dataChannel == null)
+            throw new UninitializedException("KVIndex has not been initialized");
+
+        // hash
+        long hash = hasher.hash64(key);
+        long hashCode = hasher.mask(hash);
+
+        // the value cache
+        ValueCache valueCache = this.valueCache;
+        if (valueCache != null) {
+            byte[] value = valueCache.get(key, hash);
+            if (value != null)
+                return value;
+        }
+
+        // hashcode => index => data
+        byte[] value;
+        try {
+            value = find(shards, dataChannel, blockCache, key, hash, hashCode);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (value != null && valueCache != null)
+            valueCache.put(key, hash, value);
+        return value;
+    }
+
+    /**
+     * Thread-safe query function that copies the value corresponding to the given key to dst,
+     * without allocating an array for the value.
+     *
+     * The key and the value are read from the data file into a buffer of the thread with
+     * a single read, then the value is copied to dst. An inline value is copied from its slot.
+     *
+     * @param key
+     *        Key of the query.
+     * @param dst
+     *        The destination buffer, whose position is advanced by the length of the value
+     *
+     * @return The length of the value, or -1 if the key does not exist or I/O errors occur
+     *
+     * @throws UninitializedException
+     *         If the KVIndex object has not been initialized.
+     * @throws BufferOverflowException
+     *         If the value is longer than dst.remaining(), dst is not modified then.
+     */
+    public int getInto(byte[] key, ByteBuffer dst) throws UninitializedException {
+        Metrics metrics = this.queryMetrics;
+        if (metrics == null)
+            return copyValueInto(key, dst);
+        long startTime = System.nanoTime();
+        int length = copyValueInto(key, dst);
+        metrics.recordQuery(metrics.getInto, startTime, length >= 0);
+        return length;
+    }
+
+    /**
+     * Copies the value like getInto(), without recording the metrics.
+     */
+    private int copyValueInto(byte[] key, ByteBuffer dst) throws UninitializedException {
+        HashFunc hasher = this.hasher;
+        IndexShard[] shards = this.shards;
+        FileChannel dataChannel = this.dataChannel;
+        BlockCache blockCache = this.blockCache;
+        if (hasher == null || shards == null || dataChannel == null)
+            throw new UninitializedException("KVIndex has not been initialized");
+
+        long hash = hasher.hash64(key);
+        ValueCache valueCache = this.valueCache;
+        if (valueCache != null) {
+            int length = valueCache.getInto(key, hash, dst);
+            if (length >= 0)
+                return length;
+        }
+
+        int[] length = {-1};
+        try {
+            walkSlots(shards, hash, hasher.mask(hash), key.length, (format, buf, offset, next) -> {
+                short keySize = format.keySize(buf, offset);
+                short valueSize = format.valueSize(buf, offset);
+                if (format.isInline(keySize, valueSize)) {
+                    if (!format.inlineKey(buf, offset).equals(ByteBuffer.wrap(key)))
+                        return null;
+                    if (valueSize > dst.remaining())
+                        throw new BufferOverflowException();
+                    ByteBuffer value = format.inlineValue(buf, offset);
+                    if (valueCache != null)
+                        valueCache.put(key, hash, MultiGet.toArray(value));
+                    dst.put(value);
+                    length[0] = valueSize;
+                    return FOUND;
+                }
+                int valueOffset = keySize + Record.valueSizeLength;
+                ByteBuffer record = recordBuffer(valueOffset + valueSize);
+                readData(dataChannel, blockCache, record,
+                         format.address(buf, offset) + Record.keySizeLength);
+                if (!keyEquals(key, record.array()))
+                    return null;
+
+                if (valueSize > dst.remaining())
+                    throw new BufferOverflowException();
+                dst.put(record.array(), valueOffset, valueSize);
+                if (valueCache != null)
+                    valueCache.put(key, hash, record.array(), valueOffset, valueSize);
+                length[0] = valueSize;
+                return FOUND;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        return length[0];
+    }
+
+    /**
+     * Thread-safe query function that writes the value corresponding to the given key
+     * to the target channel.
+     *
+     * The value is transferred from the data file with FileChannel.transferTo(),
+     * so it can go from the page cache to a socket or a pipe without being copied
+     * into the Java heap. The key is still read to be compared. The value is transferred
+     * even if a block cache is set, and it is not put into the value cache.
+     * An inline value is written from its slot.
+     *
+     * @param key
+     *        Key of the query.
+     * @param target
+     *        The target channel, in blocking mode
+     *
+     * @return The length of the value, or -1 if the key does not exist
+     *
+     * @throws UninitializedException
+     *         If the KVIndex object has not been initialized.
+     * @throws IOException
+     *         If I/O errors occur, the target may have received a part of the value then.
+     */
+    public long transferValueTo(byte[] key, WritableByteChannel target)
+            throws UninitializedException, IOException {
+        Metrics metrics = this.queryMetrics;
+        if (metrics == null)
+            return transferValue(key, target);
+        long startTime = System.nanoTime();
+        long length = transferValue(key, target);
+        metrics.recordQuery(metrics.transferValueTo, startTime, length >= 0);
+        return length;
+    }
+
+    /**
+     * Transfers the value like transferValueTo(), without recording the metrics.
+     */
+    private long transferValue(byte[] key, WritableByteChannel target)
+            throws UninitializedException, IOException {
+        HashFunc hasher = this.hasher;
+        IndexShard[] shards = this.shards;
+        FileChannel dataChannel = this.dataChannel;
+        BlockCache blockCache = this.blockCache;
+        if (hasher == null || shards == null || dataChannel == null)
+            throw new UninitializedException("KVIndex has not been initialized");
+
+        long hash = hasher.hash64(key);
+        ValueCache valueCache = this.valueCache;
+        if (valueCache != null) {
+            byte[] value = valueCache.get(key, hash);
+            if (value != null) {
+                ByteBuffer src = ByteBuffer.wrap(value);
+                while (src.hasRemaining()) {
+                    target.write(src);
+                }
+                return value.length;
+            }
+        }
+
+        long[] length = {-1};
+        walkSlots(shards, hash, hasher.mask(hash), key.length, (format, buf, offset, next) -> {
+            short keySize = format.keySize(buf, offset);
+            short valueSize = format.valueSize(buf, offset);
+            if (format.isInline(keySize, valueSize)) {
+                if (!format.inlineKey(buf, offset).equals(ByteBuffer.wrap(key)))
+                    return null;
+                ByteBuffer value = format.inlineValue(buf, offset);
+                while (value.hasRemaining()) {
+                    target.write(value);
+                }
+                length[0] = valueSize;
+                return FOUND;
+            }
+            long address = format.address(buf, offset) + Record.keySizeLength;
+            ByteBuffer record = recordBuffer(keySize);
+            readData(dataChannel, blockCache, record, address);
+            if (!keyEquals(key, record.array()))
+                return null;
+
+            long position = address + keySize + Record.valueSizeLength;
+            long end = position + valueSize;
+            while (position < end) {
+                // transferTo() to a blocking channel returns 0 only at the end of file
+                long transferred = dataChannel.transferTo(position, end - position, target);
+                if (transferred <= 0)
+                    throw new EOFException("End of file: no enough data to read at " + position);
+                position += transferred;
+            }
+            Metrics metrics = queryMetrics;
+            if (metrics != null)
+                metrics.dataReads.increment();
+            length[0] = valueSize;
+            return FOUND;
+        });
+        return length[0];
+    }
+
+    /**
+     * Returns the record buffer of the thread, cleared and limited to the size.
+     *
+     * @param size
+     *        The size to read
+     *
+     * @return The buffer, backed by an array
+     */
+    private static ByteBuffer recordBuffer(int size) {
+        ByteBuffer buf = recordBuffer.get();
+        if (buf.capacity() < size) {
+            buf = ByteBuffer.allocate(size);
+            recordBuffer.set(buf);
+        }
+        buf.clear().limit(size);
+        return buf;
+    }
+
+    /**
+     * Returns whether the array begins with the key.
+     */
+    private static boolean keyEquals(byte[] key, byte[] arr) {
+        for (int i = 0; i < key.length; i++) {
+            if (arr[i] != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Asynchronous query function that returns the value corresponding to the given key.
+     * Thread-safe, and the caller is not blocked by I/O.
+     *
+     * The query is run as chained stages on the I/O threads:
+     *  1. The slots of the key are walked until the first one whose key size and fingerprint
+     *     match.
+     *  2. The record of the slot is read from the data file. In the rare case that it holds
+     *     another key, the walk continues after the slot like get(), without reading
+     *     the record again.
+     * See setMaxInFlightReads().
+     *
+     * @param key
+     *        Key of the query.
+     *
+     * @return The future of the value, which is null if the key does not exist,
+     *         and completes exceptionally with the IOException if I/O errors occur.
+     *
+     * @throws UninitializedException
+     *         If the KVIndex object has not been initialized.
+     */
+    public CompletableFuture<byte[]> getAsync(byte[] key) throws UninitializedException {
+        Metrics metrics = this.queryMetrics;
+        if (metrics == null)
+            return getValueAsync(key);
+        long startTime = System.nanoTime();
+        return getValueAsync(key).whenComplete((value, e) -> {
+            if (e == null)
+                metrics.recordQuery(metrics.getAsync, startTime, value != null);
+            else
+                metrics.errors.increment();
+        });
+    }
+
+    /**
+     * Queries the value like getAsync(), without recording the metrics.
+     */
+    private CompletableFuture<byte[]> getValueAsync(byte[] key) throws UninitializedException {
+        HashFunc hasher = this.hasher;
+        IndexShard[] shards = this.shards;
+        FileChannel dataChannel = this.dataChannel;
+        BlockCache blockCache = this.blockCache;
+        ExecutorService ioExecutor = this.ioExecutor;
+        SlotFormat slotFormat = this.slotFormat;
+        if (hasher == null || shards == null || dataChannel == null || ioExecutor == null)
+            throw new UninitializedException("KVIndex has not been initialized");
+
+        long hash = hasher.hash64(key);
+        long hashCode = hasher.mask(hash);
+
+        ValueCache valueCache = this.valueCache;
+        if (valueCache != null) {
+            byte[] value = valueCache.get(key, hash);
+            if (value != null)
+                return CompletableFuture.completedFuture(value);
+        }
+        // an absent key rejected by the filter needs no I/O thread
+        if (!mayContain(hash, hashCode))
+            return CompletableFuture.completedFuture(null);
+
+        return CompletableFuture
+                // index files => a copy of the first matching slot
+                .supplyAsync(() -> unchecked(() -> {
+                    long[] next = {-1};
+                    byte[] slot = walkSlots(shards, hash, hashCode, key.length,
+                                            (format, buf, offset, position) -> {
+                                                next[0] = position;
+                                                return copySlot(format, buf, offset);
+                                            });
+                    return slot == null ? null : new SlotCopy(slot, next[0]);
+                }), ioExecutor)
+                // slot => data
+                .thenApplyAsync(copy -> unchecked(() -> {
+                    if (copy == null)
+                        return null;
+                    byte[] value = readValueIfMatches(dataChannel, blockCache, key, slotFormat,
+                                                      ByteBuffer.wrap(copy.slot), 0);
+                    if (value == null)
+                        value = findFrom(shards, dataChannel, blockCache, key, hash, hashCode,
+                                         copy.next);
+                    if (value != null && valueCache != null)
+                        valueCache.put(key, hash, value);
+                    return value;
+                }), ioExecutor);
+    }
+
+    /**
+     * A copy of the first matching slot of a walk, and the position to continue the walk from.
+     */
+    private static class SlotCopy {
+        final byte[] slot;
+        final long next;
+
+        SlotCopy(byte[] slot, long next) {
+            this.slot = slot;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Returns a copy of the slot.
+     */
+    private static byte[] copySlot(SlotFormat slotFormat, ByteBuffer buf, int offset) {
+        byte[] slot = new byte[slotFormat.slotSize];
+        ByteBuffer src = buf.duplicate();
+        src.position(offset);
+        src.get(slot);
+        return slot;
+    }
+
+    private interface IOSupplier<T> {
+        T get() throws IOException;
+    }
+
+    /**
+     * Runs a stage of getAsync(), wrapping its IOException in a CompletionException,
+     * which completes the future exceptionally with the IOException.
+     */
+    private static <T> T unchecked(IOSupplier<T> supplier) {
+        try {
+            return supplier.get();
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Looks up the key in the index files and reads its value from the data file.
+     *
+     * @return The value, or null if the key does not exist
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    byte[] find(IndexShard[] shards, FileChannel dataChannel, BlockCache blockCache,
+                byte[] key, long hash, long hashCode) throws IOException {
+        return walkSlots(shards, hash, hashCode, key.length,
+                         (format, buf, offset, next) -> readValueIfMatches(
+                                 dataChannel, blockCache, key, format, buf, offset));
+    }
+
+    /**
+     * Looks up the key like find(), continuing a walk of the slots from the given position,
+     * i.e. after a slot whose record holds another key.
+     *
+     * @param position
+     *        The position given to the visitor of the last slot visited, -1 if none follows
+     *
+     * @return The value, or null if the key does not exist
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    byte[] findFrom(IndexShard[] shards, FileChannel dataChannel, BlockCache blockCache,
+                    byte[] key, long hash, long hashCode, long position) throws IOException {
+        return walkSlotsFrom(shards, hash, hashCode, key.length, position,
+                             (format, buf, offset, next) -> readValueIfMatches(
+                                     dataChannel, blockCache, key, format, buf, offset));
+    }
+
+    /**
+     * Queries a batch of keys, equivalent to calling get() for every key.
+     * Thread-safe.
+     *
+     * @param keys
+     *        Keys of the queries.
+     *
+     * @return The values, in the order of the keys, null for absent keys.
+     *
+     * @throws UninitializedException
+     *         If the KVIndex object has not been initialized.
+     */
+    public List<byte[]> multiGet(List<byte[]> keys) throws UninitializedException {
+        return multiGet(keys, false);
+    }
+
+    /**
+     * Queries a batch of keys, equivalent to calling get() for every key.
+     * Thread-safe.
+     *
+     * The index files are walked in file order, and the records are read from the data file
+     * in address order, with the reads of adjacent records merged. See MultiGet.
+     *
+     * @param keys
+     *        Keys of the queries.
+     * @param parallel
+     *        Whether to walk the index files and read the data file in parallel
+     *        on the common ForkJoinPool
+     *
+     * @return The values, in the order of the keys, null for absent keys.
+     *
+     * @throws UninitializedException
+     *         If the KVIndex object has not been initialized.
+     */
+    public List<byte[]> multiGet(List<byte[]> keys, boolean parallel)
+            throws UninitializedException {
+        byte[][] keyArrays = keys.toArray(new byte[0][]);
+        ByteBuffer[] buffers = new ByteBuffer[keyArrays.length];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(keyArrays[i]);
+        }
+        List<byte[]> values = new ArrayList<>(buffers.length);
+        // every value wraps a whole array of its own, see MultiGet.values()
+        for (ByteBuffer value : runMultiGet(new MultiGet(this, buffers, keyArrays), parallel)) {
+            values.add(value == null ? null : value.array());
+        }
+        return values;
+    }
+
+    /**
+     * Queries a batch of keys given as buffers, equivalent to calling get() for every key.
+     * Thread-safe. See multiGet().
+     *
+     * @param keys
+     *        Keys of the queries, from position to limit. The buffers are not modified.
+     * @param parallel
+     *        Whether to walk the index files and read the data file in parallel
+     *        on the common ForkJoinPool
+     *
+     * @return The values, in the order of the keys, null for absent keys.
+     *
+     * @throws UninitializedException
+     *         If the KVIndex object has not been initialized.
+     */
+    public List<ByteBuffer> multiGetBuffers(List<ByteBuffer> keys, boolean parallel)
+            throws UninitializedException {
+        ByteBuffer[] buffers = keys.toArray(new ByteBuffer[0]);
+        return Arrays.asList(runMultiGet(new MultiGet(this, buffers, null), parallel));
+    }
+
+    /**
+     * Runs a batch of queries, and returns the values resolved before any I/O error.
+     */
+    private ByteBuffer[] runMultiGet(MultiGet batch, boolean parallel) {
+        Metrics metrics = this.queryMetrics;
+        long startTime = metrics != null ? System.nanoTime() : 0;
+        try {
+            batch.run(parallel);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        ByteBuffer[] values = batch.values();
+        if (metrics != null) {
+            int found = 0;
+            for (ByteBuffer value : values) {
+                if (value != null)
+                    found++;
+            }
+            metrics.recordBatch(startTime, found, values.length);
+        }
+        return values;
+    }
+
+    /**
+     * A visitor of the slots that may hold a key, i.e. whose key size and fingerprint match.
+     */
+    interface SlotVisitor {
+        /**
+         * Visits a slot.
+         *
+         * @param slotFormat
+         *        The format of the slot
+         * @param buf
+         *        The buffer holding the slot
+         * @param offset
+         *        The offset of the slot in buf
+         * @param next
+         *        The position of the walk after the slot, to continue the walk with
+         *        walkSlotsFrom(), -1 if no slot follows
+         *
+         * @return The value to stop the walk with, or null to continue
+         *
+         * @throws IOException
+         *         If I/O errors occur.
+         */
+        byte[] visit(SlotFormat slotFormat, ByteBuffer buf, int offset, long next)
+                throws IOException;
+    }
+
+    /**
+     * Checks the key against the filter of its index file, and counts the negatives.
+     *
+     * @param hash
+     *        The unmasked hash of the key
+     * @param hashCode
+     *        The hashcode of the key
+     *
+     * @return false if the key does not exist, true if it may exist or there are no filters
+     */
+    boolean mayContain(long hash, long hashCode) {
+        BloomFilter[] filters = this.filters;
+        if (filters == null || filters[(int) (hashCode & fileIdMask)].mightContain(hash))
+            return true;
+        filterNegatives.increment();
+        return false;
+    }
+
+    /**
+     * Walks the slots that may hold the key in the index files, i.e. the chain, the buckets
+     * or the slot of the perfect hash of the key, and visits the slots whose key size and
+     * fingerprint match. Nothing is read if the filter of the index file rejects the key.
+     *
+     * @param shards
+     *        The opened index files
+     * @param hash
+     *        The unmasked hash of the key
+     * @param hashCode
+     *        The hashcode of the key
+     * @param keyLength
+     *        The length of the key
+     * @param visitor
+     *        The visitor of the slots
+     *
+     * @return The first non-null value returned by the visitor, or null
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    byte[] walkSlots(IndexShard[] shards, long hash, long hashCode, int keyLength,
+                     SlotVisitor visitor) throws IOException {
+        if (!mayContain(hash, hashCode))
+            return null;
+        byte[] value = walkIndex(shards, hash, hashCode, keyLength, visitor);
+        if (value == null && filters != null)
+            filterFalsePositives.increment();
+        return value;
+    }
+
+    /**
+     * Continues a walk of the slots like walkSlots() from a position given to the visitor,
+     * without reading the slots before it again, except the bucket of the position if it is
+     * in the middle of a bucket. The filters were checked by the walk.
+     *
+     * @param position
+     *        The position given to the visitor of the last slot visited, -1 if none follows
+     *
+     * @return The first non-null value returned by the visitor, or null
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    byte[] walkSlotsFrom(IndexShard[] shards, long hash, long hashCode, int keyLength,
+                         long position, SlotVisitor visitor) throws IOException {
+        byte[] value = position < 0 ? null
+                                    : walkIndexFrom(shards, hash, hashCode, keyLength,
+                                                    position, visitor);
+        if (value == null && filters != null)
+            filterFalsePositives.increment();
+        return value;
+    }
+
+    /**
+     * Walks the slots like walkSlots(), without checking the filters.
+     */
+    private byte[] walkIndex(IndexShard[] shards, long hash, long hashCode, int keyLength,
+                             SlotVisitor visitor) throws IOException {
+        int fileId = (int) (hashCode & fileIdMask);
+        long infileIndex = hashCode >>> f;
+        BucketFormat bucketFormat = this.bucketFormat;
+        PerfectHash[] perfectHashes = this.perfectHashes;
+        if (bucketFormat != null) {
+            // the first slot of the bucket
+            infileIndex -= infileIndex % bucketFormat.slotsPerBucket;
+        } else if (perfectHashes != null) {
+            // the only slot that can hold the key, whose next_slot_id is always 0
+            infileIndex = perfectHashes[fileId].lookup(hash);
+            if (infileIndex < 0)
+                return null;
+        }
+        return walkIndexFrom(shards, hash, hashCode, keyLength, infileIndex, visitor);
+    }
+
+    /**
+     * Walks the slots from a position: the id of a slot of the chain, or the index of a slot
+     * in a bucketed index file, i.e. bucket id * slots per bucket + slot in the bucket.
+     */
+    private byte[] walkIndexFrom(IndexShard[] shards, long hash, long hashCode, int keyLength,
+                                 long position, SlotVisitor visitor) throws IOException {
+        SlotFormat slotFormat = this.slotFormat;
+        int slotSize = slotFormat.slotSize;
+        int fingerprint = slotFormat.fingerprint(hash);
+        int fileId = (int) (hashCode & fileIdMask);
+        long infileIndex = position;
+
+        IndexShard indexFile = shards[fileId];
+        Metrics metrics = this.queryMetrics;
+        BucketFormat bucketFormat = this.bucketFormat;
+        if (bucketFormat != null)
+            return walkBuckets(indexFile, bucketFormat, position, keyLength, fingerprint,
+                               visitor, metrics);
+        ByteBuffer buf = ByteBuffer.allocate(slotSize);
+
+        while (true) {
+            if (slotSize * infileIndex < 0) {
+                Log.logi("seek offset < 0");
+                return null;
+            }
+            buf.clear();
+            indexFile.read(buf, slotSize * infileIndex);
+            if (metrics != null)
+                metrics.indexReads.increment();
+
+            // check key size and fingerprint first
+            // key1 == key2 => key1.length == key2.length, fingerprint1 == fingerprint2
+            int next = slotFormat.nextSlotId(buf);
+            if (slotFormat.keySize(buf) == keyLength
+                && slotFormat.fingerprint(buf) == fingerprint) {
+                byte[] value = visitor.visit(slotFormat, buf, 0, next > 0 ? next : -1);
+                if (value != null)
+                    return value;
+            }
+
+            // key does not match
+            // go to next slot on the chain
+            infileIndex = next;
+
+            if (infileIndex <= 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Walks the buckets of an index file, beginning at the slot of the given index
+     * and probing the following buckets while they are overflowed.
+     *
+     * @param position
+     *        The index of the first slot, bucket id * slots per bucket + slot in the bucket
+     *
+     * @return The first non-null value returned by the visitor, or null
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    private static byte[] walkBuckets(IndexShard indexFile, BucketFormat bucketFormat,
+                                      long position, int keyLength, int fingerprint,
+                                      SlotVisitor visitor, Metrics metrics) throws IOException {
+        SlotFormat slotFormat = bucketFormat.slotFormat;
+        int bucketSize = bucketFormat.bucketSize;
+        int slotsPerBucket = bucketFormat.slotsPerBucket;
+        long bucketId = position / slotsPerBucket;
+        int first = (int) (position % slotsPerBucket);
+        ByteBuffer buf = ByteBuffer.allocate(bucketSize);
+
+        while (true) {
+            buf.clear();
+            indexFile.read(buf, bucketSize * bucketId);
+            if (metrics != null)
+                metrics.indexReads.increment();
+            int count = bucketFormat.count(buf);
+            boolean overflowed = bucketFormat.overflowed(buf);
+            for (int i = first; i < count; i++) {
+                int offset = bucketFormat.slotOffset(i);
+                if (slotFormat.keySize(buf, offset) == keyLength
+                    && slotFormat.fingerprint(buf, offset) == fingerprint) {
+                    // the next slot of the bucket, or the first one of the next bucket
+                    long next = i + 1 < count ? bucketId * slotsPerBucket + i + 1
+                                : overflowed ? (bucketId + 1) * slotsPerBucket : -1;
+                    byte[] value = visitor.visit(slotFormat, buf, offset, next);
+                    if (value != null)
+                        return value;
+                }
+            }
+
+            // the records of this bucket stop here unless it is overflowed
+            if (!overflowed)
+                return null;
+            bucketId++;
+            first = 0;
+        }
+    }
+
+    /**
+     * Reads the value of the record of a slot from the data file if its key equals to key,
+     * or from the slot if the record is inline.
+     *
+     * @param dataChannel
+     *        The data file
+     * @param blockCache
+     *        The block cache to read the data file through, null to read it directly
+     * @param key
+     *        Key of the query
+     * @param slotFormat
+     *        The format of the slot
+     * @param buf
+     *        The buffer holding the slot
+     * @param offset
+     *        The offset of the slot in buf
+     *
+     * @return The value, or null if the keys differ
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    private byte[] readValueIfMatches(FileChannel dataChannel, BlockCache blockCache, byte[] key,
+                                      SlotFormat slotFormat, ByteBuffer buf, int offset)
+            throws IOException {
+        short keySize = slotFormat.keySize(buf, offset);
+        short valueSize = slotFormat.valueSize(buf, offset);
+        if (slotFormat.isInline(keySize, valueSize)) {
+            if (!slotFormat.inlineKey(buf, offset).equals(ByteBuffer.wrap(key)))
+                return null;
+            byte[] value = new byte[valueSize];
+            slotFormat.inlineValue(buf, offset).get(value);
+            return value;
+        }
+
+        // retrieve key, value_size and value from data file with one read
+        long address = slotFormat.address(buf, offset);
+        int valueOffset = keySize + Record.valueSizeLength;
+        byte[] record = new byte[valueOffset + valueSize];
+        readData(dataChannel, blockCache, ByteBuffer.wrap(record),
+                 address + Record.keySizeLength);
+
+        // compare key
+        for (int i = 0; i < keySize; i++) {
+            if (record[i] != key[i])
+                return null;
+        }
+
+        // find the key-value
+        return Arrays.copyOfRange(record, valueOffset, record.length);
+    }
+
+    /**
+     * Reads bytes from the data file at the given position until dst is full,
+     * through the block cache if there is one.
+     *
+     * @param dataChannel
+     *        The data file
+     * @param blockCache
+     *        The block cache, null to read the data file directly
+     * @param dst
+     *        The destination buffer
+     * @param position
+     *        The file position where the read begins
+     *
+     * @throws IOException
+     *         If I/O errors occur, or the end of file is reached before dst is full.
+     */
+    void readData(FileChannel dataChannel, BlockCache blockCache, ByteBuffer dst, long position)
+            throws IOException {
+        if (blockCache != null)
+            blockCache.read(DATA_FILE_ID, dataChannel, dst, position);
+        else
+            readFully(dataChannel, dst, position);
+        Metrics metrics = queryMetrics;
+        if (metrics != null)
+            metrics.dataReads.increment();
+    }
+
+    /**
+     * Reads bytes from the channel at the given position until dst is full.
+     * Does not modify the position of the channel, thus can be used concurrently.
+     *
+     * @param channel
+     *        The channel to read from
+     * @param dst
+     *        The destination buffer
+     * @param position
+     *        The file position where the read begins
+     *
+     * @throws IOException
+     *         If I/O errors occur, or the end of file is reached before dst is full.
+     */
+    static void readFully(FileChannel channel, ByteBuffer dst, long position)
+            throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0)
+                throw new EOFException("End of file: no enough data to read at " + position);
+            position += read;
+        }
+    }
+
+    /**
+     * Counts the total number of records.
+     * Not needed by initialization, which counts the records while creating index.
+     *
+     * @param filename
+     *        The filename of data.
+     *
+     * @return The number of records in the data
+     *
+     * @throws IOException
+     *         If I/O errors occur
+     * @throws InvalidDataFormatException
+     *         If the data file has invalid format.
+     */
+    long countEntry(String filename) throws IOException, InvalidDataFormatException {
+        long rt = 0;
+        try (RecordReader reader = new RecordReader(filename)) {
+            while (reader.hasNextRecord()) {
+                reader.getNextRecord(false);
+                rt++;
+            }
+        }
+        return rt;
+    }
+
+    /**
+     * Creates the empty index file, and deletes the index header.
+     * The regions of the index files are allocated and filled by the IndexBuilder.
+     *
+     * @return The writer of the index file, whose directory is written by finish()
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    IndexFile.Writer createIndexFile() throws IOException {
+        new File(indexPath).mkdirs();
+        // the header is valid again after the index file is built
+        getHeaderFile().delete();
+        return new IndexFile.Writer(getIndexFile(), f);
+    }
+
+    /**
+     * Returns the number of slots addressed by hashcode in each index file,
+     * excluding the slots appended for collisions.
+     *
+     * @return The number of slots, at least 1
+     */
+    long slotsPerFile() {
+        return Math.max(1, hasher.capacity >>> f);
+    }
+
+    /**
+     * Returns the number of buckets addressed by hashcode in each index file,
+     * excluding the buckets appended for overflows.
+     *
+     * @return The number of buckets, at least 1
+     */
+    long bucketsPerFile() {
+        long slotsPerBucket = bucketFormat.slotsPerBucket;
+        return (slotsPerFile() + slotsPerBucket - 1) / slotsPerBucket;
+    }
+
+    /**
+     * Returns the size of the slots or buckets addressed by hashcode in each index file.
+     *
+     * @return The size in bytes
+     */
+    long tableBytesPerFile() {
+        if (perfectHashes != null)
+            return 0;   // the size of a dense index file is known after partitioning
+        if (bucketFormat == null)
+            return slotSize * slotsPerFile();
+        return bucketFormat.bucketSize * bucketsPerFile();
+    }
+
+    /**
+     * Creates index files and index for every record with a single scan of the data file.
+     * Sets the perfect hash functions, the filters, N, the hasher, the masks, and the slot and
+     * bucket formats sized to the data.
+     *
+     * @param filename
+     *        The filename of data
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     * @throws InvalidDataFormatException
+     *         If the data file has invalid format.
+     */
+    private void createIndex(String filename) throws IOException, InvalidDataFormatException {
+        long startTime = System.currentTimeMillis();
+        f = shardBits;
+        perfectHashes = indexLayout == IndexLayout.PERFECT_HASH
+                        ? new PerfectHash[1 << f] : null;
+        filters = filterBitsPerKey > 0 ? new BloomFilter[1 << f] : null;
+
+        File dataFile = new File(filename);
+        long dataSize = dataFile.length();
+        long dataModifiedTime = dataFile.lastModified();
+        long dataChecksum = IndexHeader.checksum(dataFile);
+
+        new IndexBuilder(this, buildThreads, buildMemoryBudget).build(filename);
+
+        header = new IndexHeader(hasher.algorithm, hasher.seed, hasher.capacity, f, N, indexLayout,
+                                 slotFormat, dataSize, dataModifiedTime, dataChecksum,
+                                 perfectHashes, filterBitsPerKey, filters);
+        header.write(getHeaderFile());
+        metrics.buildMillis = System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Sets the formats of the index files being built, with the slot fields sized to the data.
+     * Called by IndexBuilder after partitioning, before the index files are built.
+     *
+     * @param maxKeySize
+     *        The maximum key size of the records
+     * @param maxAddress
+     *        The maximum address of the records
+     * @param maxValueSize
+     *        The maximum value size of the records
+     * @param maxSlotId
+     *        The maximum slot id in an index file of the chained layout
+     */
+    void sizeSlots(long maxKeySize, long maxAddress, long maxValueSize, long maxSlotId) {
+        boolean linked = indexLayout == IndexLayout.CHAINED;
+        int inlineBytes = inlineBytes(SlotFormat.sized(maxKeySize, maxAddress, maxValueSize,
+                                                       maxSlotId, keyFingerprintBits, linked, 0));
+        if (inlineBytes < inlineThreshold)
+            Log.logw("Inline threshold is lowered to " + inlineBytes + " bytes for buckets of "
+                     + indexLayout.bucketSize + " bytes.");
+        setFormats(indexLayout, SlotFormat.sized(maxKeySize, maxAddress, maxValueSize, maxSlotId,
+                                                 keyFingerprintBits, linked, inlineBytes));
+    }
+
+    /**
+     * Returns the size of the inline area of the slots, i.e. the inline threshold,
+     * lowered so that a bucket holds at least 2 slots in a bucketed layout.
+     *
+     * @param fields
+     *        The format of the slots, whose fields precede the inline area
+     *
+     * @return The size in bytes
+     */
+    private int inlineBytes(SlotFormat fields) {
+        if (indexLayout.bucketSize == 0)
+            return inlineThreshold;
+        // the bucket header takes at most 2 bytes
+        int max = (indexLayout.bucketSize - 2) / 2 - fields.inlineOffset;
+        return Math.max(0, Math.min(inlineThreshold, max));
+    }
+
+    /**
+     * Sets the slot format, the bucket format and the slot size of the layout.
+     *
+     * @param layout
+     *        The layout of the index files
+     * @param slotFormat
+     *        The format of the slots, which are linked iff the layout is CHAINED
+     */
+    private void setFormats(IndexLayout layout, SlotFormat slotFormat) {
+        this.slotFormat = slotFormat;
+        bucketFormat = layout.bucketSize > 0 ? new BucketFormat(layout.bucketSize, slotFormat)
+                                             : null;
+        slotSize = slotFormat.slotSize;
+    }
+
+    /**
+     * Calculates the masks for file id and infile index.
+     */
+    void calculateMask() {
+        fileIdMask = (1 << f) - 1;
+        infileIndexMask = (hasher.capacity - 1) ^ fileIdMask;
+    }
+
+    /**
+     * Returns the index header file, see IndexHeader.
+     *
+     * @return The file
+     */
+    File getHeaderFile() {
+        return new File(indexPath, IndexHeader.FILENAME);
+    }
+
+    /**
+     * Returns the index file holding all the shards, see IndexFile.
+     *
+     * @return The file
+     */
+    File getIndexFile() {
+        return new File(indexPath, indexFilename);
     }
 }
@@ -0,0 +1,87 @@
+import java.util.Map;
+
+/**
+ * The JMX view of the metrics of a KVIndex, registered by KVIndex.setMBeanName().
+ * The latencies are in microseconds, and the counters are since the last initialization.
+ * See MetricsSnapshot.
+ */
+public interface KVIndexMXBean {
+
+    /**
+     * Returns the number of queries of present keys.
+     */
+    long getHitCount();
+
+    /**
+     * Returns the number of queries of absent keys.
+     */
+    long getMissCount();
+
+    /**
+     * Returns the number of getAsync() queries failed by I/O errors.
+     */
+    long getErrorCount();
+
+    /**
+     * Returns the number of slot or bucket reads from the index files.
+     */
+    long getIndexReadCount();
+
+    /**
+     * Returns the number of reads from the data file.
+     */
+    long getDataReadCount();
+
+    /**
+     * Returns the mean number of slot or bucket reads per query, i.e. the chain hops.
+     */
+    double getIndexReadsPerQuery();
+
+    /**
+     * Returns the mean number of data file reads per query.
+     */
+    double getDataReadsPerQuery();
+
+    /**
+     * Returns the number of get() calls.
+     */
+    long getGetCount();
+
+    double getGetMeanMicros();
+
+    double getGet50thPercentileMicros();
+
+    double getGet99thPercentileMicros();
+
+    double getGet999thPercentileMicros();
+
+    double getGetMaxMicros();
+
+    /**
+     * Returns the latencies of all the query operations, keyed by operation and statistic,
+     * e.g. "getAsync.p99".
+     */
+    Map<String, Double> getLatencyMicros();
+
+    /**
+     * Returns the time the last build spent scanning the data file, summed over its rebuilds,
+     * -1 if there is none.
+     */
+    long getScanMillis();
+
+    /**
+     * Returns the time the last build spent writing the index file, summed over its rebuilds,
+     * -1 if there is none.
+     */
+    long getIndexWriteMillis();
+
+    /**
+     * Returns the time of the last build, -1 if there is none.
+     */
+    long getBuildMillis();
+
+    /**
+     * Returns the time of the last load of an existing index by open(), -1 if there is none.
+     */
+    long getLoadMillis();
+}
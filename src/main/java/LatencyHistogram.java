@@ -0,0 +1,72 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, with log-linear buckets like HdrHistogram.
+ *
+ * Values below 64 have a bucket each, and every larger power of 2 is split into 32 buckets,
+ * so a value is counted with a relative error below 1/32 (about 3%), from 1 ns to
+ * Long.MAX_VALUE, in 1888 buckets.
+ *
+ * Recording is lock-free: an atomic increment of the bucket, and of the sum and the max.
+ * A snapshot taken during recording may miss the values being recorded.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;          // 32
+    private static final int LINEAR_BUCKETS = SUB_BUCKETS << 1;           // 64
+    static final int BUCKETS = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a value.
+     *
+     * @param nanos
+     *        The latency in nanoseconds, a negative value is recorded as 0
+     */
+    void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucketOf(nanos));
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Returns the bucket of a non-negative value.
+     */
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int top = (int) (value >>> shift);     // in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + top - SUB_BUCKETS;
+    }
+
+    /**
+     * Returns the largest value counted in a bucket.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS)
+            return bucket;
+        int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long top = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * Returns a snapshot of the values recorded so far.
+     */
+    LatencySnapshot snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return new LatencySnapshot(snapshot, sum.sum(), max.get());
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * A snapshot of the latencies of an operation of a KVIndex, in nanoseconds.
+ * The percentiles have a relative error below 3%, see LatencyHistogram.
+ */
+public class LatencySnapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    LatencySnapshot(long[] counts, long sum, long max) {
+        this.counts = counts;
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /**
+     * Returns the number of recorded operations.
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Returns the mean latency, 0 if there is no operation.
+     */
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the max latency, 0 if there is no operation.
+     */
+    public long max() {
+        return max;
+    }
+
+    /**
+     * Returns the latency that the given percentage of the operations do not exceed.
+     *
+     * @param percentile
+     *        The percentage, in [0, 100]
+     *
+     * @return The latency, 0 if there is no operation
+     */
+    public long percentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("percentile must be in [0, 100]");
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(LatencyHistogram.highestValueOf(i), max);
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencySnapshot{count=" + count + ", mean=" + (long) mean()
+               + "ns, p50=" + percentile(50) + "ns, p99=" + percentile(99)
+               + "ns, p99.9=" + percentile(99.9) + "ns, max=" + max + "ns}";
+    }
+}
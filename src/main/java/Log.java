@@ -1,29 +1,74 @@
 /**
- * A utility class for logging
+ * A utility class for logging to stdout.
+ *
+ * The level is set at runtime with setLevel(), or with the system property kvindex.log.level,
+ * INFO by default. Messages below the level are dropped. A debug message that is costly
+ * to build is guarded by isDebugEnabled(), so it costs a field read when disabled.
  */
 public class Log {
-    private static final boolean useDebug = false;
-    private static final boolean useWarning = true;
-    private static final boolean useInfo = true;
-    private static final boolean useError = true;
+
+    /**
+     * The levels of messages, from the most verbose. OFF drops all messages.
+     */
+    public enum Level {
+        DEBUG, INFO, WARNING, ERROR, OFF
+    }
+
+    private static volatile Level level = initialLevel();
+
+    private static Level initialLevel() {
+        String name = System.getProperty("kvindex.log.level");
+        if (name != null) {
+            try {
+                return Level.valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("[Warning] Invalid kvindex.log.level: " + name);
+            }
+        }
+        return Level.INFO;
+    }
+
+    /**
+     * Sets the level of the messages to log.
+     *
+     * @param level
+     *        The least level of the logged messages
+     */
+    public static void setLevel(Level level) {
+        if (level == null)
+            throw new NullPointerException("level");
+        Log.level = level;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    static boolean isDebugEnabled() {
+        return level == Level.DEBUG;
+    }
+
+    private static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
 
     static void logd(String s) {
-        if (useDebug)
+        if (isEnabled(Level.DEBUG))
             System.out.println("[Debug] " + s);
     }
 
     static void logw(String s) {
-        if (useWarning)
+        if (isEnabled(Level.WARNING))
             System.out.println("[Warning] " + s);
     }
 
     static void logi(String s) {
-        if (useInfo)
+        if (isEnabled(Level.INFO))
             System.out.println("[Info] " + s);
     }
 
     static void loge(String s) {
-        if (useError)
+        if (isEnabled(Level.ERROR))
             System.out.println("[Error] " + s);
     }
 }
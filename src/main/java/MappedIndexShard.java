@@ -0,0 +1,48 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An index shard that is memory-mapped once, so that reading a slot is a memory load
+ * instead of a syscall.
+ *
+ * A MappedByteBuffer can map at most 2 GB, so a larger shard is split into
+ * several mappings of chunkSize bytes. See ChunkedIndexShard.
+ *
+ * The mappings are released by GC after the shard is closed.
+ */
+class MappedIndexShard extends ChunkedIndexShard {
+
+    /**
+     * Maps the whole file of the channel. The channel can be closed after mapping.
+     *
+     * @param channel
+     *        The opened index file
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    MappedIndexShard(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Maps the whole file of the channel with chunks of the given size.
+     *
+     * @param channel
+     *        The opened index file
+     * @param chunkSize
+     *        The maximum size of a single mapping
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    MappedIndexShard(FileChannel channel, int chunkSize) throws IOException {
+        super(channel.size(), chunkSize);
+        ByteBuffer[] mappings = new ByteBuffer[chunkCount()];
+        for (int i = 0; i < mappings.length; i++) {
+            mappings[i] = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart(i), chunkSize(i));
+        }
+        setChunks(mappings);
+    }
+}
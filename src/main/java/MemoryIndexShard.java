@@ -0,0 +1,50 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An index shard that is loaded into off-heap memory once, so that reading a slot
+ * is a memory load instead of a syscall or a page fault.
+ *
+ * The shard is held in direct ByteBuffers, which are outside the Java heap,
+ * so they are not scanned or copied by GC. See ChunkedIndexShard.
+ *
+ * The buffers are released by GC after the shard is closed.
+ */
+class MemoryIndexShard extends ChunkedIndexShard {
+
+    /**
+     * Loads the whole file of the channel. The channel can be closed after loading.
+     *
+     * @param channel
+     *        The opened index file
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    MemoryIndexShard(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Loads the whole file of the channel into chunks of the given size.
+     *
+     * @param channel
+     *        The opened index file
+     * @param chunkSize
+     *        The maximum size of a single buffer
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    MemoryIndexShard(FileChannel channel, int chunkSize) throws IOException {
+        super(channel.size(), chunkSize);
+        ByteBuffer[] buffers = new ByteBuffer[chunkCount()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(chunkSize(i));
+            KVIndex.readFully(channel, buffers[i], chunkStart(i));
+            buffers[i].clear();
+        }
+        setChunks(buffers);
+    }
+}
@@ -0,0 +1,198 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a KVIndex. Thread-safe and lock-free, see MetricsSnapshot.
+ *
+ * The query metrics are recorded only if they are enabled, see KVIndex.setMetricsEnabled(),
+ * and are reset by every initialization. The build metrics are always recorded.
+ */
+class Metrics implements KVIndexMXBean {
+
+    // latencies of the query operations
+    volatile LatencyHistogram get;
+    volatile LatencyHistogram getInto;
+    volatile LatencyHistogram transferValueTo;
+    volatile LatencyHistogram getAsync;
+    volatile LatencyHistogram multiGet;
+
+    volatile LongAdder hits;
+    volatile LongAdder misses;
+    volatile LongAdder indexReads;
+    volatile LongAdder dataReads;
+    volatile LongAdder errors;
+
+    // times of the phases of the last build or load, -1 if there is none,
+    // the scans and index writes of a build are summed over its rebuilds
+    volatile long scanMillis = -1;
+    volatile long indexWriteMillis = -1;
+    volatile long buildMillis = -1;
+    volatile long loadMillis = -1;
+
+    Metrics() {
+        resetQueries();
+    }
+
+    /**
+     * Resets the query metrics. The queries recorded meanwhile may be lost.
+     */
+    void resetQueries() {
+        get = new LatencyHistogram();
+        getInto = new LatencyHistogram();
+        transferValueTo = new LatencyHistogram();
+        getAsync = new LatencyHistogram();
+        multiGet = new LatencyHistogram();
+        hits = new LongAdder();
+        misses = new LongAdder();
+        indexReads = new LongAdder();
+        dataReads = new LongAdder();
+        errors = new LongAdder();
+    }
+
+    /**
+     * Records a query of one key.
+     *
+     * @param histogram
+     *        The histogram of the operation
+     * @param startTime
+     *        The time the query began, by System.nanoTime()
+     * @param found
+     *        Whether the key is found
+     */
+    void recordQuery(LatencyHistogram histogram, long startTime, boolean found) {
+        histogram.record(System.nanoTime() - startTime);
+        (found ? hits : misses).increment();
+    }
+
+    /**
+     * Records a batch of queries.
+     *
+     * @param startTime
+     *        The time the batch began, by System.nanoTime()
+     * @param found
+     *        The number of keys found
+     * @param count
+     *        The number of keys
+     */
+    void recordBatch(long startTime, int found, int count) {
+        multiGet.record(System.nanoTime() - startTime);
+        hits.add(found);
+        misses.add(count - found);
+    }
+
+    MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(get.snapshot(), getInto.snapshot(), transferValueTo.snapshot(),
+                                   getAsync.snapshot(), multiGet.snapshot(),
+                                   hits.sum(), misses.sum(), errors.sum(),
+                                   indexReads.sum(), dataReads.sum(),
+                                   scanMillis, indexWriteMillis, buildMillis, loadMillis);
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getIndexReadCount() {
+        return indexReads.sum();
+    }
+
+    @Override
+    public long getDataReadCount() {
+        return dataReads.sum();
+    }
+
+    @Override
+    public double getIndexReadsPerQuery() {
+        return snapshot().indexReadsPerQuery();
+    }
+
+    @Override
+    public double getDataReadsPerQuery() {
+        return snapshot().dataReadsPerQuery();
+    }
+
+    @Override
+    public long getGetCount() {
+        return get.snapshot().count();
+    }
+
+    @Override
+    public double getGetMeanMicros() {
+        return get.snapshot().mean() / 1000;
+    }
+
+    @Override
+    public double getGet50thPercentileMicros() {
+        return get.snapshot().percentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getGet99thPercentileMicros() {
+        return get.snapshot().percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getGet999thPercentileMicros() {
+        return get.snapshot().percentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getGetMaxMicros() {
+        return get.snapshot().max() / 1000.0;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMicros() {
+        MetricsSnapshot snapshot = snapshot();
+        Map<String, Double> latencies = new LinkedHashMap<>();
+        putLatency(latencies, "get", snapshot.getLatency());
+        putLatency(latencies, "getInto", snapshot.getIntoLatency());
+        putLatency(latencies, "transferValueTo", snapshot.transferValueToLatency());
+        putLatency(latencies, "getAsync", snapshot.getAsyncLatency());
+        putLatency(latencies, "multiGet", snapshot.multiGetLatency());
+        return latencies;
+    }
+
+    private static void putLatency(Map<String, Double> latencies, String operation,
+                                   LatencySnapshot latency) {
+        latencies.put(operation + ".count", (double) latency.count());
+        latencies.put(operation + ".mean", latency.mean() / 1000);
+        latencies.put(operation + ".p50", latency.percentile(50) / 1000.0);
+        latencies.put(operation + ".p99", latency.percentile(99) / 1000.0);
+        latencies.put(operation + ".p99.9", latency.percentile(99.9) / 1000.0);
+        latencies.put(operation + ".max", latency.max() / 1000.0);
+    }
+
+    @Override
+    public long getScanMillis() {
+        return scanMillis;
+    }
+
+    @Override
+    public long getIndexWriteMillis() {
+        return indexWriteMillis;
+    }
+
+    @Override
+    public long getBuildMillis() {
+        return buildMillis;
+    }
+
+    @Override
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * A snapshot of the metrics of a KVIndex: the latencies of the query operations, the hits
+ * and misses, the reads of the index files and the data file, and the times of the phases
+ * of the last build. The query metrics are since the last initialization.
+ */
+public class MetricsSnapshot {
+    private final LatencySnapshot get;
+    private final LatencySnapshot getInto;
+    private final LatencySnapshot transferValueTo;
+    private final LatencySnapshot getAsync;
+    private final LatencySnapshot multiGet;
+    private final long hitCount;
+    private final long missCount;
+    private final long errorCount;
+    private final long indexReadCount;
+    private final long dataReadCount;
+    private final long scanMillis;
+    private final long indexWriteMillis;
+    private final long buildMillis;
+    private final long loadMillis;
+
+    MetricsSnapshot(LatencySnapshot get, LatencySnapshot getInto, LatencySnapshot transferValueTo,
+                    LatencySnapshot getAsync, LatencySnapshot multiGet,
+                    long hitCount, long missCount, long errorCount,
+                    long indexReadCount, long dataReadCount,
+                    long scanMillis, long indexWriteMillis, long buildMillis, long loadMillis) {
+        this.get = get;
+        this.getInto = getInto;
+        this.transferValueTo = transferValueTo;
+        this.getAsync = getAsync;
+        this.multiGet = multiGet;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.errorCount = errorCount;
+        this.indexReadCount = indexReadCount;
+        this.dataReadCount = dataReadCount;
+        this.scanMillis = scanMillis;
+        this.indexWriteMillis = indexWriteMillis;
+        this.buildMillis = buildMillis;
+        this.loadMillis = loadMillis;
+    }
+
+    /**
+     * Returns the latencies of get().
+     */
+    public LatencySnapshot getLatency() {
+        return get;
+    }
+
+    /**
+     * Returns the latencies of getInto().
+     */
+    public LatencySnapshot getIntoLatency() {
+        return getInto;
+    }
+
+    /**
+     * Returns the latencies of transferValueTo().
+     */
+    public LatencySnapshot transferValueToLatency() {
+        return transferValueTo;
+    }
+
+    /**
+     * Returns the latencies of getAsync(), from the call to the completion of the future.
+     */
+    public LatencySnapshot getAsyncLatency() {
+        return getAsync;
+    }
+
+    /**
+     * Returns the latencies of multiGet() and multiGetBuffers(), per batch.
+     */
+    public LatencySnapshot multiGetLatency() {
+        return multiGet;
+    }
+
+    /**
+     * Returns the number of queries of present keys, by every query operation.
+     */
+    public long hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of queries of absent keys, and the queries failed by I/O errors
+     * except getAsync(), which return null or -1 like absent keys.
+     */
+    public long missCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of getAsync() futures completed exceptionally, which are not
+     * counted as misses, and whose latencies are not recorded.
+     */
+    public long errorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Returns the ratio of hits to queries, 0 if there is no query.
+     */
+    public double hitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Returns the number of slots or buckets read from the index files,
+     * i.e. the hops along the chains or the probed buckets.
+     */
+    public long indexReadCount() {
+        return indexReadCount;
+    }
+
+    /**
+     * Returns the number of reads from the data file.
+     */
+    public long dataReadCount() {
+        return dataReadCount;
+    }
+
+    /**
+     * Returns the mean number of slots or buckets read per query, 0 if there is no query.
+     */
+    public double indexReadsPerQuery() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) indexReadCount / total;
+    }
+
+    /**
+     * Returns the mean number of data file reads per query, 0 if there is no query.
+     */
+    public double dataReadsPerQuery() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) dataReadCount / total;
+    }
+
+    /**
+     * Returns the time the last build took to scan the data file, count and partition
+     * the records, summed over its rebuilds, -1 if there is no build.
+     */
+    public long scanMillis() {
+        return scanMillis;
+    }
+
+    /**
+     * Returns the time the last build took to write the index file, summed over its rebuilds,
+     * -1 if there is no build.
+     */
+    public long indexWriteMillis() {
+        return indexWriteMillis;
+    }
+
+    /**
+     * Returns the time of the last build, -1 if there is no build.
+     */
+    public long buildMillis() {
+        return buildMillis;
+    }
+
+    /**
+     * Returns the time open() took to load the last existing index, -1 if there is none.
+     */
+    public long loadMillis() {
+        return loadMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{get=" + get + ", getInto=" + getInto
+               + ", transferValueTo=" + transferValueTo + ", getAsync=" + getAsync
+               + ", multiGet=" + multiGet + ", hits=" + hitCount + ", misses=" + missCount
+               + ", errors=" + errorCount
+               + ", indexReads=" + indexReadCount + ", dataReads=" + dataReadCount
+               + ", scanMillis=" + scanMillis + ", indexWriteMillis=" + indexWriteMillis
+               + ", buildMillis=" + buildMillis + ", loadMillis=" + loadMillis + "}";
+    }
+}
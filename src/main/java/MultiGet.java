@@ -0,0 +1,376 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * A batch of queries of a KVIndex, resolved with coalesced I/O.
+ *
+ * 1. All keys are hashed, and the keys in the value cache are answered.
+ * 2. The queries are grouped by index file and sorted by the position of their slots,
+ *    then the slots are walked in file order until the first candidate record
+ *    (a slot whose key size and fingerprint match) of every query is found.
+ *    An index file of at most LOAD_BYTES_PER_QUERY bytes per query is read at once.
+ * 3. The candidates are sorted by address in the data file. Candidates whose records are
+ *    at most MERGE_GAP bytes apart are merged into one read of at most MAX_READ bytes.
+ *    The keys are compared after the reads, and the values are copied out of the read
+ *    buffers, so that a batch holds at most one read buffer per thread besides the values.
+ * 4. The rare queries whose candidates hold other keys are resolved like get(),
+ *    continuing the walks after their candidates.
+ *
+ * Optionally, the index files are walked in parallel, and the merged reads are done in parallel.
+ *
+ * Not thread-safe, a batch is used by one call of multiGet.
+ */
+class MultiGet {
+
+    static final int MERGE_GAP = 4096;      // 4 KB
+    static final int MAX_READ = 1 << 20;    // 1 MB
+    static final int LOAD_BYTES_PER_QUERY = 4096;
+
+    private final KVIndex index;
+    private final HashFunc hasher;
+    private final IndexShard indexFile;
+    private final IndexShard[] shards;
+    private final FileChannel dataChannel;
+    private final BlockCache blockCache;
+    private final ValueCache valueCache;
+
+    private final ByteBuffer[] keys;
+    private final byte[][] keyArrays;   // the keys as arrays, if they are given as arrays
+    private final ByteBuffer[] values;
+
+    // returned by the visitor to stop a walk at the first candidate
+    private static final byte[] STOP = new byte[0];
+
+    /**
+     * Constructs a batch of queries with the current state of the index.
+     *
+     * @param index
+     *        The index
+     * @param keys
+     *        Keys of the queries, from position to limit
+     * @param keyArrays
+     *        The keys as arrays, or null if they are given as buffers only
+     *
+     * @throws UninitializedException
+     *         If the KVIndex object has not been initialized.
+     */
+    MultiGet(KVIndex index, ByteBuffer[] keys, byte[][] keyArrays)
+            throws UninitializedException {
+        this.index = index;
+        this.hasher = index.hasher;
+        this.indexFile = index.indexFile;
+        this.shards = index.shards;
+        this.dataChannel = index.dataChannel;
+        this.blockCache = index.blockCache;
+        this.valueCache = index.valueCache;
+        if (hasher == null || shards == null || dataChannel == null)
+            throw new UninitializedException("KVIndex has not been initialized");
+        this.keys = keys;
+        this.keyArrays = keyArrays;
+        this.values = new ByteBuffer[keys.length];
+    }
+
+    /**
+     * Returns the values resolved, in the order of the keys,
+     * null for absent keys and the keys not resolved yet.
+     * Every value wraps a whole array of its own.
+     *
+     * @return The values
+     */
+    ByteBuffer[] values() {
+        return values;
+    }
+
+    /**
+     * Resolves the queries.
+     *
+     * @param parallel
+     *        Whether to walk the index files and read the data file in parallel
+     *
+     * @return The values, in the order of the keys, null for absent keys
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    ByteBuffer[] run(boolean parallel) throws IOException {
+        List<Query> queries = hash();
+
+        // group by index file, and sort by slot
+        queries.sort(Comparator.comparingInt((Query q) -> q.fileId)
+                               .thenComparingLong(q -> q.slot));
+        List<List<Query>> groups = new ArrayList<>();
+        for (int i = 0; i < queries.size(); ) {
+            int end = i + 1;
+            while (end < queries.size() && queries.get(end).fileId == queries.get(i).fileId)
+                end++;
+            groups.add(queries.subList(i, end));
+            i = end;
+        }
+
+        // collect candidates
+        List<List<Candidate>> groupCandidates = new ArrayList<>();
+        for (int i = 0; i < groups.size(); i++) {
+            groupCandidates.add(new ArrayList<>());
+        }
+        forEach(groups.size(), parallel, i -> walk(groups.get(i), groupCandidates.get(i)));
+        List<Candidate> candidates = new ArrayList<>();
+        for (List<Candidate> list : groupCandidates) {
+            candidates.addAll(list);
+        }
+
+        // read the data file in address order, with adjacent reads merged
+        candidates.sort(Comparator.comparingLong((Candidate c) -> c.address));
+        List<List<Candidate>> reads = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); ) {
+            long start = candidates.get(i).address;
+            long end = candidates.get(i).end();
+            int j = i + 1;
+            while (j < candidates.size() && candidates.get(j).address <= end + MERGE_GAP
+                   && Math.max(end, candidates.get(j).end()) - start <= MAX_READ) {
+                end = Math.max(end, candidates.get(j).end());
+                j++;
+            }
+            reads.add(candidates.subList(i, j));
+            i = j;
+        }
+        forEach(reads.size(), parallel, i -> read(reads.get(i)));
+
+        // the walks stopped at candidates of other keys, walk the rest of the slots
+        for (Candidate candidate : candidates) {
+            if (values[candidate.query] == null && !candidate.matched) {
+                Query query = candidate.owner;
+                byte[] value = index.findFrom(shards, dataChannel, blockCache, keyArray(query.i),
+                                              query.hash, query.hashCode, candidate.next);
+                values[query.i] = value == null ? null : ByteBuffer.wrap(value);
+            }
+        }
+
+        // cache the values read
+        if (valueCache != null) {
+            for (Query query : queries) {
+                ByteBuffer value = values[query.i];
+                if (value != null)
+                    valueCache.put(keyArray(query.i), query.hash, toArray(value));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Hashes the keys, and answers the keys in the value cache and the keys rejected
+     * by the filters.
+     *
+     * @return The queries not answered
+     */
+    private List<Query> hash() {
+        List<Query> queries = new ArrayList<>(keys.length);
+        PerfectHash[] perfectHashes = index.perfectHashes;
+        for (int i = 0; i < keys.length; i++) {
+            ByteBuffer key = keys[i];
+            long hash = keyArrays != null ? hasher.hash64(keyArrays[i])
+                                          : hasher.hash64(key, key.position(), key.remaining());
+            if (valueCache != null) {
+                byte[] value = valueCache.get(keyArray(i), hash);
+                if (value != null) {
+                    values[i] = ByteBuffer.wrap(value);
+                    continue;
+                }
+            }
+            long hashCode = hasher.mask(hash);
+            if (!index.mayContain(hash, hashCode))
+                continue;   // absent
+            int fileId = (int) (hashCode & index.fileIdMask);
+            long slot = perfectHashes != null ? perfectHashes[fileId].lookup(hash)
+                                              : hashCode >>> index.f;
+            queries.add(new Query(i, hash, hashCode, fileId, slot));
+        }
+        return queries;
+    }
+
+    /**
+     * Walks the slots of the queries of an index file, and collects the first candidate
+     * of every query. The queries of inline records are answered by their slots.
+     */
+    private void walk(List<Query> queries, List<Candidate> candidates) throws IOException {
+        // a file with many queries is read at once, instead of slot by slot
+        IndexShard[] walkShards = shards;
+        int fileId = queries.get(0).fileId;
+        IndexShard shard = shards[fileId];
+        if (!(indexFile instanceof ChunkedIndexShard)
+            && shard.size() <= Math.min(MAX_READ, (long) queries.size() * LOAD_BYTES_PER_QUERY)) {
+            walkShards = shards.clone();
+            walkShards[fileId] = new LoadedIndexShard(shard);
+        }
+        for (Query query : queries) {
+            index.walkSlots(walkShards, query.hash, query.hashCode, keys[query.i].remaining(),
+                            (format, buf, offset, next) -> {
+                                short keySize = format.keySize(buf, offset);
+                                short valueSize = format.valueSize(buf, offset);
+                                if (format.isInline(keySize, valueSize)) {
+                                    // answered by the slot, the keys are compared here
+                                    if (!format.inlineKey(buf, offset).equals(keys[query.i]))
+                                        return null;
+                                    values[query.i] = ByteBuffer.wrap(
+                                            toArray(format.inlineValue(buf, offset)));
+                                    return STOP;
+                                }
+                                candidates.add(new Candidate(query,
+                                                             format.address(buf, offset),
+                                                             keySize, valueSize, next));
+                                return STOP;
+                            });
+        }
+    }
+
+    /**
+     * Reads the records of the candidates with one read, and sets the values of the
+     * candidates whose keys match.
+     */
+    private void read(List<Candidate> candidates) throws IOException {
+        long start = candidates.get(0).address;
+        long end = start;
+        for (Candidate candidate : candidates) {
+            end = Math.max(end, candidate.end());
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) (end - start));
+        index.readData(dataChannel, blockCache, buf, start);
+
+        for (Candidate candidate : candidates) {
+            int keyOffset = (int) (candidate.address - start) + Record.keySizeLength;
+            if (!keyEquals(keys[candidate.query], buf, keyOffset))
+                continue;
+            candidate.matched = true;
+            int valueOffset = keyOffset + candidate.keySize + Record.valueSizeLength;
+            byte[] value = new byte[candidate.valueSize];
+            System.arraycopy(buf.array(), valueOffset, value, 0, value.length);
+            values[candidate.query] = ByteBuffer.wrap(value);
+        }
+    }
+
+    private static boolean keyEquals(ByteBuffer key, ByteBuffer buf, int offset) {
+        int position = key.position();
+        for (int i = 0; i < key.remaining(); i++) {
+            if (key.get(position + i) != buf.get(offset + i))
+                return false;
+        }
+        return true;
+    }
+
+    private byte[] keyArray(int i) {
+        return keyArrays != null ? keyArrays[i] : toArray(keys[i]);
+    }
+
+    /**
+     * Copies the remaining bytes of the buffer to a new array.
+     */
+    static byte[] toArray(ByteBuffer buf) {
+        byte[] arr = new byte[buf.remaining()];
+        buf.duplicate().get(arr);
+        return arr;
+    }
+
+    /**
+     * Runs the action for [0, n), in parallel on the common ForkJoinPool if parallel is true.
+     */
+    private static void forEach(int n, boolean parallel, IOAction action) throws IOException {
+        try {
+            IntStream range = IntStream.range(0, n);
+            (parallel ? range.parallel() : range).forEach(i -> {
+                try {
+                    action.run(i);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * A copy of an index shard in a heap buffer, read with one read. Not thread-safe.
+     */
+    private static class LoadedIndexShard implements IndexShard {
+        private final ByteBuffer content;
+
+        LoadedIndexShard(IndexShard shard) throws IOException {
+            content = ByteBuffer.allocate((int) shard.size());
+            shard.read(content, 0);
+            content.clear();
+        }
+
+        @Override
+        public void read(ByteBuffer dst, long position) throws IOException {
+            if (position + dst.remaining() > content.capacity())
+                throw new EOFException("End of file: no enough data to read at " + position);
+            ByteBuffer src = content.duplicate();
+            src.position((int) position).limit((int) position + dst.remaining());
+            dst.put(src);
+        }
+
+        @Override
+        public long size() {
+            return content.capacity();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private interface IOAction {
+        void run(int i) throws IOException;
+    }
+
+    /**
+     * A query of a key not in the value cache.
+     */
+    private static class Query {
+        final int i;            // index of the key
+        final long hash;
+        final long hashCode;
+        final int fileId;
+        final long slot;        // position of the first slot in the index file, for sorting
+
+        Query(int i, long hash, long hashCode, int fileId, long slot) {
+            this.i = i;
+            this.hash = hash;
+            this.hashCode = hashCode;
+            this.fileId = fileId;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * A record in the data file that may hold the key of a query.
+     */
+    private static class Candidate {
+        final Query owner;
+        final int query;        // index of the key
+        final long address;
+        final short keySize;
+        final short valueSize;
+        final long next;        // position of the walk after the slot, -1 if none follows
+        boolean matched = false;
+
+        Candidate(Query owner, long address, short keySize, short valueSize, long next) {
+            this.owner = owner;
+            this.query = owner.i;
+            this.address = address;
+            this.keySize = keySize;
+            this.valueSize = valueSize;
+            this.next = next;
+        }
+
+        long end() {
+            return address + Record.keySizeLength + keySize + Record.valueSizeLength + valueSize;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A minimal perfect hash function over a static set of 64-bit hashes, i.e. a bijection
+ * from the set to [0, n), built with the BBHash algorithm (https://arxiv.org/abs/1702.03154).
+ *
+ * Construction:
+ *  Level i is a bit array of gamma * n_i bits, where n_i is the number of hashes left.
+ *  Every hash is mapped to a bit of the level with a hash of (hash, i).
+ *  The bits hit by exactly one hash are set, and these hashes are done.
+ *  The hashes that collide go to level i + 1, until no hash is left.
+ *
+ * Lookup:
+ *  Find the first level where the bit of the hash is set.
+ *  The value is the number of set bits before it in all levels (rank),
+ *  which is computed with the precomputed ranks of 512-bit blocks.
+ *
+ * With gamma = 2, it takes about 4 bits per hash including the ranks,
+ * and a lookup checks 1.6 levels on average.
+ * A hash not in the set is mapped to an arbitrary value, or -1.
+ *
+ * Thread-safe after construction.
+ *
+ * The function is persisted as its levels, the ranks are computed again when it is read.
+ */
+class PerfectHash {
+
+    static final int MAX_LEVELS = 64;
+
+    private static final int GAMMA = 2;
+    private static final int WORDS_PER_BLOCK = 8;   // 512 bits
+
+    private final long n;
+    private final long[] bits;          // bits of all levels, each level begins at a word
+    private final long[] levelOffsets;  // first bit of each level
+    private final long[] levelSizes;    // bits of each level, a multiple of 64
+    private final long[] blockRanks;    // set bits before each block
+
+    private PerfectHash(long n, long[] bits, long[] levelOffsets, long[] levelSizes) {
+        this.n = n;
+        this.bits = bits;
+        this.levelOffsets = levelOffsets;
+        this.levelSizes = levelSizes;
+        this.blockRanks = new long[(bits.length + WORDS_PER_BLOCK - 1) / WORDS_PER_BLOCK];
+        long rank = 0;
+        for (int i = 0; i < bits.length; i++) {
+            if (i % WORDS_PER_BLOCK == 0)
+                blockRanks[i / WORDS_PER_BLOCK] = rank;
+            rank += Long.bitCount(bits[i]);
+        }
+    }
+
+    /**
+     * Builds the function over the hashes.
+     *
+     * @param hashes
+     *        The hashes, the first size of which are used
+     * @param size
+     *        The number of hashes
+     *
+     * @return The function mapping the hashes to [0, size)
+     *
+     * @throws IllegalArgumentException
+     *         If the hashes are not distinct, or too many of them collide to be placed
+     *         in MAX_LEVELS levels.
+     */
+    static PerfectHash build(long[] hashes, int size) {
+        long[] remaining = Arrays.copyOf(hashes, size);
+        long[] sorted = remaining.clone();
+        Arrays.sort(sorted);
+        for (int i = 1; i < size; i++) {
+            if (sorted[i] == sorted[i - 1])
+                throw new IllegalArgumentException("Duplicate hash: " + sorted[i]);
+        }
+
+        long[][] levels = new long[MAX_LEVELS][];
+        long[] levelSizes = new long[MAX_LEVELS];
+        int levelCount = 0;
+        int remainingSize = size;
+        while (remainingSize > 0) {
+            if (levelCount == MAX_LEVELS)
+                throw new IllegalArgumentException("Too many levels of perfect hash");
+            long levelSize = Math.max(64, ((long) GAMMA * remainingSize + 63) & ~63L);
+            long[] hit = new long[(int) (levelSize >>> 6)];
+            long[] collided = new long[hit.length];
+            for (int i = 0; i < remainingSize; i++) {
+                long position = position(remaining[i], levelCount, levelSize);
+                if (getBit(hit, position))
+                    setBit(collided, position);
+                else
+                    setBit(hit, position);
+            }
+
+            // the collided hashes go to the next level
+            int next = 0;
+            for (int i = 0; i < remainingSize; i++) {
+                if (getBit(collided, position(remaining[i], levelCount, levelSize)))
+                    remaining[next++] = remaining[i];
+            }
+            for (int i = 0; i < hit.length; i++) {
+                hit[i] &= ~collided[i];
+            }
+            levels[levelCount] = hit;
+            levelSizes[levelCount] = levelSize;
+            levelCount++;
+            remainingSize = next;
+        }
+
+        long[] levelOffsets = new long[levelCount];
+        long totalBits = 0;
+        for (int i = 0; i < levelCount; i++) {
+            levelOffsets[i] = totalBits;
+            totalBits += levelSizes[i];
+        }
+        long[] bits = new long[(int) (totalBits >>> 6)];
+        for (int i = 0; i < levelCount; i++) {
+            System.arraycopy(levels[i], 0, bits, (int) (levelOffsets[i] >>> 6), levels[i].length);
+        }
+        return new PerfectHash(size, bits, levelOffsets,
+                               Arrays.copyOf(levelSizes, levelCount));
+    }
+
+    /**
+     * Writes the function to the output, see read().
+     *
+     * @param out
+     *        The output
+     *
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeLong(n);
+        out.writeInt(levelSizes.length);
+        for (long levelSize : levelSizes) {
+            out.writeLong(levelSize);
+        }
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads a function written by write().
+     *
+     * @param in
+     *        The input
+     *
+     * @return The function
+     *
+     * @throws IOException
+     *         If I/O errors occur, or the input is not a valid function.
+     */
+    static PerfectHash read(DataInput in) throws IOException {
+        long n = in.readLong();
+        int levelCount = in.readInt();
+        if (n < 0 || levelCount < 0 || levelCount > MAX_LEVELS)
+            throw new IOException("Invalid perfect hash: n = " + n + ", levels = " + levelCount);
+        long[] levelSizes = new long[levelCount];
+        long[] levelOffsets = new long[levelCount];
+        long totalBits = 0;
+        for (int i = 0; i < levelCount; i++) {
+            levelSizes[i] = in.readLong();
+            if (levelSizes[i] <= 0 || (levelSizes[i] & 63) != 0 || levelSizes[i] >= 1L << 32)
+                throw new IOException("Invalid perfect hash level size: " + levelSizes[i]);
+            levelOffsets[i] = totalBits;
+            totalBits += levelSizes[i];
+        }
+        if (totalBits >>> 6 > Integer.MAX_VALUE)
+            throw new IOException("Invalid perfect hash size: " + totalBits + " bits");
+        long[] bits = new long[(int) (totalBits >>> 6)];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = in.readLong();
+        }
+        return new PerfectHash(n, bits, levelOffsets, levelSizes);
+    }
+
+    /**
+     * Maps a hash to its value.
+     *
+     * @param hash
+     *        The hash
+     *
+     * @return The value in [0, n) if hash is in the set,
+     *         otherwise an arbitrary value in [0, n) or -1
+     */
+    long lookup(long hash) {
+        for (int level = 0; level < levelSizes.length; level++) {
+            long position = levelOffsets[level] + position(hash, level, levelSizes[level]);
+            if (getBit(bits, position))
+                return rank(position);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the size of the set.
+     *
+     * @return The number of hashes
+     */
+    long size() {
+        return n;
+    }
+
+    /**
+     * Returns the memory used by the bit arrays and the ranks.
+     *
+     * @return The size in bytes
+     */
+    long memoryBytes() {
+        return ((long) bits.length + blockRanks.length) << 3;
+    }
+
+    /**
+     * Returns the number of set bits before the position.
+     */
+    private long rank(long position) {
+        int word = (int) (position >>> 6);
+        int block = word / WORDS_PER_BLOCK;
+        long rank = blockRanks[block];
+        for (int i = block * WORDS_PER_BLOCK; i < word; i++) {
+            rank += Long.bitCount(bits[i]);
+        }
+        return rank + Long.bitCount(bits[word] & ((1L << (position & 63)) - 1));
+    }
+
+    /**
+     * Maps a hash to a bit of a level.
+     *
+     * @param hash
+     *        The hash
+     * @param level
+     *        The level
+     * @param levelSize
+     *        The number of bits of the level, less than 2^32
+     *
+     * @return The position of the bit in the level
+     */
+    private static long position(long hash, int level, long levelSize) {
+        // the finalizer of SplitMix64, so that the levels are independent
+        long h = hash + (level + 1) * 0x9e3779b97f4a7c15L;
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        h ^= h >>> 31;
+        // (h / 2^32) * levelSize / 2^32, i.e. maps to [0, levelSize) without division
+        return ((h >>> 32) * levelSize) >>> 32;
+    }
+
+    private static boolean getBit(long[] arr, long position) {
+        return (arr[(int) (position >>> 6)] & (1L << (position & 63))) != 0;
+    }
+
+    private static void setBit(long[] arr, long position) {
+        arr[(int) (position >>> 6)] |= 1L << (position & 63);
+    }
+}
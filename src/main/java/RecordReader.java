@@ -1,37 +1,86 @@
-import java.io.FileInputStream;
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 /**
  * A Reader that reads the data file, with record format (key_size, key, value_size, value).
- * Each getNextRecord() call returns a record with {key_size, key, value_size, value, address}.
+ *
+ * The file is read sequentially through a large reusable direct buffer, and records are
+ * parsed in place. The reader works as a cursor: next() moves to the next record, whose
+ * address, sizes, key and value can be accessed until the following next() call.
+ * No memory is allocated per record, unless the key or value is copied out.
+ *
+ * Each getNextRecord() call returns a record with {key_size, key, value_size, value, address},
+ * which allocates a new Record.
  */
-class RecordReader {
+class RecordReader implements Closeable {
+
+    static final int DEFAULT_BUFFER_SIZE = 4 << 20;    // 4 MB
 
-    private FileInputStream inputStream;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final ByteBuffer buffer;    // holds the bytes in [bufferStart, bufferStart + limit)
+    private long bufferStart = 0;
     private boolean closed = false;
-    long pos = 0;
+    long pos = 0;                       // address of the next record
+
+    // the current record
+    private long address;
+    private int recordOffset;           // offset of the current record in buffer
+    private short keySize;
+    private short valueSize;
 
     /**
-     * Constructs the input stream which reads the input file.
+     * Constructs the reader which reads the input file.
      *
      * @param filename
      *        The filename of the data.
      *
      * @throws FileNotFoundException
      *         If data file is not found.
+     * @throws IOException
+     *         If I/O errors occur.
      */
-    RecordReader(String filename)
-            throws FileNotFoundException {
-        inputStream = new FileInputStream(filename);
+    RecordReader(String filename) throws IOException {
+        this(filename, DEFAULT_BUFFER_SIZE);
     }
 
     /**
-     * Constructs the input stream and specify length of key_size and value_size fields.
+     * Constructs the reader with the given buffer size.
+     *
+     * @param filename
+     *        The filename of the data.
+     * @param bufferSize
+     *        The size of the read buffer, must be able to hold the largest record.
+     *
+     * @throws FileNotFoundException
+     *         If data file is not found.
+     * @throws IOException
+     *         If I/O errors occur.
+     */
+    RecordReader(String filename, int bufferSize) throws IOException {
+        if (bufferSize < Record.keySizeLength + Record.MAX_KEY_SIZE
+                         + Record.valueSizeLength + Record.MAX_VALUE_SIZE)
+            throw new IllegalArgumentException("bufferSize is less than the largest record");
+        try {
+            channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(filename);
+        }
+        fileSize = channel.size();
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        buffer.limit(0);
+    }
+
+    /**
+     * Constructs the reader and specify length of key_size and value_size fields.
      *
      * @param filename
      *        The filename of the data.
@@ -42,26 +91,124 @@ class RecordReader {
      *
      * @throws FileNotFoundException
      *         If data file is not found.
+     * @throws IOException
+     *         If I/O errors occur.
      */
     RecordReader(String filename, int keySizeLength, int valueSizeLength)
-            throws FileNotFoundException {
+            throws IOException {
         this(filename);
         Record.keySizeLength = keySizeLength;
         Record.valueSizeLength = valueSizeLength;
     }
 
     /**
-     * Checks if the reader can read next record, or has reached the end of file.
+     * Moves the cursor to the next record.
      *
-     * @return Whether there is another record that can be read.
+     * @return false if the end of file is reached
      *
      * @throws IOException
-     *         If this file input stream has been closed by calling or I/O error occurs.
+     *         If I/O errors occur
+     * @throws InvalidDataFormatException
+     *         If the data format is invalid, e.g. invalid key_size
      */
-    boolean hasNextRecord() throws IOException {
-        if (closed)
+    boolean next() throws IOException, InvalidDataFormatException {
+        if (closed || pos >= fileSize)
             return false;
-        return inputStream.available() > 0;
+
+        // read key_size
+        fill(Record.keySizeLength);
+        recordOffset = (int) (pos - bufferStart);
+        int keySize = readSize(recordOffset, Record.keySizeLength);
+        if (keySize > Record.MAX_KEY_SIZE)
+            throw new InvalidDataFormatException("Invalid key size: " + keySize);
+        this.keySize = (short) keySize;
+
+        // read value_size
+        int valueSizeOffset = Record.keySizeLength + keySize;
+        fill(valueSizeOffset + Record.valueSizeLength);
+        recordOffset = (int) (pos - bufferStart);
+        int valueSize = readSize(recordOffset + valueSizeOffset, Record.valueSizeLength);
+        if (valueSize > Record.MAX_VALUE_SIZE)
+            throw new InvalidDataFormatException("Invalid value size: " + valueSize);
+        this.valueSize = (short) valueSize;
+
+        // make the whole record available in buffer
+        int recordSize = valueSizeOffset + Record.valueSizeLength + valueSize;
+        fill(recordSize);
+        recordOffset = (int) (pos - bufferStart);
+        address = pos;
+        pos += recordSize;
+        return true;
+    }
+
+    /**
+     * Returns the address of the current record in the data file.
+     */
+    long address() {
+        return address;
+    }
+
+    short keySize() {
+        return keySize;
+    }
+
+    short valueSize() {
+        return valueSize;
+    }
+
+    /**
+     * Returns the internal buffer that holds the current record.
+     * The content is only valid until the next call of next().
+     * Use keyOffset() and valueOffset() to locate the key and value,
+     * and absolute get methods to read it.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the offset of the key of the current record in buffer().
+     */
+    int keyOffset() {
+        return recordOffset + Record.keySizeLength;
+    }
+
+    /**
+     * Returns the offset of the value of the current record in buffer().
+     */
+    int valueOffset() {
+        return recordOffset + Record.keySizeLength + keySize + Record.valueSizeLength;
+    }
+
+    /**
+     * Copies the key of the current record.
+     *
+     * @param dst
+     *        The destination array, whose length is at least keySize()
+     */
+    void getKey(byte[] dst) {
+        buffer.position(keyOffset());
+        buffer.get(dst, 0, keySize);
+    }
+
+    /**
+     * Copies the value of the current record.
+     *
+     * @param dst
+     *        The destination array, whose length is at least valueSize()
+     */
+    void getValue(byte[] dst) {
+        buffer.position(valueOffset());
+        buffer.get(dst, 0, valueSize);
+    }
+
+    /**
+     * Checks if the reader can read next record, or has reached the end of file.
+     *
+     * @return Whether there is another record that can be read.
+     */
+    boolean hasNextRecord() {
+        return !closed && pos < fileSize;
     }
 
     /**
@@ -75,112 +222,89 @@ class RecordReader {
      * @throws IOException
      *         If I/O errors occur
      * @throws InvalidDataFormatException
-     *         If the data format is invalid, e.g. invalid key_size
+     *         If the data format is invalid, e.g. invalid key_size,
+     *         or there is no record left
      * @throws BufferUnderflowException
      *         If there are fewer bytes than required to get a number from a byte array
      */
     Record getNextRecord(boolean needData)
             throws IOException, InvalidDataFormatException, BufferUnderflowException {
-        Record record = new Record();
-        record.address = pos;
-
-        // read key_size
-        byte[] keySizeArray = new byte[Record.keySizeLength];
-        readArray(inputStream, keySizeArray);
-        record.keySize = ByteBuffer.wrap(keySizeArray).order(ByteOrder.BIG_ENDIAN).getShort();
-        if (record.keySize < 0 || record.keySize > Record.MAX_KEY_SIZE)
-            throw new InvalidDataFormatException("Invalid key size: " + record.keySize);
-        pos += Record.keySizeLength;
-
-        // read key
-        if (needData) {
-            record.key = new byte[record.keySize];
-            readArray(inputStream, record.key);
-        } else {
-            inputStream.skip(record.keySize);
-        }
-        pos += record.keySize;
+        if (!next())
+            throw new InvalidDataFormatException("End of file: no enough data to read");
 
-
-        // read value size
-        byte[] valueSizeArray = new byte[Record.valueSizeLength];
-        readArray(inputStream, valueSizeArray);
-        record.valueSize = ByteBuffer.wrap(valueSizeArray).order(ByteOrder.BIG_ENDIAN).getShort();
-        if (record.valueSize < 0 || record.valueSize > Record.MAX_VALUE_SIZE)
-            throw new InvalidDataFormatException("Invalid value size: " + record.valueSize);
-        pos += Record.valueSizeLength;
-
-        // read value
+        Record record = new Record();
+        record.address = address;
+        record.keySize = keySize;
+        record.valueSize = valueSize;
         if (needData) {
-            record.value = new byte[record.valueSize];
-            readArray(inputStream, record.value);
-        } else {
-            inputStream.skip(record.valueSize);
+            record.key = new byte[keySize];
+            getKey(record.key);
+            record.value = new byte[valueSize];
+            getValue(record.value);
         }
-        pos += record.valueSize;
 
-
-        // if reaches EOF, close file
-        if (inputStream.available() == 0) {
-            inputStream.close();
-            closed = true;
+        if (Log.isDebugEnabled()) {
+            Log.logd("-------reader------");
+            Log.logd("k = " + Arrays.toString(record.key));
+            Log.logd("v = " + Arrays.toString(record.value));
+            Log.logd("addr = " + record.address);
+            Log.logd("------\\reader------");
         }
 
-        Log.logd("-------reader------");
-        Log.logd("k = " + Arrays.toString(record.key));
-        Log.logd("v = " + Arrays.toString(record.value));
-        Log.logd("addr = " + record.address);
-        Log.logd("------\\reader------");
-
         return record;
     }
 
     /**
-     * Read an array of bytes from inputStream
+     * Makes sure that the bytes [pos, pos + length) are in the buffer,
+     * refilling the buffer from pos if necessary.
      *
-     * @param inputStream
-     *        The file input stream
-     * @param arr
-     *        The destination array
+     * @param length
+     *        The number of bytes required from pos
      *
      * @throws InvalidDataFormatException
-     *         If read fewer bytes than required
+     *         If the file ends before pos + length
      * @throws IOException
      *         If I/O errors occur
      */
-    private void readArray(FileInputStream inputStream, byte[] arr)
-            throws InvalidDataFormatException, IOException {
-        int read = inputStream.read(arr);
-        // read = -1 if it reaches the end of the file
-        if (read < arr.length)
-            throw new InvalidDataFormatException("End of file: no enough data to read, read = " + read);
+    private void fill(int length) throws InvalidDataFormatException, IOException {
+        if (pos + length <= bufferStart + buffer.limit())
+            return;
+        if (pos + length > fileSize)
+            throw new InvalidDataFormatException("End of file: no enough data to read, remaining = "
+                                                 + (fileSize - pos));
+
+        // keep the unread bytes, and read as much as possible after them
+        buffer.position((int) (pos - bufferStart));
+        buffer.compact();
+        bufferStart = pos;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, bufferStart + buffer.position());
+            if (read < 0)
+                break;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Reads a big-endian unsigned size field from the buffer.
+     */
+    private int readSize(int offset, int length) {
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            size = (size << 8) | (buffer.get(offset + i) & 0xff);
+        }
+        return size;
     }
 
     /**
-     * close the input stream
+     * close the reader
      *
      * @throws IOException
      *         If I/O errors occur
      */
-    void close() throws IOException {
-        inputStream.close();
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
     }
 }
-
-/**
- * The exception class for invalid data format.
- *
- * Examples:
- *      Less data than required in the data file,
- *      invalid key_size,
- *      invalid value_size.
- */
-class InvalidDataFormatException extends Exception {
-    InvalidDataFormatException() {
-        super();
-    }
-
-    InvalidDataFormatException(String message) {
-        super(message);
-    }
-}
\ No newline at end of file
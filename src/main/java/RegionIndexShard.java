@@ -0,0 +1,46 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An index shard that is a region of the index file, see IndexFile.
+ * The reads are delegated to the index file, which is closed by the owner of it.
+ */
+class RegionIndexShard implements IndexShard {
+
+    private final IndexShard file;
+    private final long offset;
+    private final long size;
+
+    /**
+     * Constructs the shard on a region of the index file.
+     *
+     * @param file
+     *        The opened index file
+     * @param offset
+     *        The offset of the region in the file
+     * @param size
+     *        The size of the region in bytes
+     */
+    RegionIndexShard(IndexShard file, long offset, long size) {
+        this.file = file;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0 || position + dst.remaining() > size)
+            throw new EOFException("End of shard: no enough data to read at " + position);
+        file.read(dst, offset + position);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+    }
+}
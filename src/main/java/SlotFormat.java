@@ -0,0 +1,365 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The format of the slots in index files.
+ *
+ * Slot structure:
+ *  | key_size | address | value_size | next_slot_id | fingerprint | padding |  inline  |
+ *  |    k     |    a    |     v      |    0, n      |   0 - 16    |  0 - 7  | 0 - 4096 |
+ *  |                             (bits)                                     | (bytes)  |
+ *
+ * The fields are bit-packed, big-endian, and padded to a whole byte,
+ * so that slots stay byte-aligned and a slot is still read with one positional read.
+ * The widths are sized to the data when the index is built, see sized(), and stored
+ * in the index header. By default, the widths are k = 16, a = 40, v = 16 and n = 32,
+ * i.e. the byte-aligned slots of 13 bytes.
+ *
+ * next_slot_id links the slots of a chain in the chained layout.
+ * Slots in buckets are not linked, so they have no next_slot_id. See BucketFormat.
+ *
+ * The optional fingerprint holds the highest bits of the 64-bit hash of the key.
+ * They are never used for addressing since the capacity is at most 2^40, so a slot
+ * whose fingerprint differs from the one of the queried key can be rejected
+ * without reading the key from the data file.
+ *
+ * With an inline area of inlineBytes bytes, a record whose key and value take at most
+ * inlineBytes bytes together is inline: its key and value are stored in the area of its
+ * slot, so that a query of it does not read the data file. Its address is still stored.
+ */
+class SlotFormat {
+
+    static final int DEFAULT_KEY_SIZE_BITS = Record.keySizeLength << 3;
+    static final int DEFAULT_ADDRESS_BITS = 40;
+    static final int DEFAULT_VALUE_SIZE_BITS = Record.valueSizeLength << 3;
+    static final int DEFAULT_NEXT_SLOT_ID_BITS = 32;
+
+    // a field of at most 56 bits spans at most 8 bytes at any bit offset
+    static final int MAX_ADDRESS_BITS = 56;
+    static final int MAX_FINGERPRINT_BITS = 16;
+    static final int MAX_INLINE_BYTES = 4096;
+
+    final int keySizeBits;
+    final int addressBits;
+    final int valueSizeBits;
+    final int nextSlotIdBits;   // 0 if the slots are not linked
+    final int fingerprintBits;  // 0 if there is no fingerprint
+    final boolean linked;       // whether there is next_slot_id
+    final int inlineBytes;      // size of the inline area, 0 if there is no inline area
+    final int inlineOffset;     // offset of the inline area in a slot in bytes
+    final int slotSize;         // size of a slot in bytes
+
+    // offsets of the fields in a slot, in bits
+    private final int addressOffset;
+    private final int valueSizeOffset;
+    private final int nextSlotIdOffset;
+    private final int fingerprintOffset;
+
+    /**
+     * Constructs the format of linked slots with the default widths.
+     *
+     * @param fingerprintBits
+     *        The number of bits of the fingerprint, 0 to 16
+     */
+    SlotFormat(int fingerprintBits) {
+        this(fingerprintBits, true);
+    }
+
+    /**
+     * Constructs the format with the default widths.
+     *
+     * @param fingerprintBits
+     *        The number of bits of the fingerprint, 0 to 16
+     * @param linked
+     *        Whether the slots have next_slot_id
+     */
+    SlotFormat(int fingerprintBits, boolean linked) {
+        this(DEFAULT_KEY_SIZE_BITS, DEFAULT_ADDRESS_BITS, DEFAULT_VALUE_SIZE_BITS,
+             linked ? DEFAULT_NEXT_SLOT_ID_BITS : 0, fingerprintBits);
+    }
+
+    /**
+     * Constructs the format with the given widths of the fields.
+     *
+     * @param keySizeBits
+     *        The number of bits of key_size, 0 to 16
+     * @param addressBits
+     *        The number of bits of address, 0 to 56
+     * @param valueSizeBits
+     *        The number of bits of value_size, 0 to 16
+     * @param nextSlotIdBits
+     *        The number of bits of next_slot_id, 0 to 32, or 0 if the slots are not linked
+     * @param fingerprintBits
+     *        The number of bits of the fingerprint, 0 to 16
+     */
+    SlotFormat(int keySizeBits, int addressBits, int valueSizeBits, int nextSlotIdBits,
+               int fingerprintBits) {
+        this(keySizeBits, addressBits, valueSizeBits, nextSlotIdBits, fingerprintBits, 0);
+    }
+
+    /**
+     * Constructs the format with the given widths of the fields and an inline area.
+     *
+     * @param keySizeBits
+     *        The number of bits of key_size, 0 to 16
+     * @param addressBits
+     *        The number of bits of address, 0 to 56
+     * @param valueSizeBits
+     *        The number of bits of value_size, 0 to 16
+     * @param nextSlotIdBits
+     *        The number of bits of next_slot_id, 0 to 32, or 0 if the slots are not linked
+     * @param fingerprintBits
+     *        The number of bits of the fingerprint, 0 to 16
+     * @param inlineBytes
+     *        The size of the inline area in bytes, 0 to 4096
+     */
+    SlotFormat(int keySizeBits, int addressBits, int valueSizeBits, int nextSlotIdBits,
+               int fingerprintBits, int inlineBytes) {
+        checkBits("keySizeBits", keySizeBits, Record.keySizeLength << 3);
+        checkBits("addressBits", addressBits, MAX_ADDRESS_BITS);
+        checkBits("valueSizeBits", valueSizeBits, Record.valueSizeLength << 3);
+        checkBits("nextSlotIdBits", nextSlotIdBits, Integer.SIZE);
+        checkBits("fingerprintBits", fingerprintBits, MAX_FINGERPRINT_BITS);
+        if (inlineBytes < 0 || inlineBytes > MAX_INLINE_BYTES)
+            throw new IllegalArgumentException("inlineBytes must be in [0, " + MAX_INLINE_BYTES
+                                               + "]: " + inlineBytes);
+        this.keySizeBits = keySizeBits;
+        this.addressBits = addressBits;
+        this.valueSizeBits = valueSizeBits;
+        this.nextSlotIdBits = nextSlotIdBits;
+        this.fingerprintBits = fingerprintBits;
+        this.linked = nextSlotIdBits > 0;
+        this.addressOffset = keySizeBits;
+        this.valueSizeOffset = addressOffset + addressBits;
+        this.nextSlotIdOffset = valueSizeOffset + valueSizeBits;
+        this.fingerprintOffset = nextSlotIdOffset + nextSlotIdBits;
+        this.inlineBytes = inlineBytes;
+        this.inlineOffset = (fingerprintOffset + fingerprintBits + 7) >>> 3;
+        this.slotSize = Math.max(1, inlineOffset + inlineBytes);
+    }
+
+    /**
+     * Constructs the narrowest format that holds the given values.
+     *
+     * @param maxKeySize
+     *        The maximum key size of the records
+     * @param maxAddress
+     *        The maximum address of the records, e.g. the size of the data file
+     * @param maxValueSize
+     *        The maximum value size of the records
+     * @param maxSlotId
+     *        The maximum slot id in an index file, ignored if the slots are not linked
+     * @param fingerprintBits
+     *        The number of bits of the fingerprint, 0 to 16
+     * @param linked
+     *        Whether the slots have next_slot_id
+     * @param inlineBytes
+     *        The size of the inline area in bytes, 0 to 4096
+     *
+     * @return The format
+     *
+     * @throws IllegalArgumentException
+     *         If a value does not fit in the widest field.
+     */
+    static SlotFormat sized(long maxKeySize, long maxAddress, long maxValueSize, long maxSlotId,
+                            int fingerprintBits, boolean linked, int inlineBytes) {
+        return new SlotFormat(bitsOf(maxKeySize), bitsOf(maxAddress), bitsOf(maxValueSize),
+                              linked ? Math.max(1, bitsOf(maxSlotId)) : 0, fingerprintBits,
+                              inlineBytes);
+    }
+
+    /**
+     * Returns the number of bits to hold a non-negative value.
+     */
+    static int bitsOf(long value) {
+        if (value < 0)
+            throw new IllegalArgumentException("Negative value: " + value);
+        return Long.SIZE - Long.numberOfLeadingZeros(value);
+    }
+
+    private static void checkBits(String name, int bits, int max) {
+        if (bits < 0 || bits > max)
+            throw new IllegalArgumentException(name + " must be in [0, " + max + "]: " + bits);
+    }
+
+    /**
+     * Returns the fingerprint of a key.
+     *
+     * @param hash
+     *        The unmasked 64-bit hash of the key
+     *
+     * @return The fingerprint, 0 if there is no fingerprint
+     */
+    int fingerprint(long hash) {
+        return fingerprintBits == 0 ? 0 : (int) (hash >>> (64 - fingerprintBits));
+    }
+
+    /**
+     * Encodes a slot into the array.
+     *
+     * @param arr
+     *        The destination array
+     * @param offset
+     *        The offset of the slot in arr
+     * @param keySize
+     *        The key size of the record
+     * @param address
+     *        The address of the record in the data file
+     * @param valueSize
+     *        The value size of the record
+     * @param nextSlotId
+     *        The next slot id in the linked list, 0 if it is the end.
+     *        Ignored if the slots are not linked.
+     * @param fingerprint
+     *        The fingerprint of the key, ignored if there is no fingerprint
+     *
+     * @throws IllegalArgumentException
+     *         If a value does not fit in its field.
+     */
+    void encode(byte[] arr, int offset, short keySize, long address,
+                short valueSize, int nextSlotId, int fingerprint) {
+        Arrays.fill(arr, offset, offset + slotSize, (byte) 0);
+        putBits(arr, offset, 0, keySizeBits, keySize & 0xffffL);
+        putBits(arr, offset, addressOffset, addressBits, address);
+        putBits(arr, offset, valueSizeOffset, valueSizeBits, valueSize & 0xffffL);
+        if (linked)
+            putBits(arr, offset, nextSlotIdOffset, nextSlotIdBits, nextSlotId & 0xffffffffL);
+        if (fingerprintBits > 0)
+            putBits(arr, offset, fingerprintOffset, fingerprintBits, fingerprint & 0xffffffffL);
+    }
+
+    /**
+     * Returns whether a record of the sizes is inline, i.e. its key and value are stored
+     * in the inline area of its slot.
+     *
+     * @param keySize
+     *        The key size of the record
+     * @param valueSize
+     *        The value size of the record
+     *
+     * @return Whether the record is inline
+     */
+    boolean isInline(short keySize, short valueSize) {
+        return inlineBytes > 0 && (keySize & 0xffff) + (valueSize & 0xffff) <= inlineBytes;
+    }
+
+    /**
+     * Rewrites the address of an encoded slot in the array, keeping the other fields.
+     *
+     * @param arr
+     *        The array holding the slot
+     * @param offset
+     *        The offset of the slot in arr
+     * @param address
+     *        The new address
+     *
+     * @throws IllegalArgumentException
+     *         If the address does not fit in its field.
+     */
+    void setAddress(byte[] arr, int offset, long address) {
+        putBits(arr, offset, addressOffset, addressBits, address);
+    }
+
+    short keySize(ByteBuffer slot) {
+        return keySize(slot, 0);
+    }
+
+    long address(ByteBuffer slot) {
+        return address(slot, 0);
+    }
+
+    short valueSize(ByteBuffer slot) {
+        return valueSize(slot, 0);
+    }
+
+    int nextSlotId(ByteBuffer slot) {
+        return nextSlotId(slot, 0);
+    }
+
+    int fingerprint(ByteBuffer slot) {
+        return fingerprint(slot, 0);
+    }
+
+    // decoders of a slot at the given offset in buf, e.g. a slot in a bucket
+
+    short keySize(ByteBuffer buf, int offset) {
+        return (short) getBits(buf, offset, 0, keySizeBits);
+    }
+
+    long address(ByteBuffer buf, int offset) {
+        return getBits(buf, offset, addressOffset, addressBits);
+    }
+
+    short valueSize(ByteBuffer buf, int offset) {
+        return (short) getBits(buf, offset, valueSizeOffset, valueSizeBits);
+    }
+
+    int nextSlotId(ByteBuffer buf, int offset) {
+        return (int) getBits(buf, offset, nextSlotIdOffset, nextSlotIdBits);
+    }
+
+    int fingerprint(ByteBuffer buf, int offset) {
+        return (int) getBits(buf, offset, fingerprintOffset, fingerprintBits);
+    }
+
+    /**
+     * Returns the key of an inline record in the slot at offset in buf.
+     *
+     * @return A view of the key in buf
+     */
+    ByteBuffer inlineKey(ByteBuffer buf, int offset) {
+        return inlineView(buf, offset + inlineOffset, keySize(buf, offset) & 0xffff);
+    }
+
+    /**
+     * Returns the value of an inline record in the slot at offset in buf.
+     *
+     * @return A view of the value in buf
+     */
+    ByteBuffer inlineValue(ByteBuffer buf, int offset) {
+        return inlineView(buf, offset + inlineOffset + (keySize(buf, offset) & 0xffff),
+                          valueSize(buf, offset) & 0xffff);
+    }
+
+    private static ByteBuffer inlineView(ByteBuffer buf, int position, int length) {
+        ByteBuffer view = buf.duplicate();
+        view.limit(position + length);
+        view.position(position);
+        return view.slice();
+    }
+
+    /**
+     * Writes a field of the slot at offset in arr.
+     */
+    private static void putBits(byte[] arr, int offset, int bitOffset, int bits, long value) {
+        if (bits < Long.SIZE && value >>> bits != 0)
+            throw new IllegalArgumentException("Value " + value + " does not fit in "
+                                               + bits + " bits");
+        int end = bitOffset + bits;
+        for (int bit = bitOffset; bit < end; ) {
+            int used = bit & 7;                         // bits before the field in the byte
+            int count = Math.min(8 - used, end - bit);  // bits of the field in the byte
+            int part = (int) (value >>> (end - bit - count)) & ((1 << count) - 1);
+            int shift = 8 - used - count;
+            int index = offset + (bit >>> 3);
+            arr[index] = (byte) ((arr[index] & ~(((1 << count) - 1) << shift)) | (part << shift));
+            bit += count;
+        }
+    }
+
+    /**
+     * Reads a field of the slot at offset in buf.
+     */
+    private static long getBits(ByteBuffer buf, int offset, int bitOffset, int bits) {
+        if (bits == 0)
+            return 0;
+        int first = bitOffset >>> 3;
+        int last = (bitOffset + bits - 1) >>> 3;
+        long value = 0;
+        for (int i = first; i <= last; i++) {
+            value = (value << 8) | (buf.get(offset + i) & 0xff);
+        }
+        int trailing = ((last + 1) << 3) - (bitOffset + bits);
+        return (value >>> trailing) & (-1L >>> (Long.SIZE - bits));
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * The exception class for queries before initialization.
+ */
+class UninitializedException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    UninitializedException() {
+        super();
+    }
+
+    UninitializedException(String msg) {
+        super(msg);
+    }
+}
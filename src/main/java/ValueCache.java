@@ -0,0 +1,273 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent key-value cache bounded by the total bytes of the cached keys and values.
+ *
+ * The cache is striped into segments by the hash of the key, each guarded by its own lock,
+ * so queries of different keys rarely contend. An entry must fit in the budget of its segment,
+ * so a small cache has fewer segments, as many as keep room for a record of the max key and
+ * value sizes in each, down to a single segment. A cache smaller than such a record does not
+ * cache the larger records.
+ *
+ * Every segment is a segmented LRU (SLRU), which resists scans:
+ *  A new entry is put into the probation segment.
+ *  A hit in the probation segment promotes the entry to the protected segment.
+ *  The least recently used entry of a full protected segment is demoted to probation.
+ *  Entries are only evicted from probation, so an entry hit twice is not evicted
+ *  by a scan of keys that are queried once.
+ *
+ * The cache keeps its own copies of the keys and values,
+ * and returns a copy of the value on every hit.
+ */
+class ValueCache {
+
+    // estimated bytes of an entry besides its key and value
+    static final int ENTRY_OVERHEAD = 96;
+
+    private static final int MAX_SEGMENT_COUNT = 64;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final Segment[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param maxBytes
+     *        The maximum total bytes of the entries
+     */
+    ValueCache(long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive");
+        long maxEntryBytes = ENTRY_OVERHEAD + Record.MAX_KEY_SIZE + Record.MAX_VALUE_SIZE;
+        int segmentCount = MAX_SEGMENT_COUNT;
+        while (segmentCount > 1 && maxBytes / segmentCount < maxEntryBytes)
+            segmentCount >>= 1;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(maxBytes / segmentCount);
+        }
+    }
+
+    /**
+     * Returns a copy of the cached value of the key.
+     *
+     * @param key
+     *        The key
+     * @param hash
+     *        The 64-bit hash of the key
+     *
+     * @return The value, or null if the key is not cached
+     */
+    byte[] get(byte[] key, long hash) {
+        byte[] value = segmentOf(hash).get(new Key(key, hash));
+        if (value == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return value.clone();
+    }
+
+    /**
+     * Copies the cached value of the key to dst, without allocating a copy of it.
+     *
+     * @param key
+     *        The key
+     * @param hash
+     *        The 64-bit hash of the key
+     * @param dst
+     *        The destination buffer
+     *
+     * @return The length of the value, or -1 if the key is not cached
+     *
+     * @throws BufferOverflowException
+     *         If the value is longer than dst.remaining(), dst is not modified then.
+     */
+    int getInto(byte[] key, long hash, ByteBuffer dst) {
+        byte[] value = segmentOf(hash).get(new Key(key, hash));
+        if (value == null) {
+            misses.increment();
+            return -1;
+        }
+        hits.increment();
+        if (value.length > dst.remaining())
+            throw new BufferOverflowException();
+        dst.put(value);
+        return value.length;
+    }
+
+    /**
+     * Caches copies of the key and the value.
+     *
+     * @param key
+     *        The key
+     * @param hash
+     *        The 64-bit hash of the key
+     * @param value
+     *        The value
+     */
+    void put(byte[] key, long hash, byte[] value) {
+        put(key, hash, value, 0, value.length);
+    }
+
+    /**
+     * Caches copies of the key and the value, which is a range of an array.
+     *
+     * @param key
+     *        The key
+     * @param hash
+     *        The 64-bit hash of the key
+     * @param arr
+     *        The array holding the value
+     * @param offset
+     *        The offset of the value in arr
+     * @param length
+     *        The length of the value
+     */
+    void put(byte[] key, long hash, byte[] arr, int offset, int length) {
+        segmentOf(hash).put(new Key(key.clone(), hash),
+                            Arrays.copyOfRange(arr, offset, offset + length));
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the total bytes of the cached entries.
+     *
+     * @return The size in bytes
+     */
+    long bytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.probationBytes + segment.protectedBytes;
+            }
+        }
+        return bytes;
+    }
+
+    private Segment segmentOf(long hash) {
+        // the high bits, the low bits choose the index file
+        return segments[(int) (hash >>> 58) & (segments.length - 1)];
+    }
+
+    private static long sizeOf(Key key, byte[] value) {
+        return ENTRY_OVERHEAD + key.bytes.length + value.length;
+    }
+
+    /**
+     * A key with its hash precomputed.
+     */
+    private static class Key {
+        final byte[] bytes;
+        final long hash;
+
+        Key(byte[] bytes, long hash) {
+            this.bytes = bytes;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return hash == other.hash && Arrays.equals(bytes, other.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) hash;
+        }
+    }
+
+    /**
+     * A segment of the cache, i.e. an SLRU guarded by its own lock.
+     * Both maps are in insertion order, an entry is moved to the MRU end by re-inserting it.
+     */
+    private class Segment {
+        private final long maxBytes;
+        private final long maxProtectedBytes;
+        private final LinkedHashMap<Key, byte[]> probationEntries = new LinkedHashMap<>();
+        private final LinkedHashMap<Key, byte[]> protectedEntries = new LinkedHashMap<>();
+        long probationBytes = 0;
+        long protectedBytes = 0;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.maxProtectedBytes = maxBytes / 100 * PROTECTED_PERCENT;
+        }
+
+        synchronized byte[] get(Key key) {
+            byte[] value = protectedEntries.remove(key);
+            if (value != null) {
+                protectedEntries.put(key, value);
+                return value;
+            }
+            value = probationEntries.remove(key);
+            if (value != null) {
+                // promote, demoting the LRU entries of protected if it is full
+                long size = sizeOf(key, value);
+                probationBytes -= size;
+                protectedEntries.put(key, value);
+                protectedBytes += size;
+                Iterator<Map.Entry<Key, byte[]>> it = protectedEntries.entrySet().iterator();
+                while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+                    Map.Entry<Key, byte[]> lru = it.next();
+                    it.remove();
+                    long lruSize = sizeOf(lru.getKey(), lru.getValue());
+                    protectedBytes -= lruSize;
+                    probationEntries.put(lru.getKey(), lru.getValue());
+                    probationBytes += lruSize;
+                }
+            }
+            return value;
+        }
+
+        synchronized void put(Key key, byte[] value) {
+            long size = sizeOf(key, value);
+            if (size > maxBytes || protectedEntries.containsKey(key)
+                || probationEntries.containsKey(key))
+                return;
+            probationEntries.put(key, value);
+            probationBytes += size;
+
+            // evict the LRU entries of probation, then of protected
+            evict(probationEntries.entrySet().iterator(), true);
+            evict(protectedEntries.entrySet().iterator(), false);
+        }
+
+        private void evict(Iterator<Map.Entry<Key, byte[]>> it, boolean fromProbation) {
+            while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+                Map.Entry<Key, byte[]> lru = it.next();
+                it.remove();
+                long size = sizeOf(lru.getKey(), lru.getValue());
+                if (fromProbation)
+                    probationBytes -= size;
+                else
+                    protectedBytes -= size;
+                evictions.increment();
+            }
+        }
+    }
+}
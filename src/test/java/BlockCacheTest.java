@@ -0,0 +1,251 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockCacheTest {
+
+    private static File makeFile(byte[] content) throws Exception {
+        File file = File.createTempFile("block", null);
+        file.deleteOnExit();
+        new Random(5).nextBytes(content);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        return file;
+    }
+
+    @Test
+    void testReadAcrossBlocks() throws Exception {
+        byte[] content = new byte[10000];
+        File file = makeFile(content);
+        BlockCache cache = new BlockCache(1 << 10, 64);
+        Random random = new Random(6);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < 10000; i++) {
+                int length = random.nextInt(200) + 1;
+                int position = random.nextInt(content.length - length + 1);
+                ByteBuffer buf = ByteBuffer.allocate(length);
+                cache.read(1, channel, buf, position);
+                assertArrayEquals(Arrays.copyOfRange(content, position, position + length),
+                                  buf.array());
+                assertTrue(cache.bytes() <= 1 << 10);
+            }
+            assertTrue(cache.hits() > 0);
+            assertTrue(cache.evictions() > 0);
+            assertThrows(EOFException.class,
+                         () -> cache.read(1, channel, ByteBuffer.allocate(2), content.length - 1));
+        }
+    }
+
+    @Test
+    void testConcurrentEviction() throws Exception {
+        byte[] content = new byte[10000];
+        File file = makeFile(content);
+        BlockCache cache = new BlockCache(1 << 10, 64);
+        int threadCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threadCount; t++) {
+                Random random = new Random(t);
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        int length = random.nextInt(200) + 1;
+                        int position = random.nextInt(content.length - length + 1);
+                        ByteBuffer buf = ByteBuffer.allocate(length);
+                        cache.read(1, channel, buf, position);
+                        assertArrayEquals(Arrays.copyOfRange(content, position, position + length),
+                                          buf.array());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // every loaded block has replaced one in the clock, so the budget holds once idle
+        assertTrue(cache.bytes() <= 1 << 10);
+        assertTrue(cache.evictions() > 0);
+        assertEquals(cache.loads(), cache.evictions() + cache.bytes() / 64);
+    }
+
+    @Test
+    void testSingleFlight() throws Exception {
+        byte[] content = new byte[4096 * 4];
+        new Random(5).nextBytes(content);
+        LatchedChannel channel = new LatchedChannel(content);
+        BlockCache cache = new BlockCache(1 << 20);
+        int threadCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            // the first reader loads block 1, and is held in the read of the channel
+            List<Future<ByteBuffer>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> read(cache, channel, 5000)));
+            channel.reading.await();
+            for (int t = 1; t < threadCount; t++) {
+                futures.add(executor.submit(() -> read(cache, channel, 5000)));
+            }
+            // the others find the block being loaded, and count a miss before they wait
+            long deadline = System.currentTimeMillis() + 10000;
+            while (cache.misses() < threadCount && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(threadCount, cache.misses());
+            assertEquals(0, cache.hits());
+            channel.release.countDown();
+            for (Future<ByteBuffer> future : futures) {
+                assertArrayEquals(Arrays.copyOfRange(content, 5000, 5100), future.get().array());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // once loaded, the block is a hit
+        read(cache, channel, 5000);
+        assertEquals(1, cache.loads());
+        assertEquals(1, channel.reads.get());
+        assertEquals(threadCount, cache.misses());
+        assertEquals(1, cache.hits());
+    }
+
+    private static ByteBuffer read(BlockCache cache, FileChannel channel, long position)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(100);
+        cache.read(0, channel, buf, position);
+        return buf;
+    }
+
+    /**
+     * A read-only channel over an array, whose positional reads wait for the release latch.
+     */
+    private static class LatchedChannel extends FileChannel {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger();
+        private final byte[] content;
+
+        LatchedChannel(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            reads.incrementAndGet();
+            reading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (position >= content.length)
+                return -1;
+            int length = (int) Math.min(dst.remaining(), content.length - position);
+            dst.put(content, (int) position, length);
+            return length;
+        }
+
+        @Override
+        public long size() {
+            return content.length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void force(boolean metaData) {
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void implCloseChannel() {
+        }
+    }
+}
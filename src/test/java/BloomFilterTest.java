@@ -0,0 +1,97 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BloomFilterTest {
+
+    @Test
+    void testFalsePositives() {
+        Random random = new Random(5);
+        long[] hashes = new long[100000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+        for (int bits : new int[]{1, 10, 16}) {
+            BloomFilter filter = BloomFilter.build(hashes, hashes.length, bits);
+            assertEquals((hashes.length * bits + 511) / 512 * 64, filter.memoryBytes());
+
+            // no false negatives
+            for (long hash : hashes) {
+                assertTrue(filter.mightContain(hash));
+            }
+
+            // false positives close to the expected rate
+            int positives = 0;
+            int queries = 100000;
+            for (int i = 0; i < queries; i++) {
+                if (filter.mightContain(random.nextLong()))
+                    positives++;
+            }
+            double expected = filter.falsePositiveRate();
+            assertEquals(expected, (double) positives / queries, 0.1 * expected + 0.002);
+            if (bits == 10)
+                assertTrue(expected < 0.015);
+        }
+    }
+
+    @Test
+    void testSameShard() {
+        // the hashes of an index file share their low bits
+        Random random = new Random(6);
+        long[] hashes = new long[10000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong() << 8 | 42;
+        }
+        BloomFilter filter = BloomFilter.build(hashes, hashes.length, 10);
+        int positives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(random.nextLong() << 8 | 42))
+                positives++;
+        }
+        assertTrue(positives < 200);
+    }
+
+    @Test
+    void testEmpty() {
+        BloomFilter filter = BloomFilter.build(new long[0], 0, 10);
+        assertEquals(0, filter.memoryBytes());
+        assertEquals(0, filter.falsePositiveRate());
+        assertFalse(filter.mightContain(1));
+        assertThrows(IllegalArgumentException.class,
+                     () -> BloomFilter.build(new long[1], 1, 0));
+    }
+
+    @Test
+    void testWriteRead() throws Exception {
+        Random random = new Random(7);
+        long[] hashes = new long[1000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+        BloomFilter filter = BloomFilter.build(hashes, hashes.length, 12);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filter.write(new DataOutputStream(bytes));
+
+        BloomFilter read = BloomFilter.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(filter.memoryBytes(), read.memoryBytes());
+        assertEquals(filter.falsePositiveRate(), read.falsePositiveRate());
+        for (int i = 0; i < 10000; i++) {
+            long hash = random.nextLong();
+            assertEquals(filter.mightContain(hash), read.mightContain(hash));
+        }
+
+        // truncated
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 1);
+        assertThrows(EOFException.class, () -> BloomFilter.read(new DataInputStream(
+                new ByteArrayInputStream(truncated))));
+    }
+}
@@ -0,0 +1,42 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BucketFormatTest {
+
+    @Test
+    void testSlotsPerBucket() {
+        BucketFormat line = new BucketFormat(64, new SlotFormat(0, false));
+        assertEquals(1, line.headerLength);
+        assertEquals(7, line.slotsPerBucket);
+        assertTrue(line.slotOffset(line.slotsPerBucket) <= 64);
+
+        BucketFormat page = new BucketFormat(4096, new SlotFormat(16, false));
+        assertEquals(2, page.headerLength);
+        assertEquals(372, page.slotsPerBucket);
+        assertTrue(page.slotOffset(page.slotsPerBucket) <= 4096);
+
+        assertThrows(IllegalArgumentException.class,
+                     () -> new BucketFormat(64, new SlotFormat(0)));
+        assertThrows(IllegalArgumentException.class,
+                     () -> new BucketFormat(8, new SlotFormat(0, false)));
+    }
+
+    @Test
+    void testHeader() {
+        for (int bucketSize : new int[]{64, 4096}) {
+            BucketFormat format = new BucketFormat(bucketSize, new SlotFormat(8, false));
+            byte[] arr = new byte[bucketSize];
+            for (int count = 0; count <= format.slotsPerBucket; count++) {
+                for (boolean overflowed : new boolean[]{false, true}) {
+                    format.encodeHeader(arr, 0, count, overflowed);
+                    ByteBuffer bucket = ByteBuffer.wrap(arr);
+                    assertEquals(count, format.count(bucket));
+                    assertEquals(overflowed, format.overflowed(bucket));
+                }
+            }
+        }
+    }
+}
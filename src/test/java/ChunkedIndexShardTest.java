@@ -0,0 +1,78 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkedIndexShardTest {
+
+    private interface ShardFactory {
+        ChunkedIndexShard open(FileChannel channel, int chunkSize) throws IOException;
+    }
+
+    private static File makeFile(byte[] content) throws IOException {
+        File file = File.createTempFile("shard", null);
+        file.deleteOnExit();
+        new Random(1).nextBytes(content);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        return file;
+    }
+
+    private static void assertReadsAcrossChunks(ShardFactory factory) throws IOException {
+        byte[] content = new byte[1000];
+        File file = makeFile(content);
+
+        // a chunk size that is not a multiple of the slot size
+        int slotSize = new SlotFormat(0).slotSize;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             ChunkedIndexShard shard = factory.open(channel, 64)) {
+            assertEquals(content.length, shard.size());
+            assertEquals(16, shard.chunkCount());
+            for (int position = 0; position + slotSize <= content.length; position += 7) {
+                ByteBuffer buf = ByteBuffer.allocate(slotSize);
+                shard.read(buf, position);
+                assertArrayEquals(Arrays.copyOfRange(content, position, position + slotSize),
+                                  buf.array());
+            }
+            assertThrows(EOFException.class,
+                         () -> shard.read(ByteBuffer.allocate(2), content.length - 1));
+        }
+    }
+
+    @Test
+    void testMappedReadAcrossChunks() throws Exception {
+        assertReadsAcrossChunks(MappedIndexShard::new);
+    }
+
+    @Test
+    void testMemoryReadAcrossChunks() throws Exception {
+        assertReadsAcrossChunks(MemoryIndexShard::new);
+    }
+
+    @Test
+    void testMemoryShardWithoutChannel() throws Exception {
+        byte[] content = new byte[1000];
+        File file = makeFile(content);
+        MemoryIndexShard shard;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            shard = new MemoryIndexShard(channel, 64);
+        }
+
+        // loaded once, the shard is read without the channel
+        ByteBuffer buf = ByteBuffer.allocate(content.length);
+        shard.read(buf, 0);
+        assertArrayEquals(content, buf.array());
+        shard.close();
+        assertThrows(IOException.class, () -> shard.read(ByteBuffer.allocate(1), 0));
+    }
+}
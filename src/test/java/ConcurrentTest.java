@@ -74,28 +74,39 @@ public class ConcurrentTest {
             for (int N : Ns) {
                 Log.logi("N = " + N);
                 KVIndexTest.makeData(N);
-                index.initialize(KVIndexTest.filename);
-                for (int threadCount : threadCounts) {
-                    Log.logi("N = " + N + ", threadCount = " + threadCount);
-                    CountDownLatch barrier = new CountDownLatch(1);
-                    CountDownLatch stopLatch = new CountDownLatch(threadCount);
-                    Random random = new Random(System.currentTimeMillis());
-                    AtomicLong totalTime = new AtomicLong();
+                for (IndexLayout layout : IndexLayout.values()) {
+                    index.setIndexLayout(layout);
+                    index.initialize(KVIndexTest.filename);
+                    for (int threadCount : threadCounts) {
+                        Log.logi("N = " + N + ", layout = " + layout
+                                 + ", threadCount = " + threadCount);
+                        CountDownLatch barrier = new CountDownLatch(1);
+                        CountDownLatch stopLatch = new CountDownLatch(threadCount);
+                        Random random = new Random(System.currentTimeMillis());
+                        AtomicLong totalTime = new AtomicLong();
 
-                    for (int i = 0; i < threadCount; i++) {
-                        new TestThread(i, queryCount, KVIndexTest.keys, KVIndexTest.values,
-                                       random.nextInt(), !benchmark, barrier, stopLatch,
-                                       totalTime).start();
-                    }
+                        for (int i = 0; i < threadCount; i++) {
+                            new TestThread(i, queryCount, KVIndexTest.keys,
+                                           KVIndexTest.values, random.nextInt(), !benchmark,
+                                           barrier, stopLatch, totalTime).start();
+                        }
 
-                    // start threads
-                    barrier.countDown();
+                        // start threads
+                        long startTime = System.nanoTime();
+                        barrier.countDown();
 
-                    // wait for all threads to finish
-                    stopLatch.await();
+                        // wait for all threads to finish
+                        stopLatch.await();
+                        long wallTime = System.nanoTime() - startTime;
 
-                    Log.logi("All test threads finished, avg query time = "
-                             + (double) (totalTime.get()) / (threadCount * queryCount));
+                        // queries are lock-free, so throughput should grow with threadCount
+                        // until the disk or the page cache is saturated
+                        Log.logi("All test threads finished, avg query time = "
+                                 + (double) (totalTime.get()) / (threadCount * queryCount)
+                                 + "ms, throughput = "
+                                 + (long) (threadCount * queryCount * 1e9 / wallTime)
+                                 + " queries/s");
+                    }
                 }
             }
         } catch (Exception e) {
@@ -1,8 +1,13 @@
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class HashFuncTest {
 
@@ -17,4 +22,90 @@ public class HashFuncTest {
             assertEquals(hasher.hash(arr), hasher.hash(arr));
         }
     }
+
+    @Test
+    void hashFuncCapacity() {
+        assertEquals(256, new HashFunc(1, 256).capacity);
+        assertEquals(4096, new HashFunc(2000, 256).capacity);
+        assertThrows(IllegalArgumentException.class, () -> new HashFunc(1, 3));
+        assertEquals(2, new HashFunc(0, 1).capacity);
+
+        assertEquals(1024, new HashFunc(1000, 1, HashAlgorithm.XXH64, 0, 1).capacity);
+        assertEquals(2048, new HashFunc(1000, 1, HashAlgorithm.XXH64, 0, 0.5).capacity);
+        assertEquals(2048, new HashFunc(1000, 1, HashAlgorithm.XXH64, 0, 0.75).capacity);
+        assertEquals(4096, new HashFunc(1000, 1, HashAlgorithm.XXH64, 0, 0.25).capacity);
+        assertEquals(8192, new HashFunc(1000, 8192, HashAlgorithm.XXH64, 0, 0.25).capacity);
+        assertThrows(IllegalArgumentException.class,
+                     () -> new HashFunc(1, 1, HashAlgorithm.XXH64, 0, 0));
+        assertThrows(IllegalArgumentException.class,
+                     () -> new HashFunc(1, 1, HashAlgorithm.XXH64, 0, 1.5));
+
+        HashFunc hasher = new HashFunc(2000);
+        byte[] key = "key".getBytes();
+        assertEquals(hasher.hash(key), hasher.mask(hasher.hash64(key)));
+    }
+
+    @Test
+    void xxHash64Vectors() {
+        // reference values of XXH64 with seed 0
+        assertEquals(0xEF46DB3751D8E999L, HashAlgorithm.XXH64.hash64(new byte[0], 0));
+        assertEquals(0xD24EC4F1A98C6E5BL, HashAlgorithm.XXH64.hash64(bytes("a"), 0));
+        assertEquals(0x44BC2CF5AD770999L, HashAlgorithm.XXH64.hash64(bytes("abc"), 0));
+    }
+
+    @Test
+    void hashBufferEqualsArray() {
+        Random random = new Random(7);
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            assertEquals(algorithm, HashAlgorithm.of(algorithm.id));
+            for (int i = 0; i < 1000; i++) {
+                byte[] key = new byte[random.nextInt(100)];
+                random.nextBytes(key);
+                long seed = random.nextLong();
+
+                // the key at an unaligned offset, in buffers of both byte orders
+                ByteBuffer buf = ByteBuffer.allocate(key.length + 3);
+                buf.position(3);
+                buf.put(key);
+                long expected = algorithm.hash64(key, seed);
+                assertEquals(expected, algorithm.hash64(buf, 3, key.length, seed));
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                assertEquals(expected, algorithm.hash64(buf, 3, key.length, seed));
+            }
+        }
+    }
+
+    @Test
+    void hashDistribution() {
+        int n = 100000;
+        HashFunc hasher = new HashFunc(n);
+
+        // similar keys, which differ in a few bytes only
+        int[] files = new int[256];
+        int[] slots = new int[(int) hasher.capacity];
+        for (int i = 0; i < n; i++) {
+            long hashCode = hasher.hash(bytes("key-" + i));
+            files[(int) (hashCode & 0xff)]++;
+            slots[(int) hashCode]++;
+        }
+
+        // chi-square test of the file ids, 255 degrees of freedom
+        double expected = (double) n / files.length;
+        double chiSquare = 0;
+        for (int count : files) {
+            chiSquare += (count - expected) * (count - expected) / expected;
+        }
+        assertTrue(chiSquare < 400, "chi-square = " + chiSquare);
+
+        // length of the longest chain
+        int maxChain = 0;
+        for (int count : slots) {
+            maxChain = Math.max(maxChain, count);
+        }
+        assertTrue(maxChain <= 10, "max chain length = " + maxChain);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
 }
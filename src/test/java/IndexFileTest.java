@@ -0,0 +1,88 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IndexFileTest {
+
+    @Test
+    void testRegions() throws Exception {
+        File file = File.createTempFile("index", null);
+        file.deleteOnExit();
+        int shardBits = 2;
+        int[] lengths = {100, 0, IndexFile.PAGE_SIZE, 0};
+        try (IndexFile.Writer writer = new IndexFile.Writer(file, shardBits)) {
+            // the regions are allocated in any order
+            for (int shard : new int[]{2, 0, 1, 3}) {
+                long offset = writer.allocate(shard, lengths[shard]);
+                assertEquals(0, offset % IndexFile.PAGE_SIZE);
+                ByteBuffer content = ByteBuffer.allocate(lengths[shard]);
+                while (content.hasRemaining()) {
+                    content.put((byte) shard);
+                }
+                content.flip();
+                writer.channel().write(content, offset);
+            }
+            writer.finish();
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             IndexShard indexFile = new ChannelIndexShard(channel)) {
+            long[] regions = IndexFile.readDirectory(indexFile, shardBits);
+            for (int shard = 0; shard < lengths.length; shard++) {
+                assertEquals(lengths[shard], regions[2 * shard + 1]);
+                IndexShard region = new RegionIndexShard(indexFile, regions[2 * shard],
+                                                         regions[2 * shard + 1]);
+                assertEquals(lengths[shard], region.size());
+                ByteBuffer buf = ByteBuffer.allocate(lengths[shard]);
+                region.read(buf, 0);
+                for (byte b : buf.array()) {
+                    assertEquals(shard, b);
+                }
+                assertThrows(EOFException.class,
+                             () -> region.read(ByteBuffer.allocate(1), region.size()));
+            }
+
+            // another number of shard bits
+            assertThrows(IOException.class, () -> IndexFile.readDirectory(indexFile, 3));
+        }
+    }
+
+    @Test
+    void testEmptyRegions() throws Exception {
+        File file = File.createTempFile("index", null);
+        file.deleteOnExit();
+        try (IndexFile.Writer writer = new IndexFile.Writer(file, 4)) {
+            writer.allocate(0, 1);
+            writer.allocate(1, 0);
+            writer.finish();
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             IndexShard indexFile = new ChannelIndexShard(channel)) {
+            long[] regions = IndexFile.readDirectory(indexFile, 4);
+            assertEquals(IndexFile.directorySize(4), regions[0]);
+            assertEquals(1, regions[1]);
+            assertEquals(0, regions[3]);
+            assertEquals(0, regions[31]);
+        }
+    }
+
+    @Test
+    void testInvalidFile() throws Exception {
+        File file = File.createTempFile("index", null);
+        file.deleteOnExit();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(IndexFile.PAGE_SIZE), 0);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             IndexShard indexFile = new ChannelIndexShard(channel)) {
+            assertThrows(IOException.class, () -> IndexFile.readDirectory(indexFile, 0));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IndexHeaderTest {
+
+    @Test
+    void testWriteRead() throws Exception {
+        File file = File.createTempFile("header", null);
+        file.deleteOnExit();
+        long[] hashes = new long[1000];
+        Random random = new Random(3);
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+        PerfectHash[] perfectHashes = {PerfectHash.build(hashes, 1000),
+                                       PerfectHash.build(hashes, 0)};
+        BloomFilter[] filters = {BloomFilter.build(hashes, 1000, 10),
+                                 BloomFilter.build(hashes, 0, 10)};
+        new IndexHeader(HashAlgorithm.XXH64, 42, 1 << 12, 1, 1000, IndexLayout.PERFECT_HASH,
+                        new SlotFormat(10, 20, 12, 0, 16, 40),
+                        123, 456, 789, perfectHashes, 10, filters).write(file);
+
+        IndexHeader header = IndexHeader.read(file);
+        assertEquals(HashAlgorithm.XXH64, header.hashAlgorithm);
+        assertEquals(42, header.seed);
+        assertEquals(1 << 12, header.capacity);
+        assertEquals(1, header.f);
+        assertEquals(1000, header.N);
+        assertEquals(IndexLayout.PERFECT_HASH, header.layout);
+        assertEquals(10, header.slotFormat.keySizeBits);
+        assertEquals(20, header.slotFormat.addressBits);
+        assertEquals(12, header.slotFormat.valueSizeBits);
+        assertEquals(0, header.slotFormat.nextSlotIdBits);
+        assertEquals(16, header.slotFormat.fingerprintBits);
+        assertEquals(40, header.slotFormat.inlineBytes);
+        assertEquals(48, header.slotFormat.slotSize);
+        assertEquals(123, header.dataSize);
+        assertEquals(456, header.dataModifiedTime);
+        assertEquals(789, header.dataChecksum);
+        assertEquals(1000, header.perfectHashes[0].size());
+        assertEquals(0, header.perfectHashes[1].size());
+        for (long hash : hashes) {
+            assertEquals(perfectHashes[0].lookup(hash), header.perfectHashes[0].lookup(hash));
+            assertTrue(header.filters[0].mightContain(hash));
+        }
+        assertEquals(10, header.filterBitsPerKey);
+        assertEquals(filters[0].memoryBytes(), header.filters[0].memoryBytes());
+        assertEquals(0, header.filters[1].memoryBytes());
+
+        // corrupted, truncated
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(30);
+            int b = out.read();
+            out.seek(30);
+            out.write(b ^ 1);
+        }
+        assertThrows(IOException.class, () -> IndexHeader.read(file));
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(4);
+        }
+        assertThrows(IOException.class, () -> IndexHeader.read(file));
+    }
+
+    @Test
+    void testMatches() throws Exception {
+        File data = File.createTempFile("data", null);
+        data.deleteOnExit();
+        byte[] content = new byte[100000];
+        new Random(4).nextBytes(content);
+        Files.write(data.toPath(), content);
+        IndexHeader header = new IndexHeader(HashAlgorithm.XXH64, 0, 2, 8, 0, IndexLayout.CHAINED,
+                                             new SlotFormat(0), data.length(), data.lastModified(),
+                                             IndexHeader.checksum(data), null, 0, null);
+        assertTrue(header.matches(data));
+
+        // the same size and modified time, another sampled byte
+        long modified = data.lastModified();
+        content[content.length - 1] ^= 1;
+        Files.write(data.toPath(), content);
+        assertTrue(data.setLastModified(modified));
+        assertFalse(header.matches(data));
+
+        // an empty file
+        Files.write(data.toPath(), new byte[0]);
+        assertEquals(IndexHeader.checksum(data), IndexHeader.checksum(data));
+        assertFalse(header.matches(data));
+    }
+}
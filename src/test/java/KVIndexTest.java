@@ -2,10 +2,20 @@ import org.apache.commons.lang3.ArrayUtils;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.*;
+import java.util.concurrent.*;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -82,6 +92,48 @@ public class KVIndexTest {
         }
     }
 
+    /**
+     * Writes n small records to the file, with distinct keys of 8 to 15 bytes and values of
+     * less than 100 bytes, and adds their keys and values to the lists.
+     *
+     * @return The bytes written
+     */
+    static byte[] makeSmallData(String filename, int n, long seed,
+                                List<byte[]> keys, List<byte[]> values) throws IOException {
+        Random random = new Random(seed);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < n; i++) {
+            byte[] key = new byte[8 + random.nextInt(8)];
+            random.nextBytes(key);
+            ByteBuffer.wrap(key).putInt(i);
+            byte[] value = new byte[random.nextInt(100)];
+            random.nextBytes(value);
+            keys.add(key);
+            values.add(value);
+            data.write(ByteBuffer.allocate(2).putShort((short) key.length).array());
+            data.write(key);
+            data.write(ByteBuffer.allocate(2).putShort((short) value.length).array());
+            data.write(value);
+        }
+        byte[] bytes = data.toByteArray();
+        try (FileOutputStream out = new FileOutputStream(filename)) {
+            out.write(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Deletes the data files, and the index built at the default index path.
+     */
+    static void deleteData(String... filenames) {
+        for (String name : filenames) {
+            new File(name).delete();
+        }
+        KVIndex index = new KVIndex();
+        index.getIndexFile().delete();
+        index.getHeaderFile().delete();
+    }
+
     @Test
     void testCountEntry() {
         String filename = "data" + File.separator + "data";
@@ -95,16 +147,17 @@ public class KVIndexTest {
     }
 
     @Test
-    void testCreateIndexFile() {
+    void testCreateIndexFile() throws Exception {
         long N = 2000;
         index.hasher = new HashFunc(N);
         index.calculateMask();
-        index.createIndexFile();
-        for (int i = 0; i < (1 << index.f); i++) {
-            File file = new File(index.indexPath + File.separator + "index" + i);
-            assertTrue(file.exists());
-            assertEquals(file.length(), (index.hasher.capacity >> index.f) * index.slotSize);
+        try (IndexFile.Writer writer = index.createIndexFile()) {
+            writer.finish();
         }
+        File file = index.getIndexFile();
+        assertTrue(file.exists());
+        assertFalse(index.getHeaderFile().exists());
+        assertEquals(IndexFile.directorySize(index.f), file.length());
     }
 
     @Test
@@ -116,6 +169,18 @@ public class KVIndexTest {
         }
     }
 
+    @Test
+    void testCountDuringInitialization() throws Exception {
+        index.initialize(filename);
+        try {
+            assertEquals(N, index.N);
+            assertEquals(N, index.hasher.N);
+            assertTrue(index.hasher.capacity >= (1 << index.f));
+        } finally {
+            index.close();
+        }
+    }
+
     @Test
     void testCorrectness() {
         try {
@@ -146,4 +211,963 @@ public class KVIndexTest {
             e.printStackTrace();
         }
     }
+
+    @Test
+    void testConcurrentCorrectness() throws Exception {
+        index.initialize(filename);
+
+        int threadCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threadCount; t++) {
+                final int offset = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = offset; i < keys.size(); i += threadCount) {
+                        assertArrayEquals(values.get(i), index.get(keys.get(i)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            index.close();
+        }
+    }
+
+    @Test
+    void testMmapCorrectness() throws Exception {
+        KVIndex index = new KVIndex();
+        index.setMmapIndex(true);
+        index.initialize(filename);
+        try {
+            assertTrue(index.indexFile instanceof MappedIndexShard);
+            assertAllQueries(index);
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    void testIndexMemoryLimit() throws Exception {
+        // the index files fit in the limit
+        KVIndex index = new KVIndex();
+        index.setIndexMemoryLimit(Long.MAX_VALUE);
+        index.initialize(filename);
+        try {
+            assertTrue(index.indexFile instanceof MemoryIndexShard);
+            assertAllQueries(index);
+        } finally {
+            index.close();
+        }
+
+        // falls back to the index files on disk
+        index.setIndexMemoryLimit(1);
+        index.setMmapIndex(true);
+        index.initialize(filename);
+        try {
+            assertTrue(index.indexFile instanceof MappedIndexShard);
+            assertAllQueries(index);
+        } finally {
+            index.close();
+        }
+        assertThrows(IllegalArgumentException.class, () -> index.setIndexMemoryLimit(-1));
+    }
+
+    @Test
+    void testValueCache() throws Exception {
+        KVIndex index = new KVIndex();
+        assertNull(index.getCacheStats());
+        index.setValueCacheBytes(64L << 20);
+        index.initialize(filename);
+        try {
+            assertAllQueries(index);
+            CacheStats stats = index.getCacheStats();
+            assertEquals(keys.size() + 1, stats.hitCount() + stats.missCount());
+
+            // hot keys, each entry takes about 8 KB
+            int hot = Math.min(keys.size(), 100);
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < hot; i++) {
+                    assertArrayEquals(values.get(i), index.get(keys.get(i)));
+                }
+            }
+            assertTrue(index.getCacheStats().hitCount() - stats.hitCount() >= 2 * hot);
+            assertTrue(index.getCacheStats().bytes() <= 64L << 20);
+        } finally {
+            index.close();
+        }
+        assertThrows(IllegalArgumentException.class, () -> index.setValueCacheBytes(-1));
+    }
+
+    @Test
+    void testBlockCache() throws Exception {
+        KVIndex index = new KVIndex();
+        index.setBlockCacheBytes(1L << 20);
+        index.initialize(filename);
+        try {
+            assertTrue(index.indexFile instanceof CachedIndexShard);
+            assertAllQueries(index);
+            CacheStats stats = index.getBlockCacheStats();
+            assertTrue(stats.missCount() > 0);
+            assertTrue(stats.bytes() <= 1L << 20);
+        } finally {
+            index.close();
+        }
+        assertNull(index.getBlockCacheStats());
+        assertThrows(IllegalArgumentException.class, () -> index.setBlockCacheBytes(-1));
+    }
+
+    @Test
+    void testMultiGet() throws Exception {
+        for (IndexLayout layout : new IndexLayout[]{IndexLayout.CHAINED, IndexLayout.PAGE_BUCKETS,
+                                                    IndexLayout.PERFECT_HASH}) {
+            KVIndex index = new KVIndex();
+            index.setIndexLayout(layout);
+            index.setValueCacheBytes(1L << 20);
+            index.initialize(filename);
+            try {
+                // batches of a few hundred keys, like the requests of a server
+                List<byte[]> shuffled = new ArrayList<>(keys);
+                Collections.shuffle(shuffled, new Random(1));
+                for (int from = 0; from < shuffled.size(); from += 300) {
+                    List<byte[]> batch = new ArrayList<>(
+                            shuffled.subList(from, Math.min(from + 300, shuffled.size())));
+                    batch.add(new byte[Record.MAX_KEY_SIZE]);
+                    for (boolean parallel : new boolean[]{false, true}) {
+                        List<byte[]> values = index.multiGet(batch, parallel);
+                        List<ByteBuffer> buffers = new ArrayList<>();
+                        for (byte[] key : batch) {
+                            buffers.add(ByteBuffer.wrap(key));
+                        }
+                        List<ByteBuffer> bufferValues = index.multiGetBuffers(buffers, parallel);
+                        assertEquals(batch.size(), values.size());
+                        for (int i = 0; i < batch.size(); i++) {
+                            byte[] expected = index.get(batch.get(i));
+                            assertArrayEquals(expected, values.get(i));
+                            if (expected == null)
+                                assertNull(bufferValues.get(i));
+                            else
+                                assertEquals(ByteBuffer.wrap(expected), bufferValues.get(i));
+                        }
+                    }
+                }
+            } finally {
+                index.close();
+            }
+        }
+        assertThrows(UninitializedException.class,
+                     () -> index.multiGet(Collections.singletonList(new byte[1])));
+
+        // the walks continue after the candidates of other keys, so a batch reads the same
+        // slots as the queries one by one, and at most one bucket again per query
+        for (IndexLayout layout : new IndexLayout[]{IndexLayout.CHAINED,
+                                                    IndexLayout.CACHE_LINE_BUCKETS}) {
+            KVIndex counted = new KVIndex();
+            counted.setIndexLayout(layout);
+            counted.initialize(filename);
+            try {
+                List<byte[]> batch = keys.subList(0, Math.min(300, keys.size()));
+                for (byte[] key : batch) {
+                    counted.get(key);
+                }
+                long reads = counted.getMetrics().indexReadCount();
+                counted.multiGet(batch);
+                long batchReads = counted.getMetrics().indexReadCount() - reads;
+                if (layout == IndexLayout.CHAINED)
+                    assertEquals(reads, batchReads);
+                else
+                    assertTrue(batchReads <= reads + batch.size(), batchReads + " > " + reads);
+            } finally {
+                counted.close();
+            }
+        }
+    }
+
+    @Test
+    void testGetAsync() throws Exception {
+        for (IndexLayout layout : new IndexLayout[]{IndexLayout.CHAINED, IndexLayout.PAGE_BUCKETS,
+                                                    IndexLayout.PERFECT_HASH}) {
+            KVIndex index = new KVIndex();
+            index.setIndexLayout(layout);
+            index.setMaxInFlightReads(4);
+            index.initialize(filename);
+            try {
+                List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+                for (byte[] key : keys) {
+                    futures.add(index.getAsync(key));
+                }
+                for (int i = 0; i < keys.size(); i++) {
+                    assertArrayEquals(values.get(i), futures.get(i).get());
+                }
+
+                // the walks continue after the candidates of other keys like get(),
+                // reading at most the bucket of the candidate again
+                long asyncReads = index.getMetrics().indexReadCount();
+                for (byte[] key : keys) {
+                    index.get(key);
+                }
+                long reads = index.getMetrics().indexReadCount() - asyncReads;
+                if (layout == IndexLayout.PAGE_BUCKETS)
+                    assertTrue(asyncReads <= reads + keys.size());
+                else
+                    assertEquals(reads, asyncReads);
+                assertNull(index.getAsync(new byte[Record.MAX_KEY_SIZE]).get());
+            } finally {
+                index.close();
+            }
+        }
+
+        // a failed query is an error, not a miss
+        KVIndex failing = new KVIndex();
+        failing.initialize(filename);
+        try {
+            failing.dataChannel.close();
+            ExecutionException e = assertThrows(ExecutionException.class,
+                                                () -> failing.getAsync(keys.get(0)).get());
+            assertTrue(e.getCause() instanceof IOException, e.toString());
+            MetricsSnapshot metrics = failing.getMetrics();
+            assertEquals(1, metrics.errorCount());
+            assertEquals(0, metrics.missCount());
+            assertEquals(0, metrics.getAsyncLatency().count());
+        } finally {
+            failing.close();
+        }
+        assertThrows(UninitializedException.class, () -> index.getAsync(new byte[1]));
+        assertThrows(IllegalArgumentException.class, () -> index.setMaxInFlightReads(0));
+    }
+
+    @Test
+    void testZeroCopy() throws Exception {
+        for (long valueCacheBytes : new long[]{0, 1L << 20}) {
+            KVIndex index = new KVIndex();
+            index.setValueCacheBytes(valueCacheBytes);
+            index.initialize(filename);
+            try {
+                ByteBuffer dst = ByteBuffer.allocateDirect(Record.MAX_VALUE_SIZE);
+                for (int round = 0; round < 2; round++) {
+                    for (int i = 0; i < keys.size(); i++) {
+                        dst.clear();
+                        assertEquals(values.get(i).length, index.getInto(keys.get(i), dst));
+                        dst.flip();
+                        assertEquals(ByteBuffer.wrap(values.get(i)), dst);
+
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        assertEquals(values.get(i).length,
+                                     index.transferValueTo(keys.get(i), Channels.newChannel(out)));
+                        assertArrayEquals(values.get(i), out.toByteArray());
+                    }
+                }
+
+                byte[] absent = new byte[Record.MAX_KEY_SIZE];
+                dst.clear();
+                assertEquals(-1, index.getInto(absent, dst));
+                assertEquals(0, dst.position());
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                assertEquals(-1, index.transferValueTo(absent, Channels.newChannel(out)));
+                assertEquals(0, out.size());
+
+                ByteBuffer small = ByteBuffer.allocate(values.get(0).length - 1);
+                assertThrows(BufferOverflowException.class,
+                             () -> index.getInto(keys.get(0), small));
+                assertEquals(0, small.position());
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    @Test
+    void testOpen() throws Exception {
+        for (IndexLayout layout : new IndexLayout[]{IndexLayout.CHAINED, IndexLayout.PAGE_BUCKETS,
+                                                    IndexLayout.PERFECT_HASH}) {
+            KVIndex index = new KVIndex();
+            index.setIndexLayout(layout);
+            index.initialize(filename);
+            index.close();
+
+            // the index files are reused
+            KVIndex reopened = new KVIndex();
+            reopened.setIndexLayout(layout);
+            assertTrue(reopened.open(filename));
+            try {
+                assertEquals(N, reopened.N);
+                assertEquals(index.slotSize, reopened.slotSize);
+                assertAllQueries(reopened);
+            } finally {
+                reopened.close();
+            }
+        }
+
+        // other settings
+        KVIndex index = new KVIndex();
+        index.setKeyFingerprintBits(8);
+        assertFalse(index.open(filename));
+        try {
+            assertAllQueries(index);
+        } finally {
+            index.close();
+        }
+
+        // a corrupted header
+        try (RandomAccessFile header = new RandomAccessFile(index.getHeaderFile(), "rw")) {
+            header.seek(20);
+            int b = header.read();
+            header.seek(20);
+            header.write(b ^ 1);
+        }
+        index = new KVIndex();
+        index.setKeyFingerprintBits(8);
+        assertFalse(index.open(filename));
+        index.close();
+        assertTrue(index.open(filename));
+        try {
+            assertAllQueries(index);
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    void testShardBits() throws Exception {
+        for (int bits : new int[]{0, 4, 12}) {
+            for (IndexLayout layout : new IndexLayout[]{IndexLayout.CHAINED,
+                                                        IndexLayout.PERFECT_HASH}) {
+                KVIndex index = new KVIndex();
+                index.setShardBits(bits);
+                index.setIndexLayout(layout);
+                index.setMmapIndex(bits == 4);
+                index.initialize(filename);
+                try {
+                    assertEquals(bits, index.f);
+                    assertEquals(1 << bits, index.shards.length);
+                    assertAllQueries(index);
+                } finally {
+                    index.close();
+                }
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> index.setShardBits(-1));
+        assertThrows(IllegalArgumentException.class,
+                     () -> index.setShardBits(IndexFile.MAX_SHARD_BITS + 1));
+    }
+
+    @Test
+    void testBuildThreads() throws Exception {
+        for (int threads : new int[]{1, 3}) {
+            KVIndex index = new KVIndex();
+            index.setBuildThreads(threads);
+            index.initialize(filename);
+            try {
+                assertAllQueries(index);
+            } finally {
+                index.close();
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> index.setBuildThreads(0));
+    }
+
+    @Test
+    void testHashAlgorithms() throws Exception {
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            KVIndex index = new KVIndex();
+            index.setHashAlgorithm(algorithm);
+            index.initialize(filename);
+            try {
+                assertEquals(algorithm, index.hasher.algorithm);
+                assertAllQueries(index);
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    @Test
+    void testKeyFingerprints() throws Exception {
+        for (int bits : new int[]{8, 16}) {
+            KVIndex index = new KVIndex();
+            index.setKeyFingerprintBits(bits);
+            index.initialize(filename);
+            try {
+                // the fields are sized to the keys and values of 4096 bytes
+                SlotFormat format = index.slotFormat;
+                assertEquals(13, format.keySizeBits);
+                assertEquals(13, format.valueSizeBits);
+                assertEquals(SlotFormat.bitsOf((N - 1) * (4 + 2 * 4096)), format.addressBits);
+                assertEquals(bits, format.fingerprintBits);
+                assertTrue(index.slotSize < 13 + bits / 8);
+                assertAllQueries(index);
+            } finally {
+                index.close();
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> index.setKeyFingerprintBits(4));
+    }
+
+    @Test
+    void testIndexLayouts() throws Exception {
+        for (IndexLayout layout : IndexLayout.values()) {
+            for (int bits : new int[]{0, 16}) {
+                KVIndex index = new KVIndex();
+                index.setIndexLayout(layout);
+                index.setKeyFingerprintBits(bits);
+                index.initialize(filename);
+                try {
+                    assertEquals(layout.bucketSize > 0, index.bucketFormat != null);
+                    assertAllQueries(index);
+                } finally {
+                    index.close();
+                }
+            }
+        }
+        assertThrows(NullPointerException.class, () -> index.setIndexLayout(null));
+    }
+
+    @Test
+    void testPerfectHash() throws Exception {
+        KVIndex index = new KVIndex();
+        index.setIndexLayout(IndexLayout.PERFECT_HASH);
+        index.initialize(filename);
+        try {
+            // a dense array of N slots
+            long size = 0;
+            for (IndexShard shard : index.shards) {
+                size += shard.size();
+            }
+            assertEquals(N * index.slotSize, size);
+            assertAllQueries(index);
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    void testFilters() throws Exception {
+        for (IndexLayout layout : new IndexLayout[]{IndexLayout.CHAINED,
+                                                    IndexLayout.PERFECT_HASH}) {
+            KVIndex index = new KVIndex();
+            index.setIndexLayout(layout);
+            index.setFilterBitsPerKey(10);
+            index.initialize(filename);
+            try {
+                assertAllQueries(index);
+                assertEquals(1, index.getFilterStats().negativeCount()
+                                + index.getFilterStats().falsePositiveCount());
+
+                // absent keys of the same size as the keys
+                Random random = new Random(9);
+                List<byte[]> absent = new ArrayList<>();
+                for (int i = 0; i < 2000; i++) {
+                    byte[] key = new byte[Record.MAX_KEY_SIZE];
+                    random.nextBytes(key);
+                    absent.add(key);
+                    assertNull(index.get(key));
+                    assertNull(index.getAsync(key).get());
+                }
+                for (byte[] value : index.multiGet(absent)) {
+                    assertNull(value);
+                }
+                FilterStats stats = index.getFilterStats();
+                assertEquals(3 * 2000 + 1, stats.negativeCount() + stats.falsePositiveCount());
+                assertTrue(stats.falsePositiveRate() < 0.05, stats.toString());
+                assertTrue(stats.expectedFalsePositiveRate() < 0.02, stats.toString());
+                assertTrue(stats.bytes() > 0);
+            } finally {
+                index.close();
+            }
+
+            // the filters are reused
+            KVIndex reopened = new KVIndex();
+            reopened.setIndexLayout(layout);
+            reopened.setFilterBitsPerKey(10);
+            assertTrue(reopened.open(filename));
+            try {
+                assertEquals(0, reopened.getFilterStats().negativeCount());
+                assertAllQueries(reopened);
+            } finally {
+                reopened.close();
+            }
+        }
+        assertNull(index.getFilterStats());
+        assertThrows(IllegalArgumentException.class, () -> index.setFilterBitsPerKey(33));
+    }
+
+    @Test
+    void testInline() throws Exception {
+        // records below and above the inline threshold
+        String smallFilename = "data" + File.separator + "small";
+        List<byte[]> smallKeys = new ArrayList<>();
+        List<byte[]> smallValues = new ArrayList<>();
+        byte[] bytes = makeSmallData(smallFilename, 20000, 10, smallKeys, smallValues);
+
+        try {
+            for (IndexLayout layout : new IndexLayout[]{IndexLayout.CHAINED,
+                                                        IndexLayout.CACHE_LINE_BUCKETS,
+                                                        IndexLayout.PERFECT_HASH}) {
+                try (FileOutputStream out = new FileOutputStream(smallFilename)) {
+                    out.write(bytes);
+                }
+                KVIndex index = new KVIndex();
+                index.setIndexLayout(layout);
+                index.setInlineThreshold(48);
+                index.setBuildMemoryBudget(1000 * IndexBuilder.ShardPartition.ENTRY_BYTES);
+                index.initialize(smallFilename);
+                try {
+                    int inlineBytes = index.slotFormat.inlineBytes;
+                    if (layout == IndexLayout.CACHE_LINE_BUCKETS) {
+                        // lowered to fit 2 slots in a bucket
+                        assertTrue(inlineBytes > 0 && inlineBytes < 48);
+                        assertTrue(index.bucketFormat.slotsPerBucket >= 2);
+                    } else {
+                        assertEquals(48, inlineBytes);
+                    }
+
+                    // the inline values are read from the slots, not from the changed data file
+                    try (RandomAccessFile file = new RandomAccessFile(smallFilename, "rw")) {
+                        long address = 0;
+                        for (int i = 0; i < smallKeys.size(); i++) {
+                            int keyLength = smallKeys.get(i).length;
+                            int valueLength = smallValues.get(i).length;
+                            file.seek(address + 2 + keyLength + 2);
+                            file.write(new byte[valueLength]);
+                            address += 2 + keyLength + 2 + valueLength;
+                        }
+                    }
+                    ByteBuffer dst = ByteBuffer.allocate(Record.MAX_VALUE_SIZE);
+                    ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+                    List<byte[]> multiValues = index.multiGet(smallKeys);
+                    for (int i = 0; i < smallKeys.size(); i++) {
+                        byte[] key = smallKeys.get(i);
+                        byte[] value = smallValues.get(i);
+                        byte[] expected = key.length + value.length <= inlineBytes
+                                          ? value : new byte[value.length];
+                        assertArrayEquals(expected, index.get(key));
+                        assertArrayEquals(expected, index.getAsync(key).get());
+                        assertArrayEquals(expected, multiValues.get(i));
+
+                        dst.clear();
+                        assertEquals(value.length, index.getInto(key, dst));
+                        assertArrayEquals(expected, Arrays.copyOf(dst.array(), dst.position()));
+
+                        transferred.reset();
+                        assertEquals(value.length,
+                                     index.transferValueTo(key, Channels.newChannel(transferred)));
+                        assertArrayEquals(expected, transferred.toByteArray());
+                    }
+                    assertNull(index.get(new byte[4]));
+                } finally {
+                    index.close();
+                }
+            }
+        } finally {
+            deleteData(smallFilename);
+        }
+
+        assertThrows(IllegalArgumentException.class,
+                     () -> index.setInlineThreshold(SlotFormat.MAX_INLINE_BYTES + 1));
+    }
+
+    @Test
+    void testCluster() throws Exception {
+        // about 1.2 MB of records, so the clustered addresses stay below 2^21 like the old ones
+        String smallFilename = "data" + File.separator + "small";
+        String clusteredFilename = "data" + File.separator + "clustered";
+        List<byte[]> smallKeys = new ArrayList<>();
+        List<byte[]> smallValues = new ArrayList<>();
+        byte[] bytes = makeSmallData(smallFilename, 20000, 11, smallKeys, smallValues);
+        assertTrue(bytes.length > 1 << 20 && bytes.length < 1 << 21);
+
+        try {
+            for (IndexLayout layout : IndexLayout.values()) {
+                try (FileOutputStream out = new FileOutputStream(smallFilename)) {
+                    out.write(bytes);
+                }
+                KVIndex index = new KVIndex();
+                index.setIndexLayout(layout);
+                index.setFilterBitsPerKey(8);
+                index.initialize(smallFilename);
+                assertTrue(new DataClusterer(index).cluster(new File(clusteredFilename)));
+                index.close();
+
+                // the records are moved, and the patched index is opened without the old data
+                assertTrue(new File(smallFilename).delete());
+                assertEquals(bytes.length, new File(clusteredFilename).length());
+                KVIndex reopened = new KVIndex();
+                reopened.setIndexLayout(layout);
+                reopened.setFilterBitsPerKey(8);
+                assertTrue(reopened.open(clusteredFilename));
+                try {
+                    assertClustered(reopened, bytes.length);
+                    List<byte[]> multiValues = reopened.multiGet(smallKeys);
+                    for (int i = 0; i < smallKeys.size(); i++) {
+                        assertArrayEquals(smallValues.get(i), reopened.get(smallKeys.get(i)));
+                        assertArrayEquals(smallValues.get(i), multiValues.get(i));
+                    }
+                    assertNull(reopened.get(new byte[4]));
+                } finally {
+                    reopened.close();
+                }
+            }
+
+            // clustered again through the public entry
+            KVIndex index = new KVIndex();
+            assertThrows(UninitializedException.class, () -> index.clusterData(smallFilename));
+            index.initialize(clusteredFilename);
+            try {
+                assertThrows(IllegalArgumentException.class,
+                             () -> index.clusterData(clusteredFilename));
+                index.clusterData(smallFilename);
+                for (int i = 0; i < smallKeys.size(); i++) {
+                    assertArrayEquals(smallValues.get(i), index.get(smallKeys.get(i)));
+                }
+            } finally {
+                index.close();
+            }
+
+            // a failed rewrite leaves the index and its header on the original data
+            KVIndex failing = new KVIndex();
+            failing.initialize(clusteredFilename);
+            File patchedFile = new DataClusterer(failing).getPatchedIndexFile();
+            File blocker = new File(patchedFile, "blocker");
+            try {
+                String unwritableFilename = "data" + File.separator + "missing"
+                                            + File.separator + "clustered";
+                assertThrows(IOException.class, () -> failing.clusterData(unwritableFilename));
+                assertFalse(patchedFile.exists());
+
+                // the copy of the index file cannot be written
+                assertTrue(patchedFile.mkdir() && blocker.createNewFile());
+                assertThrows(IOException.class, () -> failing.clusterData(smallFilename));
+                for (int i = 0; i < smallKeys.size(); i++) {
+                    assertArrayEquals(smallValues.get(i), failing.get(smallKeys.get(i)));
+                }
+            } finally {
+                failing.close();
+                blocker.delete();
+                patchedFile.delete();
+            }
+            assertTrue(failing.open(clusteredFilename));
+            failing.close();
+        } finally {
+            deleteData(smallFilename, clusteredFilename);
+        }
+    }
+
+    /**
+     * Checks that the records are in the data file in index order: the addresses met walking
+     * the index files follow each other, so a chain or a bucket is a contiguous run of records,
+     * and the short runs mostly lie in a page.
+     */
+    private static void assertClustered(KVIndex index, long dataLength) throws IOException {
+        SlotFormat slotFormat = index.slotFormat;
+        int slotSize = slotFormat.slotSize;
+        long position = 0;
+        int runs = 0;               // runs of two records or more, and at most 512 bytes
+        int runsInPage = 0;
+        for (IndexShard shard : index.shards) {
+            ByteBuffer region = ByteBuffer.allocate((int) shard.size());
+            shard.read(region, 0);
+            region.clear();
+            List<List<Integer>> groups = new ArrayList<>();
+            if (index.perfectHashes != null) {
+                for (int offset = 0; offset + slotSize <= region.capacity(); offset += slotSize) {
+                    groups.add(Collections.singletonList(offset));
+                }
+            } else if (index.bucketFormat != null) {
+                BucketFormat bucketFormat = index.bucketFormat;
+                int bucketSize = bucketFormat.bucketSize;
+                for (int bucket = 0; bucket + bucketSize <= region.capacity();
+                     bucket += bucketSize) {
+                    region.limit(bucket + bucketSize).position(bucket);
+                    int count = bucketFormat.count(region.slice());
+                    region.clear();
+                    List<Integer> group = new ArrayList<>();
+                    for (int i = 0; i < count; i++) {
+                        group.add(bucket + bucketFormat.slotOffset(i));
+                    }
+                    groups.add(group);
+                }
+            } else {
+                long tableSlots = Math.min(index.slotsPerFile(), region.capacity() / slotSize);
+                for (int slot = 0; slot < tableSlots; slot++) {
+                    int offset = slot * slotSize;
+                    if (slotFormat.keySize(region, offset) == 0)
+                        continue;
+                    List<Integer> group = new ArrayList<>();
+                    while (true) {
+                        group.add(offset);
+                        int next = slotFormat.nextSlotId(region, offset);
+                        if (next == 0)
+                            break;
+                        offset = next * slotSize;
+                    }
+                    groups.add(group);
+                }
+            }
+
+            for (List<Integer> group : groups) {
+                long start = position;
+                for (int offset : group) {
+                    assertEquals(position, slotFormat.address(region, offset));
+                    position += 2 + (slotFormat.keySize(region, offset) & 0xffff)
+                                + 2 + (slotFormat.valueSize(region, offset) & 0xffff);
+                }
+                if (group.size() >= 2 && position - start <= 512) {
+                    runs++;
+                    if (start / 4096 == (position - 1) / 4096)
+                        runsInPage++;
+                }
+            }
+        }
+        assertEquals(dataLength, position);
+        // the chains hold colliding keys, while the runs of a page bucket are larger
+        if (index.perfectHashes == null && index.bucketFormat == null)
+            assertTrue(runs > 0);
+        assertTrue(runsInPage >= runs * 0.8, runsInPage + " of " + runs + " in a page");
+    }
+
+    @Test
+    void testIndexStats() throws Exception {
+        String statsFilename = "data" + File.separator + "stats";
+        List<byte[]> statsKeys = new ArrayList<>();
+        List<byte[]> statsValues = new ArrayList<>();
+        makeSmallData(statsFilename, 20000, 12, statsKeys, statsValues);
+
+        try {
+            // within the default limits, 20000 / 0.5 slots round up to 65536
+            KVIndex index = new KVIndex();
+            index.initialize(statsFilename);
+            IndexStats stats = index.getIndexStats();
+            index.close();
+            assertEquals(20000, stats.recordCount());
+            assertEquals(65536, stats.capacity());
+            assertEquals(0, stats.seed());
+            assertEquals(0, stats.rebuilds());
+            assertTrue(stats.meanChainLength() >= 1 && stats.meanChainLength() < 2,
+                       stats.toString());
+            assertTrue(stats.chainLengthPercentile(50) <= stats.chainLengthPercentile(99));
+            assertTrue(stats.chainLengthPercentile(99) <= stats.maxChainLength());
+            assertEquals(stats.maxChainLength(), stats.chainLengthPercentile(100));
+            assertEquals(20000, Arrays.stream(stats.shardSizes()).sum());
+            assertTrue(stats.minShardSize() <= stats.maxShardSize());
+            assertTrue(stats.shardSkew() >= 1);
+            assertThrows(IllegalArgumentException.class, () -> stats.chainLengthPercentile(101));
+            assertTrue(index.open(statsFilename));
+            assertNull(index.getIndexStats());
+            index.close();
+
+            // every chain of two exceeds the max, so the index is rebuilt with other seeds
+            index.setChainLengthLimits(1, 0, 2);
+            index.initialize(statsFilename);
+            IndexStats reseeded = index.getIndexStats();
+            MetricsSnapshot rebuilt = index.getMetrics();
+            index.close();
+            assertTrue(rebuilt.scanMillis() >= 0 && rebuilt.indexWriteMillis() >= 0);
+            assertTrue(rebuilt.scanMillis() + rebuilt.indexWriteMillis() <= rebuilt.buildMillis());
+            assertEquals(2, reseeded.rebuilds());
+            assertNotEquals(0, reseeded.seed());
+            assertEquals(65536, reseeded.capacity());
+            assertEquals(20000, reseeded.recordCount());
+
+            // a long tail doubles the capacity, which is kept by the next opens, and the rebuild
+            // reuses the spilled partitions instead of scanning the data file again
+            index.setChainLengthLimits(0, 1, 1);
+            index.setBuildMemoryBudget(1000 * IndexBuilder.ShardPartition.ENTRY_BYTES);
+            index.initialize(statsFilename);
+            IndexStats grown = index.getIndexStats();
+            index.close();
+            assertEquals(1, grown.rebuilds());
+            assertEquals(0, grown.seed());
+            assertEquals(131072, grown.capacity());
+            assertEquals(20000, grown.recordCount());
+            assertFalse(new File(index.indexPath, "spill").exists());
+            index.setChainLengthLimits(32, 8, 2);
+            index.setBuildMemoryBudget(256L << 20);
+            assertTrue(index.open(statsFilename));
+            try {
+                assertEquals(131072, index.hasher.capacity);
+                for (int i = 0; i < statsKeys.size(); i++) {
+                    assertArrayEquals(statsValues.get(i), index.get(statsKeys.get(i)));
+                }
+                assertNull(index.get(new byte[4]));
+            } finally {
+                index.close();
+            }
+
+            // a lower load factor needs a larger capacity than the index has
+            index.setLoadFactor(0.25);
+            assertTrue(index.open(statsFilename));
+            index.close();
+            index.setLoadFactor(0.1);
+            assertFalse(index.open(statsFilename));
+            assertEquals(262144, index.getIndexStats().capacity());
+            index.close();
+            assertThrows(IllegalArgumentException.class, () -> index.setLoadFactor(0));
+            assertThrows(IllegalArgumentException.class,
+                         () -> index.setChainLengthLimits(-1, 0, 0));
+
+            // other layouts, with a reseeded index
+            for (IndexLayout layout : new IndexLayout[]{IndexLayout.PAGE_BUCKETS,
+                                                        IndexLayout.PERFECT_HASH}) {
+                KVIndex other = new KVIndex();
+                other.setIndexLayout(layout);
+                other.setChainLengthLimits(1, 0, 1);
+                other.initialize(statsFilename);
+                try {
+                    IndexStats otherStats = other.getIndexStats();
+                    assertEquals(20000, otherStats.recordCount());
+                    if (layout == IndexLayout.PERFECT_HASH) {
+                        assertEquals(1, otherStats.maxChainLength());
+                        assertEquals(20000, otherStats.chainLengthCounts()[1]);
+                        assertEquals(0, otherStats.rebuilds());
+                    }
+                    for (int i = 0; i < statsKeys.size(); i++) {
+                        assertArrayEquals(statsValues.get(i), other.get(statsKeys.get(i)));
+                    }
+                } finally {
+                    other.close();
+                }
+            }
+        } finally {
+            deleteData(statsFilename);
+        }
+    }
+
+    @Test
+    void testReseedWeakHash() throws Exception {
+        // DJB hashes of 8-byte keys that differ above bit 40 only, a single chain with seed 0
+        String weakFilename = "data" + File.separator + "weak";
+        List<byte[]> weakKeys = new ArrayList<>();
+        try (FileOutputStream out = new FileOutputStream(weakFilename)) {
+            for (int i = 0; i < 2000; i++) {
+                byte[] key = new byte[8];
+                ByteBuffer.wrap(key).putLong((long) i << 40);
+                weakKeys.add(key);
+                out.write(ByteBuffer.allocate(2).putShort((short) key.length).array());
+                out.write(key);
+                out.write(ByteBuffer.allocate(2).putShort((short) 4).array());
+                out.write(ByteBuffer.allocate(4).putInt(i).array());
+            }
+        }
+
+        try {
+            KVIndex index = new KVIndex();
+            index.setHashAlgorithm(HashAlgorithm.DJB);
+            index.setChainLengthLimits(0, 0, 0);
+            index.initialize(weakFilename);
+            IndexStats unseeded = index.getIndexStats();
+            index.close();
+            assertEquals(2000, unseeded.maxChainLength());
+
+            // another seed spreads the keys
+            index.setChainLengthLimits(32, 0, 1);
+            index.initialize(weakFilename);
+            try {
+                IndexStats reseeded = index.getIndexStats();
+                assertEquals(1, reseeded.rebuilds());
+                assertNotEquals(0, reseeded.seed());
+                assertTrue(reseeded.maxChainLength() <= 32, reseeded.toString());
+                for (int i = 0; i < weakKeys.size(); i++) {
+                    assertArrayEquals(ByteBuffer.allocate(4).putInt(i).array(),
+                                      index.get(weakKeys.get(i)));
+                }
+            } finally {
+                index.close();
+            }
+        } finally {
+            deleteData(weakFilename);
+        }
+    }
+
+    @Test
+    void testMetrics() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("KVIndex:type=KVIndex,name=\"test\"");
+        for (IndexLayout layout : new IndexLayout[]{IndexLayout.CHAINED,
+                                                    IndexLayout.PAGE_BUCKETS}) {
+            KVIndex index = new KVIndex();
+            index.setIndexLayout(layout);
+            index.setMBeanName("test");
+            index.initialize(filename);
+            try {
+                MetricsSnapshot built = index.getMetrics();
+                assertTrue(built.scanMillis() >= 0);
+                assertTrue(built.indexWriteMillis() >= 0);
+                assertTrue(built.buildMillis() >= built.scanMillis());
+                assertEquals(0, built.hitCount() + built.missCount());
+
+                assertAllQueries(index);
+                assertNotNull(index.getAsync(keys.get(0)).get());
+                assertTrue(index.getInto(keys.get(0),
+                                         ByteBuffer.allocate(Record.MAX_VALUE_SIZE)) >= 0);
+                index.multiGet(Arrays.asList(keys.get(0), new byte[3]));
+
+                MetricsSnapshot metrics = index.getMetrics();
+                assertEquals(keys.size() + 1, metrics.getLatency().count());
+                assertEquals(1, metrics.getAsyncLatency().count());
+                assertEquals(1, metrics.getIntoLatency().count());
+                assertEquals(1, metrics.multiGetLatency().count());
+                assertEquals(keys.size() + 3, metrics.hitCount());
+                assertEquals(2, metrics.missCount());
+                // every query reads at least a slot or bucket, and every hit reads the data
+                assertTrue(metrics.indexReadsPerQuery() >= 1, metrics.toString());
+                assertTrue(metrics.dataReadCount() >= metrics.hitCount(), metrics.toString());
+                LatencySnapshot latency = metrics.getLatency();
+                assertTrue(latency.percentile(50) <= latency.percentile(99));
+                assertTrue(latency.percentile(99) <= latency.max());
+
+                // the MBean
+                assertEquals(metrics.hitCount(), server.getAttribute(name, "HitCount"));
+                assertEquals((long) keys.size() + 1, server.getAttribute(name, "GetCount"));
+                assertNotNull(server.getAttribute(name, "LatencyMicros"));
+            } finally {
+                index.close();
+            }
+            assertFalse(server.isRegistered(name));
+
+            // reused index files
+            KVIndex reopened = new KVIndex();
+            reopened.setIndexLayout(layout);
+            reopened.setMetricsEnabled(false);
+            assertTrue(reopened.open(filename));
+            try {
+                assertTrue(reopened.getMetrics().loadMillis() >= 0);
+                assertEquals(-1, reopened.getMetrics().buildMillis());
+                assertAllQueries(reopened);
+                assertEquals(0, reopened.getMetrics().getLatency().count());
+                assertEquals(0, reopened.getMetrics().indexReadCount());
+            } finally {
+                reopened.close();
+            }
+        }
+    }
+
+    @Test
+    void testBuildMemoryBudget() throws Exception {
+        // a tiny budget spills the partitions several times,
+        // and the index files are built a few at a time on many threads
+        KVIndex index = new KVIndex();
+        index.setBuildMemoryBudget(300 * IndexBuilder.ShardPartition.ENTRY_BYTES);
+        index.setBuildThreads(8);
+        index.initialize(filename);
+        try {
+            assertAllQueries(index);
+            assertFalse(new File(index.indexPath, "spill").exists());
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * Checks that every key gets its value, and an absent key gets null.
+     */
+    static void assertAllQueries(KVIndex index) throws Exception {
+        for (int i = 0; i < keys.size(); i++) {
+            assertArrayEquals(values.get(i), index.get(keys.get(i)));
+        }
+        assertNull(index.get(new byte[Record.MAX_KEY_SIZE]));
+    }
 }
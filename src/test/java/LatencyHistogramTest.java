@@ -0,0 +1,73 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    void testBuckets() {
+        Random random = new Random(8);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> 1 + random.nextInt(63);
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(bucket >= 0 && bucket < LatencyHistogram.BUCKETS);
+            long highest = LatencyHistogram.highestValueOf(bucket);
+            assertTrue(value <= highest);
+            assertTrue(highest - value <= value / 32, value + " in bucket up to " + highest);
+            if (bucket > 0)
+                assertTrue(value > LatencyHistogram.highestValueOf(bucket - 1));
+        }
+        assertEquals(63, LatencyHistogram.bucketOf(63));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueOf(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        LatencySnapshot empty = histogram.snapshot();
+        assertEquals(0, empty.count());
+        assertEquals(0, empty.percentile(99));
+        assertEquals(0, empty.mean());
+
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value * 1000);
+        }
+        histogram.record(-1);
+        LatencySnapshot snapshot = histogram.snapshot();
+        assertEquals(100001, snapshot.count());
+        assertEquals(100000000, snapshot.max());
+        assertEquals(50000500.0 * 100000 / 100001, snapshot.mean(), 1);
+        assertEquals(50000000, snapshot.percentile(50), 50000000 / 32.0);
+        assertEquals(99000000, snapshot.percentile(99), 99000000 / 32.0);
+        assertEquals(100000000, snapshot.percentile(100));
+        assertEquals(0, snapshot.percentile(0));
+        assertThrows(IllegalArgumentException.class, () -> snapshot.percentile(101));
+    }
+
+    @Test
+    void testConcurrentRecording() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    histogram.record(i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LatencySnapshot snapshot = histogram.snapshot();
+        assertEquals(800000, snapshot.count());
+        assertEquals(99999, snapshot.max());
+        assertEquals(99999 / 2.0, snapshot.mean(), 1e-6);
+    }
+}
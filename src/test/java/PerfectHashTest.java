@@ -0,0 +1,74 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PerfectHashTest {
+
+    @Test
+    void testMinimalPerfect() {
+        Random random = new Random(7);
+        for (int n : new int[]{0, 1, 2, 63, 64, 1000, 100000}) {
+            long[] hashes = new long[n + 3];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = random.nextLong();
+            }
+            PerfectHash perfectHash = PerfectHash.build(hashes, n);
+            assertEquals(n, perfectHash.size());
+
+            // a bijection to [0, n)
+            boolean[] used = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                long value = perfectHash.lookup(hashes[i]);
+                assertTrue(value >= 0 && value < n);
+                assertFalse(used[(int) value]);
+                used[(int) value] = true;
+            }
+
+            // hashes not in the set
+            for (int i = 0; i < 1000; i++) {
+                long value = perfectHash.lookup(random.nextLong());
+                assertTrue(value >= -1 && value < n);
+            }
+            if (n >= 1000)
+                assertTrue(perfectHash.memoryBytes() * 8 < 5L * n);
+        }
+    }
+
+    @Test
+    void testDuplicateHashes() {
+        assertThrows(IllegalArgumentException.class,
+                     () -> PerfectHash.build(new long[]{1, 2, 1}, 3));
+    }
+
+    @Test
+    void testWriteRead() throws Exception {
+        Random random = new Random(8);
+        long[] hashes = new long[10000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+        PerfectHash perfectHash = PerfectHash.build(hashes, hashes.length);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        perfectHash.write(new DataOutputStream(bytes));
+
+        PerfectHash read = PerfectHash.read(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(perfectHash.size(), read.size());
+        assertEquals(perfectHash.memoryBytes(), read.memoryBytes());
+        for (long hash : hashes) {
+            assertEquals(perfectHash.lookup(hash), read.lookup(hash));
+        }
+
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 1);
+        assertThrows(EOFException.class, () -> PerfectHash.read(
+                new DataInputStream(new ByteArrayInputStream(truncated))));
+    }
+}
@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordReaderTest {
+
+    /**
+     * Writes records with random sizes to a temporary file.
+     */
+    static File writeRecords(ArrayList<byte[]> keys, ArrayList<byte[]> values, int n)
+            throws Exception {
+        File file = File.createTempFile("records", null);
+        file.deleteOnExit();
+        Random random = new Random(n);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < n; i++) {
+                byte[] key = new byte[random.nextInt(Record.MAX_KEY_SIZE + 1)];
+                byte[] value = new byte[random.nextInt(Record.MAX_VALUE_SIZE + 1)];
+                random.nextBytes(key);
+                random.nextBytes(value);
+                keys.add(key);
+                values.add(value);
+                out.write(ByteBuffer.allocate(2).putShort((short) key.length).array());
+                out.write(key);
+                out.write(ByteBuffer.allocate(2).putShort((short) value.length).array());
+                out.write(value);
+            }
+        }
+        return file;
+    }
+
+    @Test
+    void testCursor() throws Exception {
+        ArrayList<byte[]> keys = new ArrayList<>();
+        ArrayList<byte[]> values = new ArrayList<>();
+        File file = writeRecords(keys, values, 1000);
+
+        // the smallest buffer, refilled for almost every record
+        int bufferSize = 2 + Record.MAX_KEY_SIZE + 2 + Record.MAX_VALUE_SIZE;
+        HashFunc hasher = new HashFunc(keys.size());
+        try (RecordReader reader = new RecordReader(file.getPath(), bufferSize)) {
+            long address = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                assertTrue(reader.next());
+                assertEquals(address, reader.address());
+                assertEquals(keys.get(i).length, reader.keySize());
+                assertEquals(values.get(i).length, reader.valueSize());
+
+                byte[] key = new byte[reader.keySize()];
+                reader.getKey(key);
+                assertArrayEquals(keys.get(i), key);
+                byte[] value = new byte[reader.valueSize()];
+                reader.getValue(value);
+                assertArrayEquals(values.get(i), value);
+
+                assertEquals(hasher.hash64(keys.get(i)),
+                             hasher.hash64(reader.buffer(), reader.keyOffset(), reader.keySize()));
+                address += 4 + key.length + value.length;
+            }
+            assertFalse(reader.next());
+            assertFalse(reader.hasNextRecord());
+        }
+    }
+
+    @Test
+    void testTruncatedFile() throws Exception {
+        File file = File.createTempFile("records", null);
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{0, 3, 1, 2, 3, 0, 4, 1});
+        }
+        try (RecordReader reader = new RecordReader(file.getPath())) {
+            assertThrows(InvalidDataFormatException.class, reader::next);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SlotFormatTest {
+
+    @Test
+    void testEncodeDecode() {
+        Random random = new Random(3);
+        for (int bits : new int[]{0, 8, 16}) {
+            SlotFormat format = new SlotFormat(bits);
+            byte[] arr = new byte[format.slotSize + 5];
+            for (int i = 0; i < 1000; i++) {
+                short keySize = (short) random.nextInt(Record.MAX_KEY_SIZE + 1);
+                long address = random.nextLong() & ((1L << 40) - 1);
+                short valueSize = (short) random.nextInt(Record.MAX_VALUE_SIZE + 1);
+                int next = random.nextInt(Integer.MAX_VALUE);
+                int fingerprint = format.fingerprint(random.nextLong());
+
+                format.encode(arr, 5, keySize, address, valueSize, next, fingerprint);
+                ByteBuffer slot = ByteBuffer.wrap(arr, 5, format.slotSize).slice();
+                assertEquals(keySize, format.keySize(slot));
+                assertEquals(address, format.address(slot));
+                assertEquals(valueSize, format.valueSize(slot));
+                assertEquals(next, format.nextSlotId(slot));
+                assertEquals(fingerprint, format.fingerprint(slot));
+            }
+        }
+    }
+
+    @Test
+    void testUnlinked() {
+        SlotFormat format = new SlotFormat(8, false);
+        assertEquals(10, format.slotSize);
+        byte[] arr = new byte[format.slotSize + 3];
+        format.encode(arr, 3, (short) 7, 123456789L, (short) 9, 42, 0xab);
+        ByteBuffer buf = ByteBuffer.wrap(arr);
+        assertEquals(7, format.keySize(buf, 3));
+        assertEquals(123456789L, format.address(buf, 3));
+        assertEquals(9, format.valueSize(buf, 3));
+        assertEquals(0, format.nextSlotId(buf, 3));
+        assertEquals(0xab, format.fingerprint(buf, 3));
+    }
+
+    @Test
+    void testPacked() {
+        Random random = new Random(4);
+        for (int i = 0; i < 1000; i++) {
+            int keySizeBits = random.nextInt(17);
+            int addressBits = random.nextInt(SlotFormat.MAX_ADDRESS_BITS + 1);
+            int valueSizeBits = random.nextInt(17);
+            int nextSlotIdBits = random.nextInt(33);
+            int fingerprintBits = random.nextInt(17);
+            SlotFormat format = new SlotFormat(keySizeBits, addressBits, valueSizeBits,
+                                               nextSlotIdBits, fingerprintBits);
+            int totalBits = keySizeBits + addressBits + valueSizeBits + nextSlotIdBits
+                            + fingerprintBits;
+            assertEquals(Math.max(1, (totalBits + 7) / 8), format.slotSize);
+            assertEquals(nextSlotIdBits > 0, format.linked);
+
+            short keySize = (short) (random.nextLong() & ((1L << keySizeBits) - 1));
+            long address = random.nextLong() & ((1L << addressBits) - 1);
+            short valueSize = (short) (random.nextLong() & ((1L << valueSizeBits) - 1));
+            int next = (int) (random.nextLong() & ((1L << nextSlotIdBits) - 1));
+            int fingerprint = format.fingerprint(random.nextLong());
+
+            // garbage around the slot is kept, and garbage in it is overwritten
+            byte[] arr = new byte[format.slotSize + 2];
+            Arrays.fill(arr, (byte) -1);
+            format.encode(arr, 1, keySize, address, valueSize, next, fingerprint);
+            assertEquals(-1, arr[0]);
+            assertEquals(-1, arr[arr.length - 1]);
+            ByteBuffer buf = ByteBuffer.wrap(arr);
+            assertEquals(keySize, format.keySize(buf, 1));
+            assertEquals(address, format.address(buf, 1));
+            assertEquals(valueSize, format.valueSize(buf, 1));
+            assertEquals(next, format.nextSlotId(buf, 1));
+            assertEquals(fingerprint, format.fingerprint(buf, 1));
+
+            // the address is rewritten in place
+            long newAddress = random.nextLong() & ((1L << addressBits) - 1);
+            format.setAddress(arr, 1, newAddress);
+            assertEquals(-1, arr[0]);
+            assertEquals(-1, arr[arr.length - 1]);
+            assertEquals(keySize, format.keySize(buf, 1));
+            assertEquals(newAddress, format.address(buf, 1));
+            assertEquals(valueSize, format.valueSize(buf, 1));
+            assertEquals(next, format.nextSlotId(buf, 1));
+            assertEquals(fingerprint, format.fingerprint(buf, 1));
+        }
+
+        // a value wider than its field
+        SlotFormat format = new SlotFormat(4, 8, 4, 4, 0);
+        assertThrows(IllegalArgumentException.class,
+                     () -> format.encode(new byte[3], 0, (short) 16, 0, (short) 0, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> format.setAddress(new byte[3], 0, 256));
+        assertThrows(IllegalArgumentException.class,
+                     () -> new SlotFormat(17, 8, 4, 4, 0));
+        assertThrows(IllegalArgumentException.class,
+                     () -> new SlotFormat(4, SlotFormat.MAX_ADDRESS_BITS + 1, 4, 4, 0));
+    }
+
+    @Test
+    void testSized() {
+        SlotFormat format = SlotFormat.sized(4096, 1 << 30, 100, 0, 8, true, 0);
+        assertEquals(13, format.keySizeBits);
+        assertEquals(31, format.addressBits);
+        assertEquals(7, format.valueSizeBits);
+        assertEquals(1, format.nextSlotIdBits);
+        assertEquals(8, format.fingerprintBits);
+        assertEquals(8, format.slotSize);
+
+        format = SlotFormat.sized(255, 255, 255, 1 << 20, 0, false, 0);
+        assertFalse(format.linked);
+        assertEquals(3, format.slotSize);
+        assertEquals(0, SlotFormat.bitsOf(0));
+        assertEquals(1, SlotFormat.bitsOf(1));
+        assertEquals(64, SlotFormat.bitsOf(Long.MAX_VALUE) + 1);
+    }
+
+    @Test
+    void testInline() {
+        SlotFormat format = new SlotFormat(13, 30, 13, 0, 8, 20);
+        assertEquals(8, format.inlineOffset);
+        assertEquals(28, format.slotSize);
+        assertTrue(format.isInline((short) 8, (short) 12));
+        assertFalse(format.isInline((short) 8, (short) 13));
+        assertFalse(new SlotFormat(8, false).isInline((short) 0, (short) 0));
+
+        byte[] arr = new byte[format.slotSize + 3];
+        format.encode(arr, 3, (short) 5, 1000, (short) 7, 0, 0x12);
+        for (int i = 0; i < 12; i++) {
+            arr[3 + format.inlineOffset + i] = (byte) i;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(arr);
+        assertEquals(ByteBuffer.wrap(new byte[]{0, 1, 2, 3, 4}), format.inlineKey(buf, 3));
+        assertEquals(ByteBuffer.wrap(new byte[]{5, 6, 7, 8, 9, 10, 11}),
+                     format.inlineValue(buf, 3));
+        assertEquals(1000, format.address(buf, 3));
+        assertEquals(0x12, format.fingerprint(buf, 3));
+        assertThrows(IllegalArgumentException.class,
+                     () -> new SlotFormat(13, 30, 13, 0, 8, SlotFormat.MAX_INLINE_BYTES + 1));
+    }
+
+    @Test
+    void testFingerprint() {
+        assertEquals(0, new SlotFormat(0).fingerprint(-1L));
+        assertEquals(0xff, new SlotFormat(8).fingerprint(-1L));
+        assertEquals(0xabcd, new SlotFormat(16).fingerprint(0xabcd000000000000L));
+    }
+}
@@ -0,0 +1,153 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ValueCacheTest {
+
+    private static byte[] key(int i) {
+        return new byte[]{(byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i};
+    }
+
+    // spreads the keys over the segments
+    private static long hash(int i) {
+        return HashAlgorithm.XXH64.hash64(key(i), 0);
+    }
+
+    @Test
+    void testGetPut() {
+        ValueCache cache = new ValueCache(1 << 20);
+        byte[] value = {1, 2, 3};
+        assertNull(cache.get(key(1), hash(1)));
+        cache.put(key(1), hash(1), value);
+
+        // copies are cached and returned
+        value[0] = 9;
+        byte[] cached = cache.get(key(1), hash(1));
+        assertArrayEquals(new byte[]{1, 2, 3}, cached);
+        cached[1] = 9;
+        assertArrayEquals(new byte[]{1, 2, 3}, cache.get(key(1), hash(1)));
+
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(0, cache.evictions());
+    }
+
+    @Test
+    void testGetInto() {
+        ValueCache cache = new ValueCache(1 << 20);
+        ByteBuffer dst = ByteBuffer.allocate(4);
+        assertEquals(-1, cache.getInto(key(1), hash(1), dst));
+        cache.put(key(1), hash(1), new byte[]{0, 1, 2, 3, 4}, 1, 3);
+
+        assertEquals(3, cache.getInto(key(1), hash(1), dst));
+        assertEquals(3, dst.position());
+        assertArrayEquals(new byte[]{1, 2, 3, 0}, dst.array());
+
+        // no room, dst is not modified
+        assertThrows(BufferOverflowException.class, () -> cache.getInto(key(1), hash(1), dst));
+        assertEquals(3, dst.position());
+    }
+
+    @Test
+    void testBoundedBytes() {
+        long maxBytes = 1 << 16;
+        ValueCache cache = new ValueCache(maxBytes);
+        byte[] value = new byte[100];
+        for (int i = 0; i < 10000; i++) {
+            cache.put(key(i), hash(i), value);
+            assertTrue(cache.bytes() <= maxBytes);
+        }
+        assertTrue(cache.evictions() > 0);
+
+        // a value larger than a segment is not cached
+        cache.put(key(-1), hash(-1), new byte[(int) maxBytes]);
+        assertNull(cache.get(key(-1), hash(-1)));
+    }
+
+    @Test
+    void testSmallBudget() {
+        // a record of the max sizes fits in a cache of a little more than its size
+        int maxEntryBytes = ValueCache.ENTRY_OVERHEAD + Record.MAX_KEY_SIZE + Record.MAX_VALUE_SIZE;
+        ValueCache cache = new ValueCache(maxEntryBytes);
+        byte[] key = new byte[Record.MAX_KEY_SIZE];
+        byte[] value = new byte[Record.MAX_VALUE_SIZE];
+        for (int i = 0; i < 100; i++) {
+            ByteBuffer.wrap(key).putInt(i);
+            long hash = HashAlgorithm.XXH64.hash64(key, 0);
+            cache.put(key, hash, value);
+            assertArrayEquals(value, cache.get(key, hash));
+            assertTrue(cache.bytes() <= maxEntryBytes);
+        }
+        assertEquals(99, cache.evictions());
+
+        // a tiny cache still caches the records that fit in it
+        ValueCache tiny = new ValueCache(ValueCache.ENTRY_OVERHEAD + 8);
+        for (int i = 0; i < 100; i++) {
+            tiny.put(key(i), hash(i), new byte[]{(byte) i});
+            assertArrayEquals(new byte[]{(byte) i}, tiny.get(key(i), hash(i)));
+        }
+        tiny.put(key(-1), hash(-1), new byte[8]);
+        assertNull(tiny.get(key(-1), hash(-1)));
+    }
+
+    @Test
+    void testScanResistance() {
+        ValueCache cache = new ValueCache(1 << 20);
+        byte[] value = new byte[100];
+
+        // hot keys are hit twice, so they are protected
+        for (int i = 0; i < 1000; i++) {
+            cache.put(key(i), hash(i), value);
+            assertNotNull(cache.get(key(i), hash(i)));
+        }
+
+        // a scan of keys queried once
+        for (int i = 1000; i < 100000; i++) {
+            cache.put(key(i), hash(i), value);
+        }
+
+        int hot = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (cache.get(key(i), hash(i)) != null)
+                hot++;
+        }
+        assertTrue(hot > 900, "hot keys left: " + hot);
+    }
+
+    @Test
+    void testConcurrentAccess() throws Exception {
+        ValueCache cache = new ValueCache(1 << 16);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        int k = i % 2000;
+                        byte[] value = cache.get(key(k), hash(k));
+                        if (value == null)
+                            cache.put(key(k), hash(k), key(k));
+                        else
+                            assertArrayEquals(key(k), value);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(8 * 20000, cache.hits() + cache.misses());
+        assertTrue(cache.bytes() <= 1 << 16);
+    }
+}